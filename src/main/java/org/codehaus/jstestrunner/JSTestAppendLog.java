@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A file of lines that are appended to, shared by the stores that keep what
+ * happened in earlier runs. Appending is cheap and the file is locked while it
+ * is written or read, so that processes sharing it, such as several Surefire
+ * forks, do not trip over each other. Once the file holds many more lines than
+ * are of interest it is compacted, being rewritten with just those lines.
+ */
+class JSTestAppendLog {
+
+	/**
+	 * Reads the lines of the file.
+	 */
+	interface LineReader {
+
+		/**
+		 * @param line
+		 *            a line, without its line break.
+		 */
+		void read(String line);
+	}
+
+	/**
+	 * Determines the lines kept when the file is compacted.
+	 */
+	interface Compactor {
+
+		/**
+		 * @param lines
+		 *            the lines of the file, including those appended by
+		 *            others since it was read, followed by those yet to be
+		 *            written, each ending with a line break.
+		 * @return the lines to keep, each ending with a line break.
+		 */
+		List<String> compact(List<String> lines);
+	}
+
+	/**
+	 * Held while a file is locked, as locks are held on behalf of the whole
+	 * JVM rather than by a thread.
+	 */
+	private static final Object FILE_LOCK = new Object();
+
+	/**
+	 * Read the lines of a stream.
+	 * 
+	 * @param in
+	 *            the stream.
+	 * @param reader
+	 *            reads each line.
+	 * @return the number of lines.
+	 * @throws IOException
+	 *             if the stream cannot be read.
+	 */
+	private static int read(final InputStream in, final LineReader reader)
+			throws IOException {
+		final BufferedReader lineReader = new BufferedReader(
+				new InputStreamReader(in, "UTF-8"));
+		int lines = 0;
+		String line;
+		while ((line = lineReader.readLine()) != null) {
+			reader.read(line);
+			++lines;
+		}
+		return lines;
+	}
+
+	private final File file;
+
+	/**
+	 * The number of lines in the file when last read or written.
+	 */
+	private int fileLines;
+
+	/**
+	 * @param file
+	 *            the file.
+	 */
+	JSTestAppendLog(final File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Read the lines of the file. A file that does not exist has none.
+	 * 
+	 * @param reader
+	 *            reads each line.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	synchronized void read(final LineReader reader) throws IOException {
+		synchronized (FILE_LOCK) {
+			try {
+				final FileInputStream in = new FileInputStream(file);
+				try {
+					final FileLock lock = in.getChannel().lock(0L,
+							Long.MAX_VALUE, true);
+					try {
+						fileLines = read(in, reader);
+					} finally {
+						lock.release();
+					}
+				} finally {
+					in.close();
+				}
+			} catch (FileNotFoundException e) {
+				// Nothing has been written yet.
+			}
+		}
+	}
+
+	/**
+	 * Append lines to the file. Should the file then hold more lines than
+	 * allowed, it is compacted instead.
+	 * 
+	 * @param lines
+	 *            the lines, each ending with a line break.
+	 * @param maxLines
+	 *            the number of lines that the file may hold.
+	 * @param compactor
+	 *            determines the lines kept when compacting.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	synchronized void append(final List<String> lines, final int maxLines,
+			final Compactor compactor) throws IOException {
+		if (lines.isEmpty()) {
+			return;
+		}
+		final File folder = file.getParentFile();
+		if (folder != null) {
+			folder.mkdirs();
+		}
+		synchronized (FILE_LOCK) {
+			final RandomAccessFile out = new RandomAccessFile(file, "rw");
+			try {
+				final FileLock lock = out.getChannel().lock();
+				try {
+					final List<String> writtenLines;
+					if (fileLines + lines.size() > maxLines) {
+						writtenLines = compact(out, lines, compactor);
+						out.setLength(0L);
+						out.seek(0L);
+						fileLines = 0;
+					} else {
+						writtenLines = lines;
+						out.seek(out.length());
+					}
+					final StringBuilder content = new StringBuilder();
+					for (final String line : writtenLines) {
+						content.append(line);
+					}
+					out.write(content.toString().getBytes("UTF-8"));
+					fileLines += writtenLines.size();
+				} finally {
+					lock.release();
+				}
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Determine the lines kept when compacting the file.
+	 * 
+	 * @param out
+	 *            the locked file.
+	 * @param lines
+	 *            the lines yet to be written.
+	 * @param compactor
+	 *            determines the lines kept.
+	 * @return the lines kept.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	private List<String> compact(final RandomAccessFile out,
+			final List<String> lines, final Compactor compactor)
+			throws IOException {
+		final byte[] content = new byte[(int) out.length()];
+		out.readFully(content);
+		final List<String> currentLines = new ArrayList<String>();
+		read(new ByteArrayInputStream(content), new LineReader() {
+			public void read(final String line) {
+				currentLines.add(line + "\n");
+			}
+		});
+		currentLines.addAll(lines);
+		return compactor.compact(currentLines);
+	}
+
+	public File getFile() {
+		return file;
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Groups test urls that take little time into batches, each batch being run
+ * by a single page load, so that the cost of handing out and loading a page is
+ * shared by the urls of a batch. A url is batched unless its timings show that
+ * it takes at least a maximum duration, as the cost of loading a page is then
+ * small in comparison. Batches are kept small enough that there are at least
+ * as many of them as there are execution servers to run them.
+ */
+public class JSTestBatcher {
+
+	private final JSTestTimingStore timingStore;
+
+	private final int maxBatchSize;
+
+	private final long maxDurationMillis;
+
+	/**
+	 * @param timingStore
+	 *            where the timings of urls are recorded. Can be null, in which
+	 *            case every url is batched.
+	 * @param maxBatchSize
+	 *            the most urls that a batch may hold.
+	 * @param maxDurationMillis
+	 *            the duration from which a url is no longer batched.
+	 */
+	public JSTestBatcher(final JSTestTimingStore timingStore,
+			final int maxBatchSize, final long maxDurationMillis) {
+		this.timingStore = timingStore;
+		this.maxBatchSize = maxBatchSize;
+		this.maxDurationMillis = maxDurationMillis;
+	}
+
+	/**
+	 * Group urls into batches.
+	 * 
+	 * @param urls
+	 *            the urls in the order that they are to run.
+	 * @param minBatches
+	 *            the number of batches that the urls to batch should be spread
+	 *            across where there are enough of them, being the number of
+	 *            execution servers.
+	 * @return the batches in the order that they are to run, each in the
+	 *         position of its first url. A url that is not batched is a batch
+	 *         of its own.
+	 */
+	public List<List<URL>> batch(final List<URL> urls, final int minBatches) {
+		final List<URL> batchedUrls = new ArrayList<URL>();
+		for (final URL url : urls) {
+			if (isBatched(url)) {
+				batchedUrls.add(url);
+			}
+		}
+		final int batchSize = Math.min(maxBatchSize,
+				(batchedUrls.size() + Math.max(1, minBatches) - 1)
+						/ Math.max(1, minBatches));
+
+		final List<List<URL>> batches = new ArrayList<List<URL>>(urls.size());
+		List<URL> batch = null;
+		for (final URL url : urls) {
+			if (batchSize < 2 || !isBatched(url)) {
+				batches.add(Collections.singletonList(url));
+				continue;
+			}
+			if (batch == null || batch.size() == batchSize) {
+				batch = new ArrayList<URL>(batchSize);
+				batches.add(batch);
+			}
+			batch.add(url);
+		}
+		return batches;
+	}
+
+	/**
+	 * Determine whether a url is to be batched.
+	 * 
+	 * @param url
+	 *            the url.
+	 * @return true if it is not known to take at least the maximum duration.
+	 */
+	private boolean isBatched(final URL url) {
+		if (timingStore == null) {
+			return true;
+		}
+		final long estimate = timingStore.getPercentile(
+				JSTestSuiteRunnerService.getTimingPath(url), 50);
+		return estimate < maxDurationMillis;
+	}
+
+	public JSTestTimingStore getTimingStore() {
+		return timingStore;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public long getMaxDurationMillis() {
+		return maxDurationMillis;
+	}
+}
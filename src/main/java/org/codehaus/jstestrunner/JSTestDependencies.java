@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.codehaus.jstestrunner.jetty.JSTestResourceIndex;
+
+/**
+ * Determines the files that test urls depend on, being each url's test
+ * document and the local scripts and stylesheets that the document references.
+ * Files are found within the resource bases that they are served from, the
+ * first resource base having a file serving it. References to other hosts are
+ * not followed, nor are the references made by scripts and stylesheets, as
+ * scripts can only be known to load others by running them.
+ */
+public class JSTestDependencies {
+
+	/**
+	 * Finds the scripts and stylesheets referenced by a test document.
+	 */
+	private static final Pattern REFERENCE_PATTERN = Pattern.compile(
+			"<(?:script|link)\\b[^>]*?\\b(?:src|href)\\s*=\\s*[\"']([^\"']*)[\"']",
+			Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * Resolve a reference against the folder of the document making it.
+	 * 
+	 * @param folder
+	 *            the folder, ending with '/' unless it is the root.
+	 * @param reference
+	 *            the reference.
+	 * @return the path or null if it lies outside of the root.
+	 */
+	private static String resolve(final String folder, final String reference) {
+		final LinkedList<String> segments = new LinkedList<String>();
+		for (final String segment : (folder + reference).split("/")) {
+			if (segment.equals("..")) {
+				if (segments.isEmpty()) {
+					return null;
+				}
+				segments.removeLast();
+			} else if (segment.length() > 0 && !segment.equals(".")) {
+				segments.add(segment);
+			}
+		}
+		final StringBuilder path = new StringBuilder();
+		for (final String segment : segments) {
+			if (path.length() > 0) {
+				path.append('/');
+			}
+			path.append(segment);
+		}
+		return path.toString();
+	}
+
+	/**
+	 * Read the whole of a file.
+	 * 
+	 * @param file
+	 *            the file.
+	 * @return its content.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	static byte[] read(final File file) throws IOException {
+		final ByteArrayOutputStream content = new ByteArrayOutputStream();
+		final InputStream in = new FileInputStream(file);
+		try {
+			final byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				content.write(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return content.toByteArray();
+	}
+
+	private final JSTestResourceIndex resourceIndex;
+
+	/**
+	 * @param resourceBases
+	 *            the folders that test urls are served from.
+	 */
+	public JSTestDependencies(final String[] resourceBases) {
+		this(new JSTestResourceIndex(resourceBases));
+	}
+
+	/**
+	 * @param resourceIndex
+	 *            resolves paths to the files serving them, as when serving
+	 *            test urls.
+	 */
+	public JSTestDependencies(final JSTestResourceIndex resourceIndex) {
+		this.resourceIndex = resourceIndex;
+	}
+
+	/**
+	 * Find the file served for a path.
+	 * 
+	 * @param path
+	 *            the path relative to the resource bases.
+	 * @return the file or null if there is none.
+	 */
+	public File findFile(final String path) {
+		return resourceIndex.findFile("/" + path);
+	}
+
+	/**
+	 * Get the paths that a url depends on, relative to the resource bases.
+	 * Referenced paths are included whether or not a file is found for them.
+	 * 
+	 * @param url
+	 *            the url.
+	 * @return the path of the test document followed by those that it
+	 *         references in the order referenced, or null if the test document
+	 *         cannot be found.
+	 * @throws IOException
+	 *             if the test document cannot be read.
+	 */
+	public List<String> getDependencies(final URL url) throws IOException {
+		final String path = JSTestSuiteRunnerService.getFormattedPath(url);
+		final File document = findFile(path);
+		if (document == null) {
+			return null;
+		}
+		final Set<String> dependencies = new LinkedHashSet<String>();
+		dependencies.add(path);
+
+		final String folder = path.substring(0, path.lastIndexOf('/') + 1);
+		final Matcher matcher = REFERENCE_PATTERN.matcher(new String(
+				read(document), "ISO-8859-1"));
+		while (matcher.find()) {
+			String reference = matcher.group(1);
+			final int queryStart = reference.indexOf('?');
+			if (queryStart >= 0) {
+				reference = reference.substring(0, queryStart);
+			}
+			final int fragmentStart = reference.indexOf('#');
+			if (fragmentStart >= 0) {
+				reference = reference.substring(0, fragmentStart);
+			}
+			if (reference.length() == 0 || reference.indexOf(':') >= 0
+					|| reference.startsWith("//")) {
+				// Not a local file.
+				continue;
+			}
+			final String referencePath = reference.charAt(0) == '/' ? resolve(
+					"", reference.substring(1)) : resolve(folder, reference);
+			if (referencePath != null) {
+				dependencies.add(referencePath);
+			}
+		}
+		return new ArrayList<String>(dependencies);
+	}
+
+	public String[] getResourceBases() {
+		return resourceIndex.getResourceBases();
+	}
+}
@@ -0,0 +1,364 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A test execution process that remains running between the execution servers
+ * that use it, so that the cost of starting it is paid once per JVM rather than
+ * once per suite. An execution server leases a daemon for as long as it runs
+ * and tells it, over its standard input, where to request urls from. The
+ * daemon announces on its standard output whenever it has run out of urls and
+ * is waiting to be told of more. Daemons that are idle when released are kept
+ * for the next execution server using the same command and are destroyed when
+ * the JVM exits.
+ */
+public class JSTestExecutionDaemon implements TestResultProducer {
+
+	/**
+	 * What a daemon outputs when it is waiting to be told of more urls.
+	 */
+	static final String IDLE_MARKER = "jstestrunner:idle";
+
+	/**
+	 * How long to wait for a daemon to become idle upon its release.
+	 */
+	private static final long RELEASE_TIMEOUT_MILLIS = 5000L;
+
+	private static Logger LOGGER = Logger.getLogger(JSTestExecutionDaemon.class
+			.getName());
+
+	/**
+	 * Idle daemons keyed by the command that started them.
+	 */
+	private static final Map<String, LinkedList<JSTestExecutionDaemon>> IDLE_DAEMONS = new HashMap<String, LinkedList<JSTestExecutionDaemon>>();
+
+	/**
+	 * Every daemon started and not yet destroyed.
+	 */
+	private static final List<JSTestExecutionDaemon> DAEMONS = new ArrayList<JSTestExecutionDaemon>();
+
+	private static boolean shutdownHookAdded;
+
+	/**
+	 * Lease a daemon, starting one if there is no idle one for the command.
+	 * 
+	 * @param commandArgs
+	 *            the command that starts the daemon.
+	 * @return the daemon.
+	 * @throws IOException
+	 *             if the daemon cannot be started.
+	 */
+	public static JSTestExecutionDaemon acquire(final String[] commandArgs)
+			throws IOException {
+		final String key = Arrays.asList(commandArgs).toString();
+		synchronized (IDLE_DAEMONS) {
+			final LinkedList<JSTestExecutionDaemon> idleDaemons = IDLE_DAEMONS
+					.get(key);
+			while (idleDaemons != null && !idleDaemons.isEmpty()) {
+				final JSTestExecutionDaemon daemon = idleDaemons.removeFirst();
+				if (daemon.isRunning()) {
+					return daemon;
+				}
+				destroy(daemon);
+			}
+		}
+
+		final JSTestExecutionDaemon daemon = new JSTestExecutionDaemon(key,
+				commandArgs);
+		synchronized (IDLE_DAEMONS) {
+			if (!shutdownHookAdded) {
+				Runtime.getRuntime().addShutdownHook(
+						new Thread("jstestrunner-daemon-shutdown") {
+							@Override
+							public void run() {
+								destroyAll();
+							}
+						});
+				shutdownHookAdded = true;
+			}
+			DAEMONS.add(daemon);
+		}
+		return daemon;
+	}
+
+	/**
+	 * Return a leased daemon. The daemon is kept for reuse if it becomes idle
+	 * in a reasonable time, otherwise it is destroyed.
+	 * 
+	 * @param daemon
+	 *            the daemon.
+	 */
+	public static void release(final JSTestExecutionDaemon daemon) {
+		if (daemon.awaitIdle(RELEASE_TIMEOUT_MILLIS)) {
+			synchronized (IDLE_DAEMONS) {
+				LinkedList<JSTestExecutionDaemon> idleDaemons = IDLE_DAEMONS
+						.get(daemon.key);
+				if (idleDaemons == null) {
+					idleDaemons = new LinkedList<JSTestExecutionDaemon>();
+					IDLE_DAEMONS.put(daemon.key, idleDaemons);
+				}
+				idleDaemons.add(daemon);
+			}
+		} else {
+			LOGGER.log(Level.FINE, "Destroying a daemon that did not become idle");
+			destroy(daemon);
+		}
+	}
+
+	/**
+	 * Destroy a daemon.
+	 * 
+	 * @param daemon
+	 *            the daemon.
+	 */
+	private static void destroy(final JSTestExecutionDaemon daemon) {
+		synchronized (IDLE_DAEMONS) {
+			DAEMONS.remove(daemon);
+		}
+		daemon.process.destroy();
+	}
+
+	/**
+	 * Destroy a leased daemon e.g. because it has stopped making progress. Its
+	 * exit listener is told of its exit as usual.
+	 * 
+	 * @param daemon
+	 *            the daemon.
+	 */
+	static void kill(final JSTestExecutionDaemon daemon) {
+		destroy(daemon);
+	}
+
+	/**
+	 * Destroy every daemon.
+	 */
+	static void destroyAll() {
+		final List<JSTestExecutionDaemon> daemons;
+		synchronized (IDLE_DAEMONS) {
+			daemons = new ArrayList<JSTestExecutionDaemon>(DAEMONS);
+			DAEMONS.clear();
+			IDLE_DAEMONS.clear();
+		}
+		for (final JSTestExecutionDaemon daemon : daemons) {
+			daemon.process.destroy();
+		}
+	}
+
+	private final String key;
+
+	private final Process process;
+
+	private final Writer processInput;
+
+	/**
+	 * The number of times that urls have been submitted.
+	 */
+	private int submissions;
+
+	/**
+	 * The number of times that the daemon has announced that it is idle. It
+	 * does so once as it starts and then once for each submission.
+	 */
+	private int idleAnnouncements;
+
+	private boolean exited;
+
+	/**
+	 * Set once the daemon has exited and that has been reported.
+	 */
+	private volatile boolean exitReported;
+
+	/**
+	 * Told should the daemon exit while leased.
+	 */
+	private JSTestExecutionServer.ExitListener exitListener;
+
+	private final ProcessLogger processLogger;
+
+	private JSTestExecutionDaemon(final String key, final String[] commandArgs)
+			throws IOException {
+		this.key = key;
+
+		final ProcessBuilder builder = new ProcessBuilder(commandArgs);
+		builder.redirectErrorStream(true);
+		process = builder.start();
+		processInput = new OutputStreamWriter(process.getOutputStream(), "UTF-8");
+
+		processLogger = new ProcessLogger(process,
+				JSTestExecutionServer.RETAINED_OUTPUT_LINES) {
+			@Override
+			protected void log(final String line) {
+				if (line.equals(IDLE_MARKER)) {
+					announceIdle();
+				} else {
+					super.log(line);
+				}
+			}
+
+			@Override
+			public void run() {
+				try {
+					super.run();
+				} finally {
+					announceExited();
+				}
+			}
+		};
+		final Thread processLoggerThread = new Thread(processLogger,
+				"jstestrunner-daemon");
+		processLoggerThread.setDaemon(true);
+		processLoggerThread.start();
+	}
+
+	private synchronized void announceIdle() {
+		++idleAnnouncements;
+		notifyAll();
+	}
+
+	private void announceExited() {
+		final JSTestExecutionServer.ExitListener listener;
+		synchronized (this) {
+			exited = true;
+			notifyAll();
+			listener = exitListener;
+		}
+		try {
+			if (listener != null) {
+				notifyExited(listener);
+			}
+		} finally {
+			exitReported = true;
+		}
+	}
+
+	private void notifyExited(final JSTestExecutionServer.ExitListener listener) {
+		int exitValue;
+		try {
+			exitValue = process.waitFor();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			exitValue = -1;
+		}
+		listener.processExited(exitValue, processLogger.getRetainedOutput());
+	}
+
+	/**
+	 * Set who is told should the daemon exit, telling them straight away if it
+	 * already has.
+	 * 
+	 * @param exitListener
+	 *            the listener or null if there is none.
+	 */
+	public void setExitListener(
+			final JSTestExecutionServer.ExitListener exitListener) {
+		final boolean alreadyExited;
+		synchronized (this) {
+			this.exitListener = exitListener;
+			alreadyExited = exited;
+		}
+		if (alreadyExited && exitListener != null) {
+			notifyExited(exitListener);
+		}
+	}
+
+	/**
+	 * Wait for the daemon to finish with the urls submitted to it.
+	 * 
+	 * @param timeoutMillis
+	 *            how long to wait.
+	 * @return true if the daemon is idle and still running.
+	 */
+	synchronized boolean awaitIdle(final long timeoutMillis) {
+		final long deadline = System.currentTimeMillis() + timeoutMillis;
+		long remaining = timeoutMillis;
+		while (!exited && idleAnnouncements <= submissions && remaining > 0) {
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return !exited && idleAnnouncements > submissions;
+	}
+
+	/**
+	 * Tell the daemon where to request its next urls from.
+	 * 
+	 * @param nextTestUrl
+	 *            the url that each test url is requested from.
+	 * @throws IOException
+	 *             if the daemon cannot be told.
+	 */
+	public synchronized void submit(final URL nextTestUrl) throws IOException {
+		++submissions;
+		processInput.write(nextTestUrl.toString());
+		processInput.write('\n');
+		processInput.flush();
+	}
+
+	/**
+	 * Tests whether the daemon is available to produce results. It remains so
+	 * until its exit has been reported.
+	 * 
+	 * @return true if it is.
+	 */
+	public boolean isAvailable() {
+		return !exitReported;
+	}
+
+	/**
+	 * Get the memory held by the daemon's process.
+	 * 
+	 * @return the resident set size in bytes, or -1 if not known.
+	 */
+	long getResidentSetSize() {
+		return JSTestExecutionServer.getResidentSetSize(process);
+	}
+
+	/**
+	 * Tests whether the daemon's process is still running.
+	 * 
+	 * @return true if it is.
+	 */
+	boolean isRunning() {
+		try {
+			process.exitValue();
+			return false;
+		} catch (final IllegalThreadStateException e) {
+			return true;
+		}
+	}
+
+}
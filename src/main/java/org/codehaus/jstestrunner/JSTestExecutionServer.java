@@ -21,26 +21,55 @@ package org.codehaus.jstestrunner;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.StringReader;
+import java.lang.reflect.Field;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * An execution server executes JavaScript tests represented by a list of urls.
+ * An execution server executes JavaScript tests represented by a list of urls,
+ * or by the urls it requests one at a time from a work queue. Urls requested
+ * from a work queue can be executed by a daemon process that is shared with
+ * later execution servers. Such an execution server can also be recycled
+ * after a number of pages or once its process holds too much memory, its
+ * process finishing with the urls it has and a fresh one continuing with
+ * those remaining.
  */
 public class JSTestExecutionServer implements TestResultProducer {
 
     static final String TEST_RUNNER_FILENAME = "run-qunit.js";
     static final String TEST_RUNNER_RES_PATH = "/org/codehaus/jstestrunner/";
 
+    /**
+     * The number of the most recent lines of process output to report should
+     * the process exit unexpectedly.
+     */
+    static final int RETAINED_OUTPUT_LINES = 20;
+
+    /**
+     * Told when the process executing tests exits other than by being stopped.
+     */
+    public interface ExitListener {
+
+        /**
+         * @param exitValue The exit value of the process
+         * @param output The most recent lines of output from the process
+         */
+        void processExited(int exitValue, String output);
+    }
+
     private static Logger LOGGER = Logger.getLogger(JSTestExecutionServer.class
 			.getName());
 
@@ -50,33 +79,146 @@ public class JSTestExecutionServer implements TestResultProducer {
 
     private final List<URL> urls;
 
+    private final URL nextTestUrl;
+
+    private final boolean daemon;
+
+    private final int maxPages;
+
+    private final long maxResidentSetSize;
+
     // Copy the test runner we have to the test folder and make it available to
     // multiple invocations of the runner.
     private final File testRunnerFile;
 
+    /**
+     * Builds an execution server for either urls of its own or those requested
+     * from a work queue. By default its process is its own and is never
+     * recycled.
+     */
+    public static class Builder {
+        private final String testRunnerFilePath;
+        private final String commandPattern;
+        private final List<URL> urls;
+        private final URL nextTestUrl;
+        private boolean daemon;
+        private int maxPages;
+        private long maxResidentSetSize;
+
+        /**
+         * @param testRunnerFilePath The location of the test runner file that the execution will use
+         * @param commandPattern The formatted command to perform
+         * @param urls The urls relating to the test
+         */
+        public Builder(final String testRunnerFilePath, final String commandPattern, final List<URL> urls) {
+            this.testRunnerFilePath = testRunnerFilePath;
+            this.commandPattern = commandPattern;
+            this.urls = urls;
+            this.nextTestUrl = null;
+        }
+
+        /**
+         * @param testRunnerFilePath The location of the test runner file that the execution will use
+         * @param commandPattern The formatted command to perform
+         * @param nextTestUrl The url that each test url is requested from
+         */
+        public Builder(final String testRunnerFilePath, final String commandPattern, final URL nextTestUrl) {
+            this.testRunnerFilePath = testRunnerFilePath;
+            this.commandPattern = commandPattern;
+            this.urls = Collections.emptyList();
+            this.nextTestUrl = nextTestUrl;
+        }
+
+        /**
+         * @param daemon Whether to execute using a daemon that outlives the server
+         * @return this builder
+         */
+        public Builder daemon(final boolean daemon) {
+            this.daemon = daemon;
+            return this;
+        }
+
+        /**
+         * @param maxPages The number of urls that a process may be handed before it is recycled, or 0 for no
+         * limit
+         * @return this builder
+         */
+        public Builder maxPages(final int maxPages) {
+            this.maxPages = maxPages;
+            return this;
+        }
+
+        /**
+         * @param maxResidentSetSize The bytes of memory that a process may hold before it is recycled, or 0 for
+         * no limit
+         * @return this builder
+         */
+        public Builder maxResidentSetSize(final long maxResidentSetSize) {
+            this.maxResidentSetSize = maxResidentSetSize;
+            return this;
+        }
+
+        /**
+         * @return the execution server
+         */
+        public JSTestExecutionServer build() {
+            return new JSTestExecutionServer(this);
+        }
+    }
+
     /**
      * @param testRunnerFilePath The location of the test runner file that the execution will use
      * @param commandPattern The formatted command to perform
      * @param urls The urls relating to the test
+     * @deprecated use {@link Builder}
      */
+    @Deprecated
     public JSTestExecutionServer(final String testRunnerFilePath, final String commandPattern,
                                  final List<URL> urls) {
-        this.testRunnerFilePath = testRunnerFilePath;
-        this.commandPattern = commandPattern;
-        this.urls = urls;
+        this(new Builder(testRunnerFilePath, commandPattern, urls));
+    }
+
+    private JSTestExecutionServer(final Builder builder) {
+        this.testRunnerFilePath = builder.testRunnerFilePath;
+        this.commandPattern = builder.commandPattern;
+        this.urls = builder.urls;
+        this.nextTestUrl = builder.nextTestUrl;
+        this.daemon = builder.daemon;
+        this.maxPages = builder.maxPages;
+        this.maxResidentSetSize = builder.maxResidentSetSize;
         testRunnerFile = new File(testRunnerFilePath, TEST_RUNNER_FILENAME);
     }
 
     /**
 	 * The process that was started.
 	 */
-	private Process process;
+	private volatile Process process;
 
 	/**
 	 * The LOGGER attached to the process being run.
 	 */
 	private Thread processLoggerThread;
 
+	/**
+	 * The daemon leased when executing using one.
+	 */
+	private JSTestExecutionDaemon jSTestExecutionDaemon;
+
+	/**
+	 * Told should the process exit before being stopped.
+	 */
+	private volatile ExitListener exitListener;
+
+	/**
+	 * Set once stopping so that the process exiting is expected.
+	 */
+	private volatile boolean stopping;
+
+	/**
+	 * Set once the process has exited and that has been reported.
+	 */
+	private volatile boolean exitReported;
+
 	/**
 	 * Make a copy of the js file that will drive the execution engine. Copies
 	 * are performed in a synchronised fashion and only if it has not been
@@ -168,13 +310,21 @@ public class JSTestExecutionServer implements TestResultProducer {
 		// Put the test runner file into a format for formatting.
 		final String testRunnerAbsoluteFilePath = testRunnerFile.getAbsolutePath();
 
-		// Convert the list of urls to a command line representation (csv).
+		// Convert the list of urls to a command line representation (csv), or
+		// tell the runner where to request urls from. Daemons are told where
+		// to request urls from once they have started.
 		sb = new StringBuilder();
-		for (final URL url : urls) {
-			if (sb.length() > 0) {
-				sb.append(',');
+		if (daemon) {
+			sb.append("--daemon");
+		} else if (nextTestUrl != null) {
+			sb.append("--queue=").append(nextTestUrl.toString());
+		} else {
+			for (final URL url : urls) {
+				if (sb.length() > 0) {
+					sb.append(',');
+				}
+				sb.append(url.toString());
 			}
-			sb.append(url.toString());
 		}
 		final String testUrls = sb.toString();
 
@@ -206,34 +356,197 @@ public class JSTestExecutionServer implements TestResultProducer {
 		return urls;
 	}
 
+	public URL getNextTestUrl() {
+		return nextTestUrl;
+	}
+
+	public boolean isDaemon() {
+		return daemon;
+	}
+
+	public int getMaxPages() {
+		return maxPages;
+	}
+
+	public long getMaxResidentSetSize() {
+		return maxResidentSetSize;
+	}
+
+	/**
+	 * Get the memory held by the process executing tests.
+	 * 
+	 * @return the resident set size in bytes, or -1 if not known.
+	 */
+	public synchronized long getResidentSetSize() {
+		if (jSTestExecutionDaemon != null) {
+			return jSTestExecutionDaemon.getResidentSetSize();
+		} else if (process != null) {
+			return getResidentSetSize(process);
+		} else {
+			return -1L;
+		}
+	}
+
+	/**
+	 * Get the memory held by a process, as told by /proc on Linux. This is
+	 * the process started by the command, which may not be the browser should
+	 * the command be a script that starts it.
+	 * 
+	 * @param process
+	 *            the process.
+	 * @return the resident set size in bytes, or -1 if not known.
+	 */
+	static long getResidentSetSize(final Process process) {
+		final int pid = getPid(process);
+		if (pid < 0) {
+			return -1L;
+		}
+		try {
+			return getResidentSetSize(new File("/proc/" + pid + "/status"));
+		} catch (IOException e) {
+			// Not Linux, or the process has exited.
+			return -1L;
+		}
+	}
+
+	/**
+	 * Read the resident set size from the status file of a process, being
+	 * its "VmRSS" line.
+	 * 
+	 * @param statusFile
+	 *            the file.
+	 * @return the resident set size in bytes, or -1 if not told.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	static long getResidentSetSize(final File statusFile) throws IOException {
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(statusFile), "US-ASCII"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("VmRSS:")) {
+					final String[] fields = line.substring(6).trim().split("\\s+");
+					try {
+						return Long.parseLong(fields[0]) * 1024L;
+					} catch (NumberFormatException e) {
+						return -1L;
+					}
+				}
+			}
+			return -1L;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Get the id of a process. Processes only tell of their id from Java 9, so
+	 * the field held by earlier implementations is read otherwise.
+	 * 
+	 * @param process
+	 *            the process.
+	 * @return the id, or -1 if not known.
+	 */
+	private static int getPid(final Process process) {
+		try {
+			return ((Number) Process.class.getMethod("pid").invoke(process))
+					.intValue();
+		} catch (Exception e) {
+			// Before Java 9.
+		}
+		try {
+			final Field pidField = process.getClass().getDeclaredField("pid");
+			pidField.setAccessible(true);
+			return pidField.getInt(process);
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Set who is told should the process exit before being stopped.
+	 * 
+	 * @param exitListener
+	 *            the listener or null if there is none.
+	 */
+	public void setExitListener(final ExitListener exitListener) {
+		this.exitListener = exitListener;
+	}
+
+	/**
+	 * Tell the exit listener that the process has exited, unless it is being
+	 * stopped.
+	 */
+	private void notifyExited(final int exitValue, final String output) {
+		final ExitListener listener = exitListener;
+		if (!stopping && listener != null) {
+			LOGGER.log(Level.FINE, "Process exited with " + exitValue);
+			listener.processExited(exitValue, output);
+		}
+	}
+
 	/**
 	 * Tests whether the executor is still running.
 	 * 
 	 * @return true if it is.
 	 */
 	public boolean isAvailable() {
-		if (process != null) {
-			try {
-				process.exitValue();
-				return false;
-			} catch (final IllegalThreadStateException e) {
-				return true;
-			}
+		if (jSTestExecutionDaemon != null) {
+			return jSTestExecutionDaemon.isAvailable();
+		} else if (process != null) {
+			// Remain available until the exit of the process has been reported
+			// so that results are waited upon until then.
+			return !exitReported;
 		} else {
 			return false;
 		}
 	}
 
+	/**
+	 * Explain why the execution could not be launched.
+	 * 
+	 * @param e
+	 *            the exception raised when launching.
+	 * @return the explanation.
+	 */
+	private static IOException launchFailure(final IOException e) {
+		return new IOException(
+		"The phantomjs executable cannot be launched from the path or from the value of"
+				+ " the org.codehaus.jstestrunner.commandPattern property."
+				+ " See http://js-testrunner.codehaus.org/usage.html for instructions."
+				+ " Original exception: " + e.toString());
+	}
+
 	/**
 	 * Start the execution.
 	 * 
 	 * @throws IOException
 	 *             if something goes wrong.
 	 */
-	public void start() throws IOException {			
+	public synchronized void start() throws IOException {			
 		// Ensure that the bootstrap file is available for execution from the
 		// file system.
 		copyTestRunnerFileIfNotExists();
+
+		stopping = false;
+		exitReported = false;
+
+		if (daemon) {
+			try {
+				jSTestExecutionDaemon = JSTestExecutionDaemon
+						.acquire(getCommandArgs());
+			} catch (IOException e) {
+				throw launchFailure(e);
+			}
+			jSTestExecutionDaemon.setExitListener(new ExitListener() {
+				public void processExited(final int exitValue, final String output) {
+					notifyExited(exitValue, output);
+				}
+			});
+			jSTestExecutionDaemon.submit(nextTestUrl);
+			return;
+		}
 		
 		// Get the command args and execute them, merging STDOUT and STDERR
 		final ProcessBuilder builder = new ProcessBuilder(getCommandArgs());
@@ -241,31 +554,93 @@ public class JSTestExecutionServer implements TestResultProducer {
 		try {
 			process = builder.start();
 		} catch (IOException e) {
-			throw new IOException(
-			"The phantomjs executable cannot be launched from the path or from the value of"
-					+ " the org.codehaus.jstestrunner.commandPattern property."
-					+ " See http://js-testrunner.codehaus.org/usage.html for instructions."
-					+ " Original exception: " + e.toString());
+			throw launchFailure(e);
 		}
 
-		// Use a ProcessLogger to print all output to System.out
-		processLoggerThread = new Thread(new ProcessLogger(process));
+		// Use a ProcessLogger to print all output to System.out, and then to
+		// tell of the process exiting.
+		final Process startedProcess = process;
+		processLoggerThread = new Thread(new ProcessLogger(startedProcess,
+				RETAINED_OUTPUT_LINES) {
+			@Override
+			public void run() {
+				try {
+					super.run();
+					notifyExited(startedProcess.waitFor(), getRetainedOutput());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					// Unless we have been restarted in the meantime.
+					if (process == startedProcess) {
+						exitReported = true;
+					}
+				}
+			}
+		});
 		processLoggerThread.start();
 	}
 
+	/**
+	 * Start the execution again having exited unexpectedly, unless it is being
+	 * stopped.
+	 * 
+	 * @return true if restarted.
+	 * @throws IOException
+	 *             if something goes wrong.
+	 */
+	public synchronized boolean restart() throws IOException {
+		if (stopping) {
+			return false;
+		}
+		if (jSTestExecutionDaemon != null) {
+			jSTestExecutionDaemon.setExitListener(null);
+			JSTestExecutionDaemon.release(jSTestExecutionDaemon);
+			jSTestExecutionDaemon = null;
+		}
+		start();
+		return true;
+	}
+
+	/**
+	 * Kill the execution e.g. because it has stopped making progress. Unlike
+	 * stopping, the exit listener is told of the process exiting so that it
+	 * may be restarted.
+	 */
+	public synchronized void kill() {
+		if (jSTestExecutionDaemon != null) {
+			JSTestExecutionDaemon.kill(jSTestExecutionDaemon);
+		} else if (process != null) {
+			process.destroy();
+		}
+	}
+
 	/**
 	 * Stop the execution.
 	 */
 	public void stop() {
-		if (process != null) {
-			process.destroy();
-			
+		final Process stoppedProcess;
+		final Thread stoppedProcessLoggerThread;
+		synchronized (this) {
+			stopping = true;
+			if (jSTestExecutionDaemon != null) {
+				jSTestExecutionDaemon.setExitListener(null);
+				JSTestExecutionDaemon.release(jSTestExecutionDaemon);
+				jSTestExecutionDaemon = null;
+				return;
+			}
+			stoppedProcess = process;
+			stoppedProcessLoggerThread = processLoggerThread;
+			if (stoppedProcess != null) {
+				stoppedProcess.destroy();
+			}
+		}
+		if (stoppedProcess != null) {
 			// Wait for the process to exit; if it's the last process we want the
 			// ProcessLogger to have a chance to log the exit value, if we are in
 			// FINE level
-			if (LOGGER.isLoggable(Level.FINE) && processLoggerThread.isAlive()) {
+			if (LOGGER.isLoggable(Level.FINE) && stoppedProcessLoggerThread.isAlive()) {
 				try {
-					processLoggerThread.join();
+					stoppedProcessLoggerThread.join();
 				} catch (InterruptedException e) {
 					LOGGER.log(Level.WARNING, "Exception waiting for process logger to exit: " + e.toString());
 				}
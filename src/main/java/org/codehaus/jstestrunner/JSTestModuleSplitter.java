@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.codehaus.jstestrunner.JSTestTimingStore.JSTestTiming;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestCaseResult;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestResult;
+
+/**
+ * Splits test urls that take long into a url per QUnit module, using QUnit's
+ * "module" url parameter, so that the modules of a url can be run by several
+ * execution servers at once. The modules of a url are learnt from its earlier
+ * runs: each module is timed within the timing store by the url that runs it
+ * alone. Modules are only trusted while none of the files that the url
+ * depends on have been modified since they were timed, as modules may have
+ * been added or removed since. A url is split when the durations of its
+ * modules add up to at least a minimum duration.
+ */
+public class JSTestModuleSplitter {
+
+	private static final Logger LOGGER = Logger
+			.getLogger(JSTestModuleSplitter.class.getName());
+
+	/**
+	 * Form the url that runs just one of the modules of a url.
+	 *
+	 * @param url
+	 *            the url.
+	 * @param moduleName
+	 *            the name of the module.
+	 * @return the url of the module.
+	 * @throws MalformedURLException
+	 *             if the url cannot be formed.
+	 */
+	public static URL getModuleUrl(final URL url, final String moduleName)
+			throws MalformedURLException {
+		final String encodedModuleName;
+		try {
+			// QUnit decodes parameters without turning '+' into a space.
+			encodedModuleName = URLEncoder.encode(moduleName, "UTF-8").replace(
+					"+", "%20");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		return new URL(url.toString() + (url.getQuery() == null ? "?" : "&")
+				+ "module=" + encodedModuleName);
+	}
+
+	private final JSTestTimingStore timingStore;
+
+	private final JSTestDependencies dependencies;
+
+	private final long minDurationMillis;
+
+	/**
+	 * @param timingStore
+	 *            where the timings of urls and their modules are recorded.
+	 * @param dependencies
+	 *            determines the files that urls depend on.
+	 * @param minDurationMillis
+	 *            the least that the modules of a url must take altogether for
+	 *            it to be split.
+	 */
+	public JSTestModuleSplitter(final JSTestTimingStore timingStore,
+			final JSTestDependencies dependencies, final long minDurationMillis) {
+		this.timingStore = timingStore;
+		this.dependencies = dependencies;
+		this.minDurationMillis = minDurationMillis;
+	}
+
+	/**
+	 * Split a url into a url per module should its modules be known and take
+	 * long enough altogether.
+	 *
+	 * @param url
+	 *            the url.
+	 * @return the urls of its modules, those expected to take longest first,
+	 *         or an empty list if the url is not to be split.
+	 */
+	public List<URL> split(final URL url) {
+		List<String> paths = null;
+		try {
+			paths = dependencies.getDependencies(url);
+		} catch (IOException e) {
+			LOGGER.warning("Unable to determine what " + url + " depends on: "
+					+ e);
+		}
+		if (paths == null) {
+			return Collections.emptyList();
+		}
+		long lastModified = 0L;
+		for (final String path : paths) {
+			final File dependency = dependencies.findFile(path);
+			if (dependency != null) {
+				lastModified = Math.max(lastModified, dependency.lastModified());
+			}
+		}
+
+		final String prefix = getModulePath(url, "");
+		final Map<String, Long> estimates = new HashMap<String, Long>();
+		final List<URL> moduleUrls = new ArrayList<URL>();
+		long duration = 0L;
+		for (final String path : timingStore.getPaths()) {
+			if (!path.startsWith(prefix)) {
+				continue;
+			}
+			final List<JSTestTiming> timings = timingStore.getTimings(path);
+			final JSTestTiming lastTiming = timings.get(timings.size() - 1);
+			// Files modified while the module ran may not have been seen.
+			if (lastTiming.getTime()
+					- Math.max(0L, lastTiming.getDurationMillis()) <= lastModified) {
+				continue;
+			}
+			final URL moduleUrl;
+			try {
+				moduleUrl = new URL(url.toString()
+						+ path.substring(JSTestSuiteRunnerService
+								.getTimingPath(url).length()));
+			} catch (MalformedURLException e) {
+				continue;
+			}
+			final long estimate = timingStore.getPercentile(path, 50);
+			estimates.put(moduleUrl.toString(), estimate);
+			moduleUrls.add(moduleUrl);
+			duration += Math.max(0L, estimate);
+		}
+		if (moduleUrls.size() < 2 || duration < minDurationMillis) {
+			return Collections.emptyList();
+		}
+
+		Collections.sort(moduleUrls, new Comparator<URL>() {
+			public int compare(final URL url1, final URL url2) {
+				final int order = estimates.get(url2.toString()).compareTo(
+						estimates.get(url1.toString()));
+				return order != 0 ? order : url1.toString().compareTo(
+						url2.toString());
+			}
+		});
+		return moduleUrls;
+	}
+
+	/**
+	 * Record the timing of each module of a url that ran as a whole, being the
+	 * total duration of the module's tests. Nothing is recorded should any of
+	 * the url's tests not belong to a module, as the url cannot then be split
+	 * without those tests being left out, nor should the tests not have run to
+	 * completion.
+	 *
+	 * @param time
+	 *            when the url's result was received in milliseconds.
+	 * @param url
+	 *            the url.
+	 * @param jsTestResult
+	 *            the url's result.
+	 */
+	public void record(final long time, final URL url,
+			final JSTestResult jsTestResult) {
+		if (jsTestResult.getRunMillis() < 0
+				|| jsTestResult.getTestCaseResults().isEmpty()) {
+			return;
+		}
+		final Map<String, JSTestCaseResult> modules = new LinkedHashMap<String, JSTestCaseResult>();
+		for (final JSTestCaseResult jsTestCaseResult : jsTestResult
+				.getTestCaseResults()) {
+			final String moduleName = jsTestCaseResult.getModuleName();
+			if (moduleName == null) {
+				return;
+			}
+			final JSTestCaseResult module = modules.get(moduleName);
+			modules.put(moduleName, module == null ? jsTestCaseResult
+					: new JSTestCaseResult(moduleName, null, module
+							.getFailures() + jsTestCaseResult.getFailures(),
+							module.getPasses() + jsTestCaseResult.getPasses(),
+							module.getDuration()
+									+ jsTestCaseResult.getDuration(), null));
+		}
+		for (final JSTestCaseResult module : modules.values()) {
+			timingStore.record(new JSTestTiming(time, getModulePath(url,
+					module.getModuleName()), module.getDuration(), -1L, module
+					.getDuration(), -1L, module.getPasses(), module
+					.getFailures()));
+		}
+	}
+
+	/**
+	 * Get the path that a module of a url is timed by.
+	 *
+	 * @param url
+	 *            the url.
+	 * @param moduleName
+	 *            the name of the module.
+	 * @return the path.
+	 */
+	private static String getModulePath(final URL url, final String moduleName) {
+		try {
+			return JSTestSuiteRunnerService.getTimingPath(getModuleUrl(url,
+					moduleName));
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	public JSTestTimingStore getTimingStore() {
+		return timingStore;
+	}
+
+	public JSTestDependencies getDependencies() {
+		return dependencies;
+	}
+
+	public long getMinDurationMillis() {
+		return minDurationMillis;
+	}
+}
@@ -0,0 +1,407 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestCaseResult;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestResult;
+
+/**
+ * Keeps the most recent result of each test url along with a hash of the files
+ * that the url depends on, as determined by {@link JSTestDependencies}, so
+ * that the result can be reused while none of them have changed. Urls are
+ * keyed by their path so that results hold regardless of the host and port
+ * used.
+ * <p>
+ * Results are appended to a file with a line per result. As with
+ * {@link JSTestTimingStore} the file is locked while it is written or read, so
+ * that processes sharing it do not trip over each other, and it is compacted
+ * once it holds many more results than are kept.
+ */
+public class JSTestResultCache {
+
+	/**
+	 * A result of a url along with the hash of what it depended on.
+	 */
+	private static class Entry {
+		private final long time;
+		private final String path;
+		private final String hash;
+		private final JSTestResult jsTestResult;
+
+		public Entry(final long time, final String path, final String hash,
+				final JSTestResult jsTestResult) {
+			this.time = time;
+			this.path = path;
+			this.hash = hash;
+			this.jsTestResult = jsTestResult;
+		}
+
+		/**
+		 * Parse an entry from a line of the file.
+		 * 
+		 * @param line
+		 *            the line.
+		 * @return the entry or null if the line cannot be understood.
+		 */
+		static Entry parse(final String line) {
+			Long time = null;
+			String path = null;
+			String hash = null;
+			Integer failures = null;
+			Integer passes = null;
+			String message = null;
+			long loadMillis = -1L;
+			long runMillis = -1L;
+			final List<JSTestCaseResult> testCaseResults = new ArrayList<JSTestCaseResult>();
+			try {
+				final JsonParser jp = new JsonFactory().createJsonParser(line);
+				try {
+					if (jp.nextToken() != JsonToken.START_OBJECT) {
+						return null;
+					}
+					while (jp.nextToken() != JsonToken.END_OBJECT) {
+						final String fieldname = jp.getCurrentName();
+						jp.nextToken();
+						if (fieldname.equals("time")) {
+							time = jp.getLongValue();
+						} else if (fieldname.equals("path")) {
+							path = jp.getText();
+						} else if (fieldname.equals("hash")) {
+							hash = jp.getText();
+						} else if (fieldname.equals("failures")) {
+							failures = jp.getIntValue();
+						} else if (fieldname.equals("passes")) {
+							passes = jp.getIntValue();
+						} else if (fieldname.equals("message")) {
+							message = jp.getText();
+						} else if (fieldname.equals("loadTime")) {
+							loadMillis = jp.getLongValue();
+						} else if (fieldname.equals("runTime")) {
+							runMillis = jp.getLongValue();
+						} else if (fieldname.equals("tests")
+								&& jp.getCurrentToken() == JsonToken.START_ARRAY) {
+							while (jp.nextToken() == JsonToken.START_OBJECT) {
+								testCaseResults.add(parseTestCaseResult(jp));
+							}
+						} else {
+							jp.skipChildren();
+						}
+					}
+				} finally {
+					jp.close();
+				}
+			} catch (IOException e) {
+				return null;
+			} catch (RuntimeException e) {
+				return null;
+			}
+			if (time == null || path == null || hash == null
+					|| failures == null || passes == null || message == null) {
+				return null;
+			}
+			return new Entry(time, path, hash, new JSTestResult.Builder(
+					failures, passes, message).testCaseResults(testCaseResults)
+					.loadMillis(loadMillis).runMillis(runMillis).cached(true)
+					.build());
+		}
+
+		private static JSTestCaseResult parseTestCaseResult(final JsonParser jp)
+				throws IOException {
+			String moduleName = null;
+			String testName = null;
+			int failures = 0;
+			int passes = 0;
+			long duration = 0L;
+			String message = "";
+			while (jp.nextToken() != JsonToken.END_OBJECT) {
+				final String fieldname = jp.getCurrentName();
+				final JsonToken token = jp.nextToken();
+				if (token == JsonToken.VALUE_NULL) {
+					continue;
+				} else if (fieldname.equals("moduleName")) {
+					moduleName = jp.getText();
+				} else if (fieldname.equals("testName")) {
+					testName = jp.getText();
+				} else if (fieldname.equals("failures")) {
+					failures = jp.getIntValue();
+				} else if (fieldname.equals("passes")) {
+					passes = jp.getIntValue();
+				} else if (fieldname.equals("duration")) {
+					duration = jp.getLongValue();
+				} else if (fieldname.equals("message")) {
+					message = jp.getText();
+				} else {
+					jp.skipChildren();
+				}
+			}
+			if (testName == null) {
+				throw new IOException("A test has no name");
+			}
+			return new JSTestCaseResult(moduleName, testName, failures, passes,
+					duration, message);
+		}
+
+		/**
+		 * Format the entry as a line of the file. Line breaks within the
+		 * result are escaped.
+		 * 
+		 * @return the line.
+		 */
+		String format() {
+			final StringWriter writer = new StringWriter();
+			try {
+				final JsonGenerator jg = new JsonFactory()
+						.createJsonGenerator(writer);
+				jg.writeStartObject();
+				jg.writeNumberField("time", time);
+				jg.writeStringField("path", path);
+				jg.writeStringField("hash", hash);
+				jg.writeNumberField("failures", jsTestResult.getFailures());
+				jg.writeNumberField("passes", jsTestResult.getPasses());
+				jg.writeStringField("message", jsTestResult.getMessage());
+				jg.writeNumberField("loadTime", jsTestResult.getLoadMillis());
+				jg.writeNumberField("runTime", jsTestResult.getRunMillis());
+				jg.writeArrayFieldStart("tests");
+				for (final JSTestCaseResult jsTestCaseResult : jsTestResult
+						.getTestCaseResults()) {
+					jg.writeStartObject();
+					jg.writeStringField("moduleName",
+							jsTestCaseResult.getModuleName());
+					jg.writeStringField("testName",
+							jsTestCaseResult.getTestName());
+					jg.writeNumberField("failures",
+							jsTestCaseResult.getFailures());
+					jg.writeNumberField("passes", jsTestCaseResult.getPasses());
+					jg.writeNumberField("duration",
+							jsTestCaseResult.getDuration());
+					jg.writeStringField("message",
+							jsTestCaseResult.getMessage());
+					jg.writeEndObject();
+				}
+				jg.writeEndArray();
+				jg.writeEndObject();
+				jg.close();
+			} catch (IOException e) {
+				// Writing to a string does not fail.
+				throw new IllegalStateException(e);
+			}
+			return writer.toString() + "\n";
+		}
+	}
+
+	/**
+	 * The file is compacted once it holds this many times more results than
+	 * are kept.
+	 */
+	private static final int COMPACTION_RATIO = 4;
+
+	private static final Logger LOGGER = Logger
+			.getLogger(JSTestResultCache.class.getName());
+
+	/**
+	 * Load the results from a file. A file that does not exist yields an empty
+	 * cache, and lines that cannot be understood, such as one being written,
+	 * are skipped.
+	 * 
+	 * @param file
+	 *            the file.
+	 * @param dependencies
+	 *            determines the files that urls depend on.
+	 * @return the cache.
+	 */
+	public static JSTestResultCache load(final File file,
+			final JSTestDependencies dependencies) {
+		final JSTestResultCache cache = new JSTestResultCache(file,
+				dependencies);
+		try {
+			cache.log.read(new JSTestAppendLog.LineReader() {
+				public void read(final String line) {
+					final Entry entry = Entry.parse(line);
+					if (entry != null) {
+						cache.entries.put(entry.path, entry);
+					}
+				}
+			});
+		} catch (IOException e) {
+			LOGGER.warning("Problem reading the results in " + file + ": "
+					+ e.getMessage());
+		}
+		return cache;
+	}
+
+	private final JSTestAppendLog log;
+
+	private final JSTestDependencies dependencies;
+
+	/**
+	 * The most recent result of each url, keyed by path.
+	 */
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	/**
+	 * Results yet to be written.
+	 */
+	private final List<Entry> unwrittenEntries = new ArrayList<Entry>();
+
+	/**
+	 * @param file
+	 *            the file that results are appended to.
+	 * @param dependencies
+	 *            determines the files that urls depend on.
+	 */
+	public JSTestResultCache(final File file,
+			final JSTestDependencies dependencies) {
+		this.log = new JSTestAppendLog(file);
+		this.dependencies = dependencies;
+	}
+
+	/**
+	 * Hash the files that a url depends on, along with their paths so that a
+	 * missing file that later appears changes the hash.
+	 * 
+	 * @param url
+	 *            the url.
+	 * @return the hash or null if the test document cannot be found.
+	 * @throws IOException
+	 *             if a file cannot be read.
+	 */
+	public String hash(final URL url) throws IOException {
+		final List<String> paths = dependencies.getDependencies(url);
+		if (paths == null) {
+			return null;
+		}
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		for (final String path : paths) {
+			digest.update((path + "\n").getBytes("UTF-8"));
+			final File dependency = dependencies.findFile(path);
+			if (dependency != null) {
+				digest.update(JSTestDependencies.read(dependency));
+			}
+		}
+
+		final StringBuilder hash = new StringBuilder();
+		for (final byte b : digest.digest()) {
+			hash.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+					Character.forDigit(b & 0xf, 16));
+		}
+		return hash.toString();
+	}
+
+	/**
+	 * Get the result of a url provided that what it depends on is unchanged.
+	 * 
+	 * @param path
+	 *            the path of the url.
+	 * @param hash
+	 *            the hash of what the url depends on now.
+	 * @return the result, marked as cached, or null if there is none.
+	 */
+	public synchronized JSTestResult getJsTestResult(final String path,
+			final String hash) {
+		final Entry entry = entries.get(path);
+		return entry != null && entry.hash.equals(hash) ? entry.jsTestResult
+				: null;
+	}
+
+	/**
+	 * Record the result of a url, to be written when next flushed.
+	 * 
+	 * @param path
+	 *            the path of the url.
+	 * @param hash
+	 *            the hash of what the url depended on.
+	 * @param jsTestResult
+	 *            the result.
+	 */
+	public synchronized void record(final String path, final String hash,
+			final JSTestResult jsTestResult) {
+		final Entry entry = new Entry(System.currentTimeMillis(), path, hash,
+				new JSTestResult.Builder(jsTestResult.getFailures(),
+						jsTestResult.getPasses(), jsTestResult.getMessage())
+						.testCaseResults(jsTestResult.getTestCaseResults())
+						.loadMillis(jsTestResult.getLoadMillis())
+						.runMillis(jsTestResult.getRunMillis()).cached(true)
+						.build());
+		entries.put(path, entry);
+		unwrittenEntries.add(entry);
+	}
+
+	/**
+	 * Append the results recorded since last flushed to the file. Should the
+	 * file have grown large then it is rewritten with just the most recent
+	 * result of each url instead.
+	 * 
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public synchronized void flush() throws IOException {
+		final List<String> lines = new ArrayList<String>();
+		for (final Entry entry : unwrittenEntries) {
+			lines.add(entry.format());
+		}
+		log.append(lines, COMPACTION_RATIO * Math.max(1, entries.size()),
+				new JSTestAppendLog.Compactor() {
+					public List<String> compact(final List<String> lines) {
+						final Map<String, Entry> current = new HashMap<String, Entry>();
+						for (final String line : lines) {
+							final Entry entry = Entry.parse(line);
+							if (entry != null) {
+								current.put(entry.path, entry);
+							}
+						}
+						final List<String> keptLines = new ArrayList<String>();
+						for (final Entry entry : current.values()) {
+							keptLines.add(entry.format());
+						}
+						return keptLines;
+					}
+				});
+		unwrittenEntries.clear();
+	}
+
+	public File getFile() {
+		return log.getFile();
+	}
+
+	public JSTestDependencies getDependencies() {
+		return dependencies;
+	}
+}
@@ -20,15 +20,34 @@
 package org.codehaus.jstestrunner;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+import org.codehaus.jstestrunner.JSTestTimingStore.JSTestTiming;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestCaseResult;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestProgress;
 import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestResult;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestResultListener;
 import org.codehaus.jstestrunner.jetty.JSTestResultServer;
+import org.codehaus.jstestrunner.jetty.JSTestWorkQueueHandler;
 import org.codehaus.plexus.util.DirectoryScanner;
 
 /**
@@ -62,6 +81,21 @@ public class JSTestSuiteRunnerService {
 		return strippedUrlPath;
 	}
 
+	/**
+	 * Get the path that a url is timed by, being its tidied path followed by
+	 * any query so that urls running parts of the same test document, such as
+	 * its modules, are timed apart.
+	 * 
+	 * @param url
+	 *            the url.
+	 * @return the path.
+	 */
+	public static String getTimingPath(final URL url) {
+		final String query = url.getQuery();
+		return query != null ? getFormattedPath(url) + "?" + query
+				: getFormattedPath(url);
+	}
+
 	/**
 	 * Convert an array of relative file paths to URLs.
 	 * 
@@ -104,14 +138,521 @@ public class JSTestSuiteRunnerService {
 		return includedUrls;
 	}
 
+	/**
+	 * Estimate how long urls will take from the median of their recent passing
+	 * durations. Urls without recorded durations are expected to take the
+	 * median of the others.
+	 * 
+	 * @param urls
+	 *            the urls.
+	 * @param timingStore
+	 *            the timings of urls in earlier runs.
+	 * @return the estimates in milliseconds keyed by url, or null if there are
+	 *         no durations to go by.
+	 */
+	private static Map<String, Long> estimateDurations(final List<URL> urls,
+			final JSTestTimingStore timingStore) {
+		final Map<String, Long> estimates = new HashMap<String, Long>();
+		final List<Long> knownEstimates = new ArrayList<Long>();
+		for (final URL url : urls) {
+			final long estimate = timingStore.getPercentile(
+					getTimingPath(url), 50);
+			if (estimate >= 0) {
+				estimates.put(url.toString(), estimate);
+				knownEstimates.add(estimate);
+			}
+		}
+		if (knownEstimates.isEmpty()) {
+			return null;
+		}
+		Collections.sort(knownEstimates);
+		final long defaultEstimate = knownEstimates
+				.get((knownEstimates.size() - 1) / 2);
+		for (final URL url : urls) {
+			if (!estimates.containsKey(url.toString())) {
+				estimates.put(url.toString(), defaultEstimate);
+			}
+		}
+		return estimates;
+	}
+
+	/**
+	 * Order urls so that those expected to take longest come first. As
+	 * execution servers take the next url whenever they finish with one, this
+	 * leaves the quickest urls to fill in at the end so that the execution
+	 * servers finish at about the same time. Urls expected to take the same
+	 * time keep their order.
+	 * 
+	 * @param urls
+	 *            the urls.
+	 * @param timingStore
+	 *            the timings of urls in earlier runs.
+	 * @return the ordered urls.
+	 */
+	public static List<URL> orderLongestFirst(final List<URL> urls,
+			final JSTestTimingStore timingStore) {
+		final Map<String, Long> estimates = estimateDurations(urls, timingStore);
+		if (estimates == null) {
+			return urls;
+		}
+		final List<URL> orderedUrls = new ArrayList<URL>(urls);
+		Collections.sort(orderedUrls, new Comparator<URL>() {
+			public int compare(final URL url1, final URL url2) {
+				return estimates.get(url2.toString()).compareTo(
+						estimates.get(url1.toString()));
+			}
+		});
+		return orderedUrls;
+	}
+
+	/**
+	 * Select the urls of one of a number of shards, such that each url belongs
+	 * to exactly one shard. Given the timings of urls, the urls are packed into
+	 * shards expected to take about the same time, longest first into the
+	 * shard with the least to do. Otherwise urls are assigned by a hash of
+	 * their paths. Either way the selection depends only upon the paths of the
+	 * urls and the timings, so every shard must be given the same timings.
+	 * 
+	 * @param urls
+	 *            the urls.
+	 * @param shardIndex
+	 *            the shard to select, counting from 0.
+	 * @param shardCount
+	 *            the number of shards.
+	 * @param timingStore
+	 *            the timings of urls in earlier runs, or null if the urls are
+	 *            to be assigned by hash.
+	 * @return the urls of the shard in their original order.
+	 */
+	public static List<URL> selectShard(final List<URL> urls,
+			final int shardIndex, final int shardCount,
+			final JSTestTimingStore timingStore) {
+		final Map<String, Long> estimates = timingStore != null ? estimateDurations(
+				urls, timingStore) : null;
+
+		final Set<String> shardUrls = new HashSet<String>();
+		if (estimates != null) {
+			final List<URL> orderedUrls = new ArrayList<URL>(urls);
+			Collections.sort(orderedUrls, new Comparator<URL>() {
+				public int compare(final URL url1, final URL url2) {
+					final int order = estimates.get(url2.toString()).compareTo(
+							estimates.get(url1.toString()));
+					return order != 0 ? order : getFormattedPath(url1)
+							.compareTo(getFormattedPath(url2));
+				}
+			});
+			final long[] shardEstimates = new long[shardCount];
+			for (final URL url : orderedUrls) {
+				int leastShard = 0;
+				for (int i = 1; i < shardCount; ++i) {
+					if (shardEstimates[i] < shardEstimates[leastShard]) {
+						leastShard = i;
+					}
+				}
+				shardEstimates[leastShard] += estimates.get(url.toString());
+				if (leastShard == shardIndex) {
+					shardUrls.add(url.toString());
+				}
+			}
+		} else {
+			for (final URL url : urls) {
+				if ((getFormattedPath(url).hashCode() & Integer.MAX_VALUE)
+						% shardCount == shardIndex) {
+					shardUrls.add(url.toString());
+				}
+			}
+		}
+
+		final List<URL> selectedUrls = new ArrayList<URL>(shardUrls.size());
+		for (final URL url : urls) {
+			if (shardUrls.contains(url.toString())) {
+				selectedUrls.add(url);
+			}
+		}
+		return selectedUrls;
+	}
+
+	/**
+	 * Select the urls affected by changed files, being those that depend on
+	 * any of them. A changed file matches a file that a url depends on when it
+	 * is that file or when its path ends with the path that the file is
+	 * served by, so that a file within a source folder matches the copy of it
+	 * within a resource base. Urls whose dependencies cannot be determined are
+	 * selected.
+	 * 
+	 * @param urls
+	 *            the urls.
+	 * @param dependencies
+	 *            determines the files that urls depend on.
+	 * @param changedFiles
+	 *            the changed files.
+	 * @return the affected urls in their original order.
+	 */
+	public static List<URL> selectAffected(final List<URL> urls,
+			final JSTestDependencies dependencies,
+			final Collection<File> changedFiles) {
+		final Set<File> changedCanonicalFiles = new HashSet<File>();
+		final List<String> changedPaths = new ArrayList<String>(
+				changedFiles.size());
+		for (final File changedFile : changedFiles) {
+			try {
+				changedCanonicalFiles.add(changedFile.getCanonicalFile());
+			} catch (IOException e) {
+				// Matched by its path alone.
+			}
+			changedPaths.add("/"
+					+ changedFile.getPath().replace(File.separatorChar, '/'));
+		}
+
+		final List<URL> affectedUrls = new ArrayList<URL>();
+		for (final URL url : urls) {
+			List<String> paths = null;
+			try {
+				paths = dependencies.getDependencies(url);
+			} catch (IOException e) {
+				LOGGER.warning("Unable to determine what " + url
+						+ " depends on: " + e);
+			}
+			boolean affected = paths == null;
+			for (int i = 0; !affected && i < paths.size(); ++i) {
+				final String path = paths.get(i);
+				final File dependency = dependencies.findFile(path);
+				try {
+					affected = dependency != null
+							&& changedCanonicalFiles.contains(dependency
+									.getCanonicalFile());
+				} catch (IOException e) {
+					// Matched by its path alone.
+				}
+				for (int j = 0; !affected && j < changedPaths.size(); ++j) {
+					affected = changedPaths.get(j).endsWith("/" + path);
+				}
+			}
+			if (affected) {
+				affectedUrls.add(url);
+			}
+		}
+		LOGGER.info("Selected " + affectedUrls.size() + " of " + urls.size()
+				+ " test urls as affected by " + changedFiles.size()
+				+ " changed files");
+		return affectedUrls;
+	}
+
+	/**
+	 * Select the urls affected by files modified since the urls last ran, as
+	 * told by their timings. Urls that have not run before or that last
+	 * failed are selected too, as are urls whose dependencies cannot be
+	 * determined.
+	 * 
+	 * @param urls
+	 *            the urls.
+	 * @param dependencies
+	 *            determines the files that urls depend on.
+	 * @param timingStore
+	 *            the timings of urls in earlier runs.
+	 * @return the affected urls in their original order.
+	 */
+	public static List<URL> selectModified(final List<URL> urls,
+			final JSTestDependencies dependencies,
+			final JSTestTimingStore timingStore) {
+		final List<URL> affectedUrls = new ArrayList<URL>();
+		for (final URL url : urls) {
+			final List<JSTestTiming> timings = timingStore
+					.getTimings(getTimingPath(url));
+			List<String> paths = null;
+			try {
+				paths = dependencies.getDependencies(url);
+			} catch (IOException e) {
+				LOGGER.warning("Unable to determine what " + url
+						+ " depends on: " + e);
+			}
+			boolean affected = timings.isEmpty() || paths == null;
+			if (!affected) {
+				final JSTestTiming lastTiming = timings.get(timings.size() - 1);
+				// Files modified while the url ran may not have been seen.
+				final long lastRunTime = lastTiming.getTime()
+						- Math.max(0L, lastTiming.getDurationMillis());
+				affected = lastTiming.getFailures() > 0;
+				for (int i = 0; !affected && i < paths.size(); ++i) {
+					final File dependency = dependencies.findFile(paths.get(i));
+					affected = dependency != null
+							&& dependency.lastModified() >= lastRunTime;
+				}
+			}
+			if (affected) {
+				affectedUrls.add(url);
+			}
+		}
+		LOGGER.info("Selected " + affectedUrls.size() + " of " + urls.size()
+				+ " test urls as affected by files modified since they last ran");
+		return affectedUrls;
+	}
+
 	private final JSTestResultServer jSTestResultServer;
 
-	private final JSTestExecutionServer jSTestExecutionServer;
+	private final List<JSTestExecutionServer> jSTestExecutionServers;
+
+	/**
+	 * The urls to submit to the result server's work queue.
+	 */
+	private final List<URL> queuedUrls;
+
+	/**
+	 * The number of times that execution servers may be restarted having
+	 * exited unexpectedly.
+	 */
+	private final int maxRespawns;
+
+	/**
+	 * The number of times that execution servers have been restarted.
+	 */
+	private final AtomicInteger respawns = new AtomicInteger();
+
+	/**
+	 * How long a url may go without making progress before its execution
+	 * server is considered to have hung, or 0 if hangs are not detected.
+	 */
+	private final long hangTimeoutMillis;
+
+	/**
+	 * Detects hangs, and processes holding too much memory, while tests are
+	 * running.
+	 */
+	private ScheduledExecutorService monitor;
+
+	/**
+	 * How long the tests of each url may take to complete.
+	 */
+	private final JSTestTimeouts timeouts;
+
+	/**
+	 * Where the timings of urls are recorded, or null if they are not.
+	 */
+	private final JSTestTimingStore timingStore;
+
+	/**
+	 * Records the timings of urls while tests are running.
+	 */
+	private JSTestResultListener timingRecorder;
+
+	/**
+	 * Where the results of urls are kept for reuse while what they depend on
+	 * is unchanged, or null if they are not.
+	 */
+	private final JSTestResultCache resultCache;
+
+	/**
+	 * Records the results of urls while tests are running.
+	 */
+	private JSTestResultListener resultRecorder;
+
+	/**
+	 * Splits urls that take long into a url per module, or null if urls are
+	 * not split.
+	 */
+	private final JSTestModuleSplitter moduleSplitter;
+
+	/**
+	 * The url that each url running a module was split from, keyed by the
+	 * string form of the module's url. Established when tests begin.
+	 */
+	private final Map<String, URL> splitUrlsByModuleUrl = new ConcurrentHashMap<String, URL>();
+
+	/**
+	 * Groups urls that take little time into batches, or null if urls are not
+	 * batched.
+	 */
+	private final JSTestBatcher batcher;
+
+	/**
+	 * The urls of the batches submitted, keyed by their string form.
+	 * Established when tests begin.
+	 */
+	private final Map<String, URL> batchUrls = new ConcurrentHashMap<String, URL>();
+
+	/**
+	 * Completes batches while tests are running.
+	 */
+	private JSTestResultListener batchCompleter;
+
+	/**
+	 * Available while any of the execution servers are.
+	 */
+	private final TestResultProducer anyJSTestExecutionServer = new TestResultProducer() {
+		public boolean isAvailable() {
+			for (final JSTestExecutionServer jSTestExecutionServer : jSTestExecutionServers) {
+				if (jSTestExecutionServer.isAvailable()) {
+					return true;
+				}
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * The execution server responsible for each url, keyed by the url's string
+	 * form. Established when tests begin.
+	 */
+	private final Map<String, JSTestExecutionServer> jSTestExecutionServersByUrl = new HashMap<String, JSTestExecutionServer>();
+
+	/**
+	 * Builds a service. Only the servers are required; urls are otherwise
+	 * neither queued, respawned, checked for hangs, recorded, cached, split nor
+	 * batched.
+	 */
+	public static class Builder {
+		private final JSTestResultServer jSTestResultServer;
+		private final List<JSTestExecutionServer> jSTestExecutionServers;
+		private List<URL> queuedUrls = Collections.emptyList();
+		private int maxRespawns;
+		private long hangTimeoutMillis;
+		private JSTestTimeouts timeouts = new JSTestTimeouts(
+				JSTestWorkQueueHandler.DEFAULT_TIMEOUT_MILLIS);
+		private JSTestTimingStore timingStore;
+		private JSTestResultCache resultCache;
+		private JSTestModuleSplitter moduleSplitter;
+		private JSTestBatcher batcher;
+
+		/**
+		 * @param jSTestResultServer
+		 *            the server that all execution servers post their results
+		 *            to.
+		 * @param jSTestExecutionServers
+		 *            the execution servers, of which there must be at least
+		 *            one.
+		 */
+		public Builder(final JSTestResultServer jSTestResultServer,
+				final List<JSTestExecutionServer> jSTestExecutionServers) {
+			this.jSTestResultServer = jSTestResultServer;
+			this.jSTestExecutionServers = jSTestExecutionServers;
+		}
+
+		/**
+		 * @param queuedUrls
+		 *            the urls that execution servers request from the result
+		 *            server's work queue.
+		 * @return this builder.
+		 */
+		public Builder queuedUrls(final List<URL> queuedUrls) {
+			this.queuedUrls = queuedUrls;
+			return this;
+		}
+
+		/**
+		 * @param maxRespawns
+		 *            the number of times that execution servers may be
+		 *            restarted having exited unexpectedly.
+		 * @return this builder.
+		 */
+		public Builder maxRespawns(final int maxRespawns) {
+			this.maxRespawns = maxRespawns;
+			return this;
+		}
+
+		/**
+		 * @param hangTimeoutMillis
+		 *            how long a url may go without making progress before its
+		 *            execution server is killed, or 0 to never do so.
+		 * @return this builder.
+		 */
+		public Builder hangTimeoutMillis(final long hangTimeoutMillis) {
+			this.hangTimeoutMillis = hangTimeoutMillis;
+			return this;
+		}
+
+		/**
+		 * @param timeouts
+		 *            how long the tests of each queued url may take to
+		 *            complete. The timings that they are derived from, if any,
+		 *            are where the timings of urls are then recorded.
+		 * @return this builder.
+		 */
+		public Builder timeouts(final JSTestTimeouts timeouts) {
+			this.timeouts = timeouts;
+			this.timingStore = timeouts.getTimingStore();
+			return this;
+		}
+
+		/**
+		 * @param timingStore
+		 *            where the timings of queued urls are recorded after each
+		 *            run, or null if they are not.
+		 * @return this builder.
+		 */
+		public Builder timingStore(final JSTestTimingStore timingStore) {
+			this.timingStore = timingStore;
+			return this;
+		}
+
+		/**
+		 * @param resultCache
+		 *            where the results of queued urls are kept for reuse while
+		 *            what they depend on is unchanged, or null if they are
+		 *            not.
+		 * @return this builder.
+		 */
+		public Builder resultCache(final JSTestResultCache resultCache) {
+			this.resultCache = resultCache;
+			return this;
+		}
+
+		/**
+		 * @param moduleSplitter
+		 *            splits queued urls that take long into a url per module,
+		 *            or null if they are not split. The modules of urls are
+		 *            timed in its timing store.
+		 * @return this builder.
+		 */
+		public Builder moduleSplitter(final JSTestModuleSplitter moduleSplitter) {
+			this.moduleSplitter = moduleSplitter;
+			return this;
+		}
+
+		/**
+		 * @param batcher
+		 *            groups queued urls that take little time into batches
+		 *            that are each run by a single page load, or null if they
+		 *            are not batched.
+		 * @return this builder.
+		 */
+		public Builder batcher(final JSTestBatcher batcher) {
+			this.batcher = batcher;
+			return this;
+		}
+
+		/**
+		 * @return the service.
+		 */
+		public JSTestSuiteRunnerService build() {
+			return new JSTestSuiteRunnerService(this);
+		}
+	}
 
+    /**
+     * @param jSTestResultServer The server that the execution server posts its results to
+     * @param jSTestExecutionServer The execution server
+     * @deprecated use {@link Builder}
+     */
+    @Deprecated
     public JSTestSuiteRunnerService(
             final JSTestResultServer jSTestResultServer, final JSTestExecutionServer jSTestExecutionServer) {
-        this.jSTestResultServer = jSTestResultServer;
-        this.jSTestExecutionServer = jSTestExecutionServer;
+        this(new Builder(jSTestResultServer, Collections.singletonList(jSTestExecutionServer)));
+    }
+
+    private JSTestSuiteRunnerService(final Builder builder) {
+        if (builder.jSTestExecutionServers.isEmpty()) {
+            throw new IllegalArgumentException("At least one execution server is required");
+        }
+        this.jSTestResultServer = builder.jSTestResultServer;
+        this.jSTestExecutionServers = builder.jSTestExecutionServers;
+        this.queuedUrls = builder.queuedUrls;
+        this.maxRespawns = builder.maxRespawns;
+        this.hangTimeoutMillis = builder.hangTimeoutMillis;
+        this.timeouts = builder.timeouts;
+        this.timingStore = builder.timingStore;
+        this.resultCache = builder.resultCache;
+        this.moduleSplitter = builder.moduleSplitter;
+        this.batcher = builder.batcher;
     }
 
 	/**
@@ -121,9 +662,44 @@ public class JSTestSuiteRunnerService {
 	 *             if something goes wrong.
 	 */
 	public void afterTests() throws Exception {
+		if (monitor != null) {
+			monitor.shutdownNow();
+			monitor = null;
+		}
+		if (timingRecorder != null) {
+			jSTestResultServer.getJsTestResultHandler()
+					.removeJsTestResultListener(timingRecorder);
+			timingRecorder = null;
+			try {
+				timingStore.flush();
+			} catch (IOException e) {
+				LOGGER.warning("Unable to record the timings of tests: " + e);
+			}
+		}
+		if (batchCompleter != null) {
+			jSTestResultServer.getJsTestResultHandler()
+					.removeJsTestResultListener(batchCompleter);
+			batchCompleter = null;
+		}
+		for (final URL batchUrl : batchUrls.values()) {
+			jSTestResultServer.getJsTestResultHandler().removeJsTestResult(
+					batchUrl);
+		}
+		if (resultRecorder != null) {
+			jSTestResultServer.getJsTestResultHandler()
+					.removeJsTestResultListener(resultRecorder);
+			resultRecorder = null;
+			try {
+				resultCache.flush();
+			} catch (IOException e) {
+				LOGGER.warning("Unable to record the results of tests: " + e);
+			}
+		}
 		try {
-			// Tear down the test execution server.
-			jSTestExecutionServer.stop();
+			// Tear down the test execution servers.
+			for (final JSTestExecutionServer jSTestExecutionServer : jSTestExecutionServers) {
+				jSTestExecutionServer.stop();
+			}
 		} finally {
 			// Tear down the test results server.
 			jSTestResultServer.stop();
@@ -138,15 +714,726 @@ public class JSTestSuiteRunnerService {
 	 * 
 	 */
 	public void beforeTests() throws Exception {
-		// Establish the test results server.
+		// Establish the test results server and the work it hands out. The
+		// server may have been used before so forget its earlier results.
 		jSTestResultServer.start();
+		for (final URL url : queuedUrls) {
+			jSTestResultServer.getJsTestResultHandler().removeJsTestResult(url);
+			jSTestResultServer.getJsTestWorkQueueHandler().setTimeoutMillis(url,
+					timeouts.getTimeoutMillis(url));
+		}
+		splitUrlsByModuleUrl.clear();
+		batchUrls.clear();
+		if (timingStore != null) {
+			timingRecorder = newTimingRecorder();
+			jSTestResultServer.getJsTestResultHandler().addJsTestResultListener(
+					timingRecorder);
+		}
+
+		// Reuse the results of those urls that are unchanged, handing out the
+		// remainder.
+		List<URL> submittedUrls = queuedUrls;
+		if (resultCache != null) {
+			submittedUrls = new ArrayList<URL>(queuedUrls.size());
+			final Map<String, JSTestResult> cachedResults = new HashMap<String, JSTestResult>();
+			final Map<String, String> hashes = new HashMap<String, String>();
+			for (final URL url : queuedUrls) {
+				final String path = getFormattedPath(url);
+				String hash = null;
+				try {
+					hash = resultCache.hash(url);
+				} catch (IOException e) {
+					LOGGER.warning("Unable to determine whether " + path
+							+ " has changed: " + e);
+				}
+				final JSTestResult cachedResult = hash != null ? resultCache
+						.getJsTestResult(path, hash) : null;
+				if (cachedResult != null) {
+					cachedResults.put(url.toString(), cachedResult);
+				} else {
+					submittedUrls.add(url);
+					if (hash != null) {
+						hashes.put(url.toString(), hash);
+					}
+				}
+			}
+			if (!cachedResults.isEmpty()) {
+				LOGGER.info("Reusing the results of " + cachedResults.size()
+						+ " of " + queuedUrls.size()
+						+ " test urls as they are unchanged");
+			}
+			resultRecorder = newResultRecorder(hashes);
+			jSTestResultServer.getJsTestResultHandler().addJsTestResultListener(
+					resultRecorder);
+			for (final Map.Entry<String, JSTestResult> cachedResult : cachedResults
+					.entrySet()) {
+				jSTestResultServer.getJsTestResultHandler().complete(
+						cachedResult.getKey(), cachedResult.getValue());
+			}
+		}
+
+		// Split those urls that take long into a url per module so that their
+		// modules can be run by several execution servers at once.
+		if (moduleSplitter != null) {
+			submittedUrls = splitByModule(submittedUrls);
+		}
+
+		// Batch those urls that take little time so that each page load runs
+		// several of them. What is left to hand out is counted as it is
+		// submitted, a batch counting once.
+		final int submissions;
+		if (batcher != null) {
+			submissions = submitBatches(submittedUrls);
+		} else {
+			jSTestResultServer.getJsTestWorkQueueHandler().submit(submittedUrls);
+			submissions = submittedUrls.size();
+		}
+
+		// Establish the test execution servers, noting which one is
+		// responsible for each url. There's no point starting more of those
+		// that request urls than there are urls left for them to request.
+		respawns.set(0);
+		jSTestExecutionServersByUrl.clear();
+		int queueServers = 0;
+		boolean monitorMemory = false;
+		for (final JSTestExecutionServer jSTestExecutionServer : jSTestExecutionServers) {
+			for (final URL url : jSTestExecutionServer.getUrls()) {
+				jSTestExecutionServersByUrl.put(url.toString(),
+						jSTestExecutionServer);
+			}
+			final URL nextTestUrl = jSTestExecutionServer.getNextTestUrl();
+			if (nextTestUrl != null) {
+				final String worker = jSTestResultServer.getWorker(nextTestUrl);
+				jSTestResultServer.getJsTestWorkQueueHandler().reset(worker);
+				jSTestResultServer.getJsTestWorkQueueHandler().setMaxDispatches(
+						worker, jSTestExecutionServer.getMaxPages());
+				monitorMemory |= jSTestExecutionServer.getMaxResidentSetSize() > 0;
+			}
+			if (jSTestExecutionServer.getUrls().isEmpty()
+					&& queueServers++ >= submissions) {
+				continue;
+			}
+			jSTestExecutionServer.setExitListener(new JSTestExecutionServer.ExitListener() {
+				public void processExited(final int exitValue, final String output) {
+					failOutstandingUrls(jSTestExecutionServer, exitValue, output);
+				}
+			});
+			jSTestExecutionServer.start();
+		}
+
+		// Look out for urls that stop making progress, and for processes that
+		// hold too much memory.
+		if (hangTimeoutMillis > 0 || monitorMemory) {
+			monitor = new ScheduledThreadPoolExecutor(1,
+					new ThreadFactory() {
+						public Thread newThread(final Runnable r) {
+							final Thread thread = new Thread(r,
+									"jstestrunner-monitor");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			final long period = hangTimeoutMillis > 0 ? Math.max(100L,
+					Math.min(1000L, hangTimeoutMillis / 2)) : 1000L;
+			monitor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					if (hangTimeoutMillis > 0) {
+						detectHangs(System.currentTimeMillis());
+					}
+					recycleLargeProcesses();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Split those urls that take long into a url per module, telling the
+	 * result handler to merge the results of their modules. Should any be
+	 * split then the urls are ordered longest first again, so that the modules
+	 * of a url are handed out according to how long each takes.
+	 * 
+	 * @param urls
+	 *            the urls.
+	 * @return the urls with those split replaced by the urls of their modules.
+	 */
+	private List<URL> splitByModule(final List<URL> urls) {
+		final List<URL> splitUrls = new ArrayList<URL>(urls.size());
+		int splits = 0;
+		for (final URL url : urls) {
+			final List<URL> moduleUrls = moduleSplitter.split(url);
+			if (moduleUrls.isEmpty()) {
+				splitUrls.add(url);
+				continue;
+			}
+			jSTestResultServer.getJsTestResultHandler().split(url, moduleUrls);
+			for (final URL moduleUrl : moduleUrls) {
+				jSTestResultServer.getJsTestWorkQueueHandler().setTimeoutMillis(
+						moduleUrl, timeouts.getTimeoutMillis(moduleUrl));
+				splitUrlsByModuleUrl.put(moduleUrl.toString(), url);
+			}
+			splitUrls.addAll(moduleUrls);
+			++splits;
+		}
+		if (splits == 0) {
+			return splitUrls;
+		}
+		LOGGER.info("Split " + splits + " of " + urls.size()
+				+ " test urls into " + (splitUrls.size() - urls.size() + splits)
+				+ " urls by module");
+		return orderLongestFirst(splitUrls, moduleSplitter.getTimingStore());
+	}
+
+	/**
+	 * Submit urls to the work queue with those that take little time grouped
+	 * into batches, each handed out as the url of a composite document that
+	 * runs its urls in turn. The urls of modules are not batched, as they were
+	 * split so as to run apart. A batch may take as long as its urls may
+	 * altogether.
+	 * 
+	 * @param urls
+	 *            the urls in the order that they are to be handed out.
+	 * @return the number of urls and batches submitted.
+	 * @throws MalformedURLException
+	 *             if the url of a batch cannot be formed.
+	 */
+	private int submitBatches(final List<URL> urls) throws MalformedURLException {
+		final JSTestWorkQueueHandler jsTestWorkQueueHandler = jSTestResultServer
+				.getJsTestWorkQueueHandler();
+		int queueServers = 0;
+		for (final JSTestExecutionServer jSTestExecutionServer : jSTestExecutionServers) {
+			if (jSTestExecutionServer.getUrls().isEmpty()) {
+				++queueServers;
+			}
+		}
+		final List<URL> batchableUrls = new ArrayList<URL>(urls.size());
+		for (final URL url : urls) {
+			if (!splitUrlsByModuleUrl.containsKey(url.toString())) {
+				batchableUrls.add(url);
+			}
+		}
+		final Map<String, List<URL>> batchesByUrl = new HashMap<String, List<URL>>();
+		for (final List<URL> batch : batcher.batch(batchableUrls, queueServers)) {
+			batchesByUrl.put(batch.get(0).toString(), batch);
+		}
+
+		int submissions = 0;
+		int batchedUrls = 0;
+		for (final URL url : urls) {
+			final List<URL> batch = batchesByUrl.get(url.toString());
+			if (batch == null && splitUrlsByModuleUrl.containsKey(url.toString())) {
+				jsTestWorkQueueHandler.submit(Collections.singletonList(url));
+			} else if (batch == null) {
+				continue;
+			} else if (batch.size() == 1) {
+				jsTestWorkQueueHandler.submit(batch);
+			} else {
+				final URL batchUrl = jSTestResultServer.getBatchUrl(batch);
+				long timeout = 0L;
+				for (final URL batchedUrl : batch) {
+					timeout += jsTestWorkQueueHandler.getTimeoutMillis(batchedUrl);
+				}
+				jSTestResultServer.getJsTestResultHandler().removeJsTestResult(
+						batchUrl);
+				jsTestWorkQueueHandler.setTimeoutMillis(batchUrl, timeout);
+				jsTestWorkQueueHandler.submitBatch(batchUrl, batch);
+				batchUrls.put(batchUrl.toString(), batchUrl);
+				batchedUrls += batch.size();
+			}
+			++submissions;
+		}
+		if (!batchUrls.isEmpty()) {
+			LOGGER.info("Batched " + batchedUrls + " of " + urls.size()
+					+ " test urls into " + batchUrls.size() + " batches");
+			batchCompleter = newBatchCompleter();
+			jSTestResultServer.getJsTestResultHandler().addJsTestResultListener(
+					batchCompleter);
+		}
+		return submissions;
+	}
+
+	/**
+	 * Create a listener that completes a batch once each of its urls has a
+	 * result, so that the batch is not failed once its execution server exits.
+	 * Should the batch be failed first instead, e.g. because it timed out or
+	 * its execution server exited, then those of its urls that had started are
+	 * failed along with it, whereas those that had yet to start are taken out
+	 * of the batch and submitted again to run by themselves.
+	 * 
+	 * @return the listener.
+	 */
+	private JSTestResultListener newBatchCompleter() {
+		final JSTestResultHandler jsTestResultHandler = jSTestResultServer
+				.getJsTestResultHandler();
+		final JSTestWorkQueueHandler jsTestWorkQueueHandler = jSTestResultServer
+				.getJsTestWorkQueueHandler();
+		return new JSTestResultListener() {
+			public void jsTestResultReceived(final String testUrl,
+					final JSTestResult jsTestResult) {
+				URL batchUrl = batchUrls.get(testUrl);
+				if (batchUrl != null) {
+					failBatchedUrls(batchUrl, jsTestResult.getMessage());
+					return;
+				}
+				try {
+					batchUrl = jsTestWorkQueueHandler.getBatchUrl(new URL(testUrl));
+				} catch (MalformedURLException e) {
+					return;
+				}
+				if (batchUrl == null
+						|| !batchUrls.containsKey(batchUrl.toString())) {
+					return;
+				}
+				final List<URL> urls = jsTestWorkQueueHandler
+						.getBatchedUrls(batchUrl);
+				for (final URL url : urls) {
+					if (!jsTestResultHandler.getJsTestResultFuture(url).isDone()) {
+						return;
+					}
+				}
+				jsTestResultHandler.complete(batchUrl.toString(),
+						new JSTestResult.Builder(0, urls.size(), "Ran "
+								+ urls.size() + " test urls").build());
+			}
 
-		// Establish the test execution server.
-		jSTestExecutionServer.start();
+			private void failBatchedUrls(final URL batchUrl,
+					final String message) {
+				final List<URL> unstartedUrls = new ArrayList<URL>();
+				for (final URL url : jsTestWorkQueueHandler
+						.getBatchedUrls(batchUrl)) {
+					if (jsTestResultHandler.getJsTestResultFuture(url).isDone()) {
+						continue;
+					}
+					if (jsTestResultHandler.getJsTestProgress(url.toString()) == null) {
+						unstartedUrls.add(url);
+					} else if (jsTestResultHandler.fail(url.toString(), message)) {
+						LOGGER.warning(url + " failed along with its batch as "
+								+ message);
+					}
+				}
+				if (!unstartedUrls.isEmpty()) {
+					LOGGER.warning("Submitting " + unstartedUrls.size()
+							+ " test urls again by themselves as their batch failed");
+					jsTestWorkQueueHandler.submit(unstartedUrls);
+				}
+			}
+		};
 	}
 
+	/**
+	 * Create a listener that records the timing of each of our queued urls as
+	 * its result is received. The duration of a url runs from it being handed
+	 * out to its result being received, or is that of its modules added
+	 * together where it was split. A url run within a batch is not handed out
+	 * by itself, so its duration is how long it took to load and run. When
+	 * urls are split, the modules of each url that runs as a whole are timed
+	 * too.
+	 * 
+	 * @return the listener.
+	 */
+	private JSTestResultListener newTimingRecorder() {
+		final Set<String> urls = new HashSet<String>();
+		for (final URL url : queuedUrls) {
+			urls.add(url.toString());
+		}
+		final Map<String, Long> splitDurations = new HashMap<String, Long>();
+		final JSTestWorkQueueHandler jsTestWorkQueueHandler = jSTestResultServer
+				.getJsTestWorkQueueHandler();
+		return new JSTestResultListener() {
+			public void jsTestResultReceived(final String testUrl,
+					final JSTestResult jsTestResult) {
+				final URL splitUrl = splitUrlsByModuleUrl.get(testUrl);
+				if ((!urls.contains(testUrl) && splitUrl == null)
+						|| jsTestResult.isCached()) {
+					return;
+				}
+				try {
+					final URL url = new URL(testUrl);
+					final long now = System.currentTimeMillis();
+					final long dispatchTime = jsTestWorkQueueHandler
+							.getDispatchTime(url);
+					final boolean split = !jSTestResultServer
+							.getJsTestResultHandler().getPartUrls(url).isEmpty();
+					long duration = dispatchTime > 0 ? now - dispatchTime : -1L;
+					if (jsTestWorkQueueHandler.getBatchUrl(url) != null) {
+						duration = jsTestResult.getLoadMillis() >= 0
+								&& jsTestResult.getRunMillis() >= 0 ? jsTestResult
+								.getLoadMillis() + jsTestResult.getRunMillis()
+								: -1L;
+					}
+					synchronized (splitDurations) {
+						if (split) {
+							final Long splitDuration = splitDurations
+									.remove(testUrl);
+							duration = splitDuration != null ? splitDuration : -1L;
+						} else if (splitUrl != null && duration >= 0) {
+							final Long splitDuration = splitDurations
+									.get(splitUrl.toString());
+							splitDurations.put(splitUrl.toString(),
+									(splitDuration != null ? splitDuration : 0L)
+											+ duration);
+						}
+					}
+					timingStore.record(new JSTestTiming(now,
+							getTimingPath(url), duration, jsTestResult
+									.getLoadMillis(), jsTestResult
+									.getRunMillis(), jsTestResult
+									.getPostLatencyMillis(), jsTestResult
+									.getPasses(), jsTestResult.getFailures()));
+					if (moduleSplitter != null && !split && splitUrl == null) {
+						moduleSplitter.record(now, url, jsTestResult);
+					}
+				} catch (MalformedURLException e) {
+					// Not one of ours.
+				}
+			}
+		};
+	}
+
+	/**
+	 * Create a listener that records the result of each of our queued urls
+	 * that ran to completion, along with the hash of what it depended on. Urls
+	 * that timed out or were failed for want of a result are not recorded, as
+	 * running them again may well yield a different result.
+	 * 
+	 * @param hashes
+	 *            the hashes of the urls to record keyed by url.
+	 * @return the listener.
+	 */
+	private JSTestResultListener newResultRecorder(
+			final Map<String, String> hashes) {
+		return new JSTestResultListener() {
+			public void jsTestResultReceived(final String testUrl,
+					final JSTestResult jsTestResult) {
+				final String hash = hashes.get(testUrl);
+				if (hash == null || jsTestResult.isCached()
+						|| jsTestResult.getRunMillis() < 0) {
+					return;
+				}
+				try {
+					resultCache.record(getFormattedPath(new URL(testUrl)),
+							hash, jsTestResult);
+				} catch (MalformedURLException e) {
+					// Not one of ours.
+				}
+			}
+		};
+	}
+
+	/**
+	 * Fail the urls that have gone without a heartbeat for longer than the hang
+	 * timeout, killing the execution servers running them so that they may be
+	 * restarted. Only urls that have sent a heartbeat are considered. The urls
+	 * that the other pages of a killed execution server were running, and
+	 * those yet to finish within the same batch, are submitted again rather
+	 * than being failed along with it.
+	 * 
+	 * @param now
+	 *            the current time in milliseconds.
+	 */
+	void detectHangs(final long now) {
+		final JSTestResultHandler jsTestResultHandler = jSTestResultServer
+				.getJsTestResultHandler();
+		final JSTestWorkQueueHandler jsTestWorkQueueHandler = jSTestResultServer
+				.getJsTestWorkQueueHandler();
+		for (final JSTestExecutionServer jSTestExecutionServer : jSTestExecutionServers) {
+			final List<String> runningUrls = new ArrayList<String>();
+			final URL nextTestUrl = jSTestExecutionServer.getNextTestUrl();
+			if (nextTestUrl != null) {
+				for (final String dispatchedUrl : jsTestWorkQueueHandler
+						.getDispatchedUrls(jSTestResultServer
+								.getWorker(nextTestUrl))) {
+					runningUrls.add(dispatchedUrl);
+					final URL batchUrl = batchUrls.get(dispatchedUrl);
+					if (batchUrl != null) {
+						for (final URL batchedUrl : jsTestWorkQueueHandler
+								.getBatchedUrls(batchUrl)) {
+							runningUrls.add(batchedUrl.toString());
+						}
+					}
+				}
+			}
+			for (final URL url : jSTestExecutionServer.getUrls()) {
+				runningUrls.add(url.toString());
+			}
+
+			for (final String runningUrl : runningUrls) {
+				final JSTestProgress jsTestProgress = jsTestResultHandler
+						.getJsTestProgress(runningUrl);
+				if (jsTestProgress == null
+						|| now - jsTestProgress.getTime() < hangTimeoutMillis) {
+					continue;
+				}
+				final StringBuilder message = new StringBuilder(
+						"Stalled with no heartbeat for ").append(
+						now - jsTestProgress.getTime()).append("ms");
+				if (jsTestProgress.getTestName() != null) {
+					message.append(" in ").append(
+							JSTestCaseResult.getName(
+									jsTestProgress.getModuleName(),
+									jsTestProgress.getTestName()));
+				}
+				message.append(" after ")
+						.append(jsTestProgress.getAssertions())
+						.append(" assertions");
+				// Failing the url may complete the tests, so the execution
+				// server is held until it has been killed lest it be stopped
+				// in the meantime. The urls running alongside it are taken
+				// from it first so that they are not failed once it exits.
+				synchronized (jSTestExecutionServer) {
+					if (jsTestResultHandler.fail(runningUrl, message.toString())) {
+						LOGGER.warning(runningUrl + " failed as " + message
+								+ "; killing its test execution process");
+						final List<URL> takenBatchUrls = new ArrayList<URL>();
+						final List<URL> unfinishedUrls = nextTestUrl != null ? takeUnfinishedUrls(
+								jSTestResultServer.getWorker(nextTestUrl),
+								runningUrl, takenBatchUrls) : Collections
+								.<URL> emptyList();
+						jSTestExecutionServer.kill();
+						resubmit(unfinishedUrls, takenBatchUrls);
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Take the urls handed out to a worker that have yet to finish, other than
+	 * one that has hung, so that they are not failed along with it. The urls
+	 * of a batch yet to finish are taken in place of the batch. The worker is
+	 * told to recycle first so that it is handed no more urls.
+	 * 
+	 * @param worker
+	 *            the worker.
+	 * @param hungUrl
+	 *            the url that has hung.
+	 * @param takenBatchUrls
+	 *            the batches that urls were taken from are added to this.
+	 * @return the urls.
+	 */
+	private List<URL> takeUnfinishedUrls(final String worker,
+			final String hungUrl, final List<URL> takenBatchUrls) {
+		final JSTestResultHandler jsTestResultHandler = jSTestResultServer
+				.getJsTestResultHandler();
+		final JSTestWorkQueueHandler jsTestWorkQueueHandler = jSTestResultServer
+				.getJsTestWorkQueueHandler();
+		jsTestWorkQueueHandler.recycle(worker);
+		final List<URL> unfinishedUrls = new ArrayList<URL>();
+		for (final String dispatchedUrl : jsTestWorkQueueHandler
+				.takeDispatchedUrls(worker)) {
+			final URL batchUrl = batchUrls.get(dispatchedUrl);
+			final List<URL> urls;
+			if (batchUrl != null) {
+				takenBatchUrls.add(batchUrl);
+				urls = jsTestWorkQueueHandler.getBatchedUrls(batchUrl);
+			} else {
+				try {
+					urls = Collections.singletonList(new URL(dispatchedUrl));
+				} catch (MalformedURLException e) {
+					continue;
+				}
+			}
+			for (final URL url : urls) {
+				if (!url.toString().equals(hungUrl)
+						&& !jsTestResultHandler.getJsTestResultFuture(url)
+								.isDone()) {
+					unfinishedUrls.add(url);
+				}
+			}
+		}
+		return unfinishedUrls;
+	}
+
+	/**
+	 * Submit urls taken from a killed execution server again, completing the
+	 * batches that they were taken from now that they are run by themselves.
+	 * 
+	 * @param urls
+	 *            the urls.
+	 * @param batchUrls
+	 *            the batches.
+	 */
+	private void resubmit(final List<URL> urls, final List<URL> batchUrls) {
+		final JSTestResultHandler jsTestResultHandler = jSTestResultServer
+				.getJsTestResultHandler();
+		if (!urls.isEmpty()) {
+			LOGGER.warning("Submitting " + urls.size()
+					+ " test urls again as they ran alongside a hung test");
+			for (final URL url : urls) {
+				jsTestResultHandler.removeJsTestProgress(url);
+			}
+			jSTestResultServer.getJsTestWorkQueueHandler().submit(urls);
+		}
+		for (final URL batchUrl : batchUrls) {
+			jsTestResultHandler.complete(batchUrl.toString(),
+					new JSTestResult.Builder(0, 0,
+							"Submitted its test urls again").build());
+		}
+	}
+
+	/**
+	 * Recycle the execution servers whose processes hold more memory than they
+	 * may. Each is told to recycle when it next requests a url, so that the
+	 * urls it has are finished with first.
+	 */
+	void recycleLargeProcesses() {
+		final JSTestWorkQueueHandler jsTestWorkQueueHandler = jSTestResultServer
+				.getJsTestWorkQueueHandler();
+		for (final JSTestExecutionServer jSTestExecutionServer : jSTestExecutionServers) {
+			final URL nextTestUrl = jSTestExecutionServer.getNextTestUrl();
+			final long maxResidentSetSize = jSTestExecutionServer
+					.getMaxResidentSetSize();
+			if (nextTestUrl == null || maxResidentSetSize <= 0) {
+				continue;
+			}
+			final String worker = jSTestResultServer.getWorker(nextTestUrl);
+			if (jsTestWorkQueueHandler.isRecycling(worker)) {
+				continue;
+			}
+			final long residentSetSize = jSTestExecutionServer
+					.getResidentSetSize();
+			if (residentSetSize > maxResidentSetSize) {
+				LOGGER.info("Recycling a test execution process holding "
+						+ residentSetSize / (1024 * 1024) + "MB of memory");
+				jsTestWorkQueueHandler.recycle(worker);
+			}
+		}
+	}
+
+	/**
+	 * Fail the urls that an execution server was responsible for and that have
+	 * no result, given that its process has exited. Those waiting on them are
+	 * woken straight away rather than waiting for their results to time out.
+	 * The urls of a batch that had yet to start are submitted again instead.
+	 * An execution server that exits cleanly having been told to recycle is
+	 * restarted without counting as a respawn, and fails nothing. Should urls
+	 * remain to be handed out then the execution server is restarted to resume
+	 * with them, so long as it has not been restarted too often. Otherwise,
+	 * should no execution server remain, they are failed too.
+	 * 
+	 * @param jSTestExecutionServer
+	 *            the execution server.
+	 * @param exitValue
+	 *            the exit value of its process.
+	 * @param output
+	 *            the most recent output of its process.
+	 */
+	void failOutstandingUrls(final JSTestExecutionServer jSTestExecutionServer,
+			final int exitValue, final String output) {
+		final JSTestResultHandler jsTestResultHandler = jSTestResultServer
+				.getJsTestResultHandler();
+		final JSTestWorkQueueHandler jsTestWorkQueueHandler = jSTestResultServer
+				.getJsTestWorkQueueHandler();
+
+		final URL nextTestUrl = jSTestExecutionServer.getNextTestUrl();
+
+		// Continue with the urls yet to be handed out using a fresh process
+		// having recycled.
+		if (nextTestUrl != null) {
+			final String worker = jSTestResultServer.getWorker(nextTestUrl);
+			final boolean recycled = jsTestWorkQueueHandler.isRecycling(worker);
+			jsTestWorkQueueHandler.reset(worker);
+			if (recycled && exitValue == 0) {
+				try {
+					if (jsTestWorkQueueHandler.isEmpty()
+							|| jSTestExecutionServer.restart()) {
+						LOGGER.fine("Recycled a test execution process");
+						return;
+					}
+				} catch (IOException e) {
+					LOGGER.warning("Unable to restart a recycled test execution process: "
+							+ e);
+				}
+			}
+		}
+
+		final StringBuilder message = new StringBuilder(
+				"The test execution process exited with ").append(exitValue);
+		if (output.length() > 0) {
+			message.append(", its last output being:\n").append(output);
+		}
+
+		if (nextTestUrl != null) {
+			for (final String dispatchedUrl : jsTestWorkQueueHandler
+					.getDispatchedUrls(jSTestResultServer.getWorker(nextTestUrl))) {
+				if (jsTestResultHandler.fail(dispatchedUrl, message.toString())) {
+					LOGGER.warning(dispatchedUrl + " failed as " + message);
+				}
+			}
+		}
+		for (final URL url : jSTestExecutionServer.getUrls()) {
+			jsTestResultHandler.fail(url.toString(), message.toString());
+		}
+
+		// Resume with the urls yet to be handed out using a fresh process.
+		if (nextTestUrl != null && !jsTestWorkQueueHandler.isEmpty()
+				&& respawns.getAndIncrement() < maxRespawns) {
+			try {
+				if (jSTestExecutionServer.restart()) {
+					LOGGER.warning("Restarted a test execution process after it exited with "
+							+ exitValue);
+					return;
+				}
+			} catch (IOException e) {
+				LOGGER.warning("Unable to restart a test execution process: " + e);
+			}
+		}
+
+		// This execution server remains available until we return.
+		for (final JSTestExecutionServer otherJSTestExecutionServer : jSTestExecutionServers) {
+			if (otherJSTestExecutionServer != jSTestExecutionServer
+					&& otherJSTestExecutionServer.isAvailable()) {
+				return;
+			}
+		}
+		for (final String queuedUrl : jsTestWorkQueueHandler.takeAll()) {
+			jsTestResultHandler.fail(queuedUrl,
+					"No test execution process remained to run this test. "
+							+ message);
+		}
+	}
+
+	/**
+	 * @return the first of the execution servers.
+	 */
 	public JSTestExecutionServer getjSTestExecutionServer() {
-		return jSTestExecutionServer;
+		return jSTestExecutionServers.get(0);
+	}
+
+	public List<JSTestExecutionServer> getjSTestExecutionServers() {
+		return jSTestExecutionServers;
+	}
+
+	public List<URL> getQueuedUrls() {
+		return queuedUrls;
+	}
+
+	public int getMaxRespawns() {
+		return maxRespawns;
+	}
+
+	public long getHangTimeoutMillis() {
+		return hangTimeoutMillis;
+	}
+
+	public JSTestTimeouts getTimeouts() {
+		return timeouts;
+	}
+
+	public JSTestTimingStore getTimingStore() {
+		return timingStore;
+	}
+
+	public JSTestResultCache getResultCache() {
+		return resultCache;
+	}
+
+	public JSTestModuleSplitter getModuleSplitter() {
+		return moduleSplitter;
+	}
+
+	public JSTestBatcher getBatcher() {
+		return batcher;
 	}
 
 	public JSTestResultServer getjSTestResultServer() {
@@ -161,6 +1448,12 @@ public class JSTestSuiteRunnerService {
 	 * @return the test result.
 	 */
 	public JSTestResult runTest(final URL url) {
-		return jSTestResultServer.getJsTestResult(url, jSTestExecutionServer);
+		TestResultProducer testResultProducer = jSTestExecutionServersByUrl
+				.get(url.toString());
+		if (testResultProducer == null) {
+			// Queued urls may be processed by any of the execution servers.
+			testResultProducer = anyJSTestExecutionServer;
+		}
+		return jSTestResultServer.getJsTestResult(url, testResultProducer);
 	}
 }
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+
+import org.codehaus.plexus.util.SelectorUtils;
+
+/**
+ * Resolves how long the tests of each url may take to complete once loaded. A
+ * timeout declared for a pattern matching the url's path is used first.
+ * Failing that, and given timings of the url passing in earlier runs, the
+ * timeout is derived from the 99th percentile of their durations multiplied by
+ * a factor, but never less than a floor. Urls running part of a test document,
+ * such as one of its modules, are timed apart from the document as a whole.
+ * Otherwise the default timeout is used.
+ */
+public class JSTestTimeouts {
+
+	private final long defaultTimeoutMillis;
+
+	/**
+	 * Timeouts keyed by the patterns of the paths that they apply to, in the
+	 * order that they are matched.
+	 */
+	private final Map<String, Long> patternTimeoutsMillis;
+
+	private final JSTestTimingStore timingStore;
+
+	private final double factor;
+
+	private final long floorMillis;
+
+	/**
+	 * @param defaultTimeoutMillis
+	 *            the timeout of urls that nothing else applies to.
+	 */
+	public JSTestTimeouts(final long defaultTimeoutMillis) {
+		this(defaultTimeoutMillis, Collections.<String, Long> emptyMap(), null,
+				0, 0L);
+	}
+
+	/**
+	 * @param defaultTimeoutMillis
+	 *            the timeout of urls that nothing else applies to.
+	 * @param patternTimeoutsMillis
+	 *            timeouts keyed by the patterns of the paths that they apply
+	 *            to, in the order that they are to be matched.
+	 * @param timingStore
+	 *            the timings of urls in earlier runs or null if timeouts are
+	 *            not to be derived from them.
+	 * @param factor
+	 *            what the 99th percentile duration of a url is multiplied by.
+	 * @param floorMillis
+	 *            the least timeout derived from durations.
+	 */
+	public JSTestTimeouts(final long defaultTimeoutMillis,
+			final Map<String, Long> patternTimeoutsMillis,
+			final JSTestTimingStore timingStore, final double factor,
+			final long floorMillis) {
+		this.defaultTimeoutMillis = defaultTimeoutMillis;
+		this.patternTimeoutsMillis = patternTimeoutsMillis;
+		this.timingStore = timingStore;
+		this.factor = factor;
+		this.floorMillis = floorMillis;
+	}
+
+	/**
+	 * Get how long the tests of a url may take to complete once loaded.
+	 * 
+	 * @param url
+	 *            the url.
+	 * @return the time in milliseconds.
+	 */
+	public long getTimeoutMillis(final URL url) {
+		final String path = JSTestSuiteRunnerService.getFormattedPath(url);
+		for (final Map.Entry<String, Long> entry : patternTimeoutsMillis
+				.entrySet()) {
+			if (SelectorUtils.matchPath(entry.getKey().replace('\\', '/'),
+					path, "/", true)) {
+				return entry.getValue();
+			}
+		}
+		if (timingStore != null) {
+			final long duration = timingStore.getPercentile(
+					JSTestSuiteRunnerService.getTimingPath(url), 99);
+			if (duration >= 0) {
+				return Math.max(floorMillis, (long) Math.ceil(duration * factor));
+			}
+		}
+		return defaultTimeoutMillis;
+	}
+
+	public long getDefaultTimeoutMillis() {
+		return defaultTimeoutMillis;
+	}
+
+	public Map<String, Long> getPatternTimeoutsMillis() {
+		return patternTimeoutsMillis;
+	}
+
+	public JSTestTimingStore getTimingStore() {
+		return timingStore;
+	}
+
+	public double getFactor() {
+		return factor;
+	}
+
+	public long getFloorMillis() {
+		return floorMillis;
+	}
+}
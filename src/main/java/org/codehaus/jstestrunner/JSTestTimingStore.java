@@ -0,0 +1,346 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Records how long each test url took in each run, so that how long a url is
+ * likely to take can be estimated. Urls are keyed by their path so that the
+ * timings hold regardless of the host and port used.
+ * <p>
+ * Timings are appended to a file with a line per timing, which is locked while
+ * it is written or read so that processes sharing it, such as several Surefire
+ * forks, do not trip over each other. Only the most recent timings of each
+ * url are of interest, so the file is compacted once it holds many more than
+ * those.
+ */
+public class JSTestTimingStore {
+
+	/**
+	 * A timing of a url.
+	 */
+	public static class JSTestTiming {
+		private final long time;
+		private final String path;
+		private final long durationMillis;
+		private final long loadMillis;
+		private final long runMillis;
+		private final long postLatencyMillis;
+		private final int passes;
+		private final int failures;
+
+		/**
+		 * @param time
+		 *            when the timing was taken in milliseconds.
+		 * @param path
+		 *            the path of the url.
+		 * @param durationMillis
+		 *            how long the url took from being handed out to its
+		 *            result arriving, or -1 if not known.
+		 * @param loadMillis
+		 *            how long the url took to load, or -1 if not known.
+		 * @param runMillis
+		 *            how long the url's tests took to run once loaded, or -1
+		 *            if not known.
+		 * @param postLatencyMillis
+		 *            how long the url's result took to arrive once posted, or
+		 *            -1 if not known.
+		 * @param passes
+		 *            the number of assertions passing.
+		 * @param failures
+		 *            the number of assertions failing.
+		 */
+		public JSTestTiming(final long time, final String path,
+				final long durationMillis, final long loadMillis,
+				final long runMillis, final long postLatencyMillis,
+				final int passes, final int failures) {
+			this.time = time;
+			this.path = path;
+			this.durationMillis = durationMillis;
+			this.loadMillis = loadMillis;
+			this.runMillis = runMillis;
+			this.postLatencyMillis = postLatencyMillis;
+			this.passes = passes;
+			this.failures = failures;
+		}
+
+		/**
+		 * Parse a timing from a line of the file.
+		 * 
+		 * @param line
+		 *            the line.
+		 * @return the timing or null if the line cannot be understood.
+		 */
+		static JSTestTiming parse(final String line) {
+			final long[] fields = new long[7];
+			int start = 0;
+			for (int i = 0; i < fields.length; ++i) {
+				final int end = line.indexOf('\t', start);
+				if (end < 0) {
+					return null;
+				}
+				try {
+					fields[i] = Long.parseLong(line.substring(start, end));
+				} catch (NumberFormatException e) {
+					return null;
+				}
+				start = end + 1;
+			}
+			if (start == line.length()) {
+				return null;
+			}
+			return new JSTestTiming(fields[0], line.substring(start),
+					fields[1], fields[2], fields[3], fields[4],
+					(int) fields[5], (int) fields[6]);
+		}
+
+		/**
+		 * Format the timing as a line of the file. The path comes last so that
+		 * it may contain anything but a line break.
+		 * 
+		 * @return the line.
+		 */
+		String format() {
+			return time + "\t" + durationMillis + "\t" + loadMillis + "\t"
+					+ runMillis + "\t" + postLatencyMillis + "\t" + passes
+					+ "\t" + failures + "\t" + path + "\n";
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public long getDurationMillis() {
+			return durationMillis;
+		}
+
+		public long getLoadMillis() {
+			return loadMillis;
+		}
+
+		public long getRunMillis() {
+			return runMillis;
+		}
+
+		public long getPostLatencyMillis() {
+			return postLatencyMillis;
+		}
+
+		public int getPasses() {
+			return passes;
+		}
+
+		public int getFailures() {
+			return failures;
+		}
+	}
+
+	/**
+	 * The number of timings kept for each url.
+	 */
+	static final int MAX_TIMINGS = 20;
+
+	/**
+	 * The file is compacted once it holds this many times more timings than
+	 * are kept, so that each timing is rewritten only a few times at most.
+	 */
+	private static final int COMPACTION_RATIO = 4;
+
+	private static final Logger LOGGER = Logger
+			.getLogger(JSTestTimingStore.class.getName());
+
+	/**
+	 * Load the timings from a file. A file that does not exist yields an empty
+	 * store, and lines that cannot be understood, such as one being written,
+	 * are skipped.
+	 * 
+	 * @param file
+	 *            the file.
+	 * @return the store.
+	 */
+	public static JSTestTimingStore load(final File file) {
+		final JSTestTimingStore store = new JSTestTimingStore(file);
+		try {
+			store.log.read(new JSTestAppendLog.LineReader() {
+				public void read(final String line) {
+					final JSTestTiming timing = JSTestTiming.parse(line);
+					if (timing != null) {
+						store.add(timing);
+					}
+				}
+			});
+		} catch (IOException e) {
+			LOGGER.warning("Problem reading the timings in " + file + ": "
+					+ e.getMessage());
+		}
+		return store;
+	}
+
+	private final JSTestAppendLog log;
+
+	/**
+	 * The most recent timings of each url in the order taken, keyed by path.
+	 */
+	private final Map<String, LinkedList<JSTestTiming>> timings = new HashMap<String, LinkedList<JSTestTiming>>();
+
+	/**
+	 * Timings yet to be written.
+	 */
+	private final List<JSTestTiming> unwrittenTimings = new ArrayList<JSTestTiming>();
+
+	/**
+	 * @param file
+	 *            the file that timings are appended to.
+	 */
+	public JSTestTimingStore(final File file) {
+		this.log = new JSTestAppendLog(file);
+	}
+
+	private void add(final JSTestTiming timing) {
+		LinkedList<JSTestTiming> pathTimings = timings.get(timing.getPath());
+		if (pathTimings == null) {
+			pathTimings = new LinkedList<JSTestTiming>();
+			timings.put(timing.getPath(), pathTimings);
+		}
+		pathTimings.add(timing);
+		if (pathTimings.size() > MAX_TIMINGS) {
+			pathTimings.removeFirst();
+		}
+	}
+
+	/**
+	 * Record a timing, to be written when next flushed.
+	 * 
+	 * @param timing
+	 *            the timing.
+	 */
+	public synchronized void record(final JSTestTiming timing) {
+		add(timing);
+		unwrittenTimings.add(timing);
+	}
+
+	/**
+	 * Get the most recent timings of a url.
+	 * 
+	 * @param path
+	 *            the path of the url.
+	 * @return the timings, oldest first.
+	 */
+	public synchronized List<JSTestTiming> getTimings(final String path) {
+		final LinkedList<JSTestTiming> pathTimings = timings.get(path);
+		if (pathTimings == null) {
+			return Collections.emptyList();
+		}
+		return new ArrayList<JSTestTiming>(pathTimings);
+	}
+
+	/**
+	 * Get the paths of the urls that have timings.
+	 *
+	 * @return the paths in no particular order.
+	 */
+	public synchronized List<String> getPaths() {
+		return new ArrayList<String>(timings.keySet());
+	}
+
+	/**
+	 * Get a percentile of the most recent durations of a url that passed.
+	 * 
+	 * @param path
+	 *            the path of the url.
+	 * @param percentile
+	 *            the percentile between 0 and 100.
+	 * @return the duration in milliseconds or -1 if none have been recorded.
+	 */
+	public synchronized long getPercentile(final String path,
+			final double percentile) {
+		final List<Long> durations = new ArrayList<Long>();
+		final LinkedList<JSTestTiming> pathTimings = timings.get(path);
+		if (pathTimings != null) {
+			for (final JSTestTiming timing : pathTimings) {
+				if (timing.getFailures() == 0 && timing.getDurationMillis() >= 0) {
+					durations.add(timing.getDurationMillis());
+				}
+			}
+		}
+		if (durations.isEmpty()) {
+			return -1L;
+		}
+		Collections.sort(durations);
+		final int rank = (int) Math.ceil(percentile / 100 * durations.size());
+		return durations.get(Math.max(0, rank - 1));
+	}
+
+	/**
+	 * Append the timings recorded since last flushed to the file. Should the
+	 * file have grown large then it is rewritten with just the most recent
+	 * timings of each url instead.
+	 * 
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public synchronized void flush() throws IOException {
+		final List<String> lines = new ArrayList<String>();
+		for (final JSTestTiming timing : unwrittenTimings) {
+			lines.add(timing.format());
+		}
+		log.append(lines,
+				COMPACTION_RATIO * MAX_TIMINGS * Math.max(1, timings.size()),
+				new JSTestAppendLog.Compactor() {
+					public List<String> compact(final List<String> lines) {
+						final JSTestTimingStore current = new JSTestTimingStore(
+								log.getFile());
+						for (final String line : lines) {
+							final JSTestTiming timing = JSTestTiming
+									.parse(line.substring(0, line.length() - 1));
+							if (timing != null) {
+								current.add(timing);
+							}
+						}
+						final List<String> keptLines = new ArrayList<String>();
+						for (final LinkedList<JSTestTiming> pathTimings : current.timings
+								.values()) {
+							for (final JSTestTiming timing : pathTimings) {
+								keptLines.add(timing.format());
+							}
+						}
+						return keptLines;
+					}
+				});
+		unwrittenTimings.clear();
+	}
+
+	public File getFile() {
+		return log.getFile();
+	}
+}
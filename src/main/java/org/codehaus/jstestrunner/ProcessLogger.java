@@ -22,6 +22,7 @@ package org.codehaus.jstestrunner;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.LinkedList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,12 +40,50 @@ public class ProcessLogger implements Runnable {
 	// The process being monitored
 	private final Process process;
 
+	// The number of the most recent lines of output to retain
+	private final int retainedLineCount;
+
+	// The most recent lines of output
+	private final LinkedList<String> retainedLines = new LinkedList<String>();
+
 	/**
 	 * Construct a ProcessLogger to handle output from a process. 
 	 * @param process The process to handle output for.
 	 */
 	ProcessLogger(final Process process) {
+		this(process, 0);
+	}
+
+	/**
+	 * Construct a ProcessLogger to handle output from a process, retaining the
+	 * most recent lines of output so that they can be reported should the
+	 * process exit unexpectedly.
+	 * @param process The process to handle output for.
+	 * @param retainedLineCount The number of lines to retain.
+	 */
+	ProcessLogger(final Process process, final int retainedLineCount) {
 		this.process = process;
+		this.retainedLineCount = retainedLineCount;
+	}
+
+	/**
+	 * @return the most recent lines of output retained, one per line.
+	 */
+	public synchronized String getRetainedOutput() {
+		final StringBuilder sb = new StringBuilder();
+		for (final String line : retainedLines) {
+			sb.append(line).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private synchronized void retain(final String line) {
+		if (retainedLineCount > 0) {
+			retainedLines.add(line);
+			if (retainedLines.size() > retainedLineCount) {
+				retainedLines.removeFirst();
+			}
+		}
 	}
 
 	/**
@@ -60,7 +99,7 @@ public class ProcessLogger implements Runnable {
 			// Read every line of input
 			while ((line = bufferedReader.readLine()) != null) {
 				// Print all output to the console
-				System.out.println(line);
+				log(line);
 			}			
 			
 		} catch (IOException e) {
@@ -85,5 +124,16 @@ public class ProcessLogger implements Runnable {
 			}
 		}
 	}
+
+	/**
+	 * Log a line of output from the process, retaining it if required.
+	 * 
+	 * @param line
+	 *            the line.
+	 */
+	protected void log(final String line) {
+		retain(line);
+		System.out.println(line);
+	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner.jetty;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+/**
+ * Serve the composite document of a batch of test urls. The document runs
+ * each url in turn within a frame of its own, posting the result of each url
+ * as it completes, so that a batch of small test documents is run by a single
+ * page load rather than each being handed out and loaded by a page of its
+ * own. The batch is driven by the hooks that the execution server installs
+ * into the document, and is told how long the tests of each url may take to
+ * complete. The urls carry the suite of the batch as they are run.
+ */
+public class JSTestBatchHandler extends AbstractHandler {
+
+	/**
+	 * The path of the composite document.
+	 */
+	public static final String PATH = "/testBatch";
+
+	private final JSTestWorkQueueHandler jsTestWorkQueueHandler;
+
+	/**
+	 * @param jsTestWorkQueueHandler
+	 *            declares how long the tests of each url may take.
+	 */
+	public JSTestBatchHandler(final JSTestWorkQueueHandler jsTestWorkQueueHandler) {
+		this.jsTestWorkQueueHandler = jsTestWorkQueueHandler;
+	}
+
+	/**
+	 * Quote a string as a JavaScript string literal that may appear within a
+	 * script element.
+	 * 
+	 * @param value
+	 *            the string.
+	 * @return the literal.
+	 */
+	static String quote(final String value) {
+		final StringBuilder literal = new StringBuilder("\"");
+		for (int i = 0; i < value.length(); ++i) {
+			final char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				literal.append('\\').append(c);
+			} else if (c < ' ' || c == '<' || c == '>' || c == '&') {
+				literal.append(String.format("\\u%04x", (int) c));
+			} else {
+				literal.append(c);
+			}
+		}
+		return literal.append('"').toString();
+	}
+
+	/**
+	 * Handle a request for the composite document of the urls given by its
+	 * "url" parameters.
+	 */
+	public void handle(final String target, final Request baseRequest,
+			final HttpServletRequest request, final HttpServletResponse response)
+			throws IOException, ServletException {
+		if (target.equals(PATH)) {
+
+			final String[] urls = request.getParameterValues("url");
+			if (urls == null) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+				baseRequest.setHandled(true);
+				return;
+			}
+
+			final StringBuilder tests = new StringBuilder();
+			for (final String url : urls) {
+				final long timeout;
+				try {
+					timeout = jsTestWorkQueueHandler.getTimeoutMillis(new URL(url));
+				} catch (MalformedURLException e) {
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+					baseRequest.setHandled(true);
+					return;
+				}
+				if (tests.length() > 0) {
+					tests.append(",\n");
+				}
+				tests.append("\t{ testUrl : ")
+						.append(quote(jsTestWorkQueueHandler.addSuite(url)))
+						.append(", timeout : ").append(timeout).append(" }");
+			}
+
+			response.setHeader("Cache-Control", "no-cache");
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.setContentType("text/html");
+			response.setCharacterEncoding("UTF-8");
+			final PrintWriter writer = response.getWriter();
+			writer.print("<!DOCTYPE html>\n<html>\n<head>\n<title>Test batch</title>\n</head>\n<body>\n<script type=\"text/javascript\">\n");
+			writer.print("if (window.jstestrunnerRunBatch) {\n");
+			writer.print("window.jstestrunnerRunBatch([\n");
+			writer.print(tests);
+			writer.print("\n]);\n}\n</script>\n</body>\n</html>\n");
+
+			baseRequest.setHandled(true);
+		}
+	}
+}
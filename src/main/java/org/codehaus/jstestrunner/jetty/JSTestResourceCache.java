@@ -0,0 +1,262 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner.jetty;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Holds the content of the files most recently served in memory, so that the
+ * libraries shared by test documents, such as QUnit and jQuery, are read from
+ * disk once rather than by every page load. Each file is held along with a
+ * gzipped variant, where that is smaller, and strong entity tags derived from
+ * its content, the gzipped variant being tagged apart from the file itself. A file is read again should it be modified, and those least
+ * recently served are evicted once the cache holds more than a number of
+ * bytes. Files larger than a limit are not held at all.
+ */
+public class JSTestResourceCache {
+
+	/**
+	 * A file held by the cache.
+	 */
+	public static class JSTestCachedResource {
+		private final long lastModified;
+		private final byte[] content;
+		private final byte[] gzippedContent;
+		private final String eTag;
+
+		/**
+		 * @param lastModified
+		 *            when the file was modified in milliseconds.
+		 * @param content
+		 *            the content of the file.
+		 * @param gzippedContent
+		 *            the gzipped content, or null if gzipping does not make
+		 *            it smaller.
+		 * @param eTag
+		 *            the entity tag of the content, quoted.
+		 */
+		public JSTestCachedResource(final long lastModified,
+				final byte[] content, final byte[] gzippedContent,
+				final String eTag) {
+			this.lastModified = lastModified;
+			this.content = content;
+			this.gzippedContent = gzippedContent;
+			this.eTag = eTag;
+		}
+
+		/**
+		 * @return the bytes held.
+		 */
+		long getSize() {
+			return content.length
+					+ (gzippedContent != null ? gzippedContent.length : 0);
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public byte[] getContent() {
+			return content;
+		}
+
+		public byte[] getGzippedContent() {
+			return gzippedContent;
+		}
+
+		public String getETag() {
+			return eTag;
+		}
+
+		/**
+		 * @return the entity tag of the gzipped content, quoted.
+		 */
+		public String getGzippedETag() {
+			return eTag.substring(0, eTag.length() - 1) + "-gz\"";
+		}
+	}
+
+	/**
+	 * The bytes held by default.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 32L * 1024L * 1024L;
+
+	/**
+	 * The size of the largest file held by default.
+	 */
+	public static final long DEFAULT_MAX_RESOURCE_BYTES = 2L * 1024L * 1024L;
+
+	private final long maxBytes;
+
+	private final long maxResourceBytes;
+
+	/**
+	 * The files held, keyed by path, least recently served first.
+	 */
+	private final LinkedHashMap<String, JSTestCachedResource> resources = new LinkedHashMap<String, JSTestCachedResource>(
+			16, 0.75f, true);
+
+	/**
+	 * The bytes held.
+	 */
+	private long bytes;
+
+	public JSTestResourceCache() {
+		this(DEFAULT_MAX_BYTES, DEFAULT_MAX_RESOURCE_BYTES);
+	}
+
+	/**
+	 * @param maxBytes
+	 *            the bytes that may be held before files are evicted.
+	 * @param maxResourceBytes
+	 *            the size of the largest file held.
+	 */
+	public JSTestResourceCache(final long maxBytes, final long maxResourceBytes) {
+		this.maxBytes = maxBytes;
+		this.maxResourceBytes = maxResourceBytes;
+	}
+
+	/**
+	 * Get a file from the cache, reading it should it not be held or should it
+	 * have been modified since it was read.
+	 * 
+	 * @param file
+	 *            the file.
+	 * @return the file as held, or null if it is too large to be held.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	public JSTestCachedResource get(final File file) throws IOException {
+		final String path = file.getPath();
+		final long lastModified = file.lastModified();
+		final long length = file.length();
+		if (length > maxResourceBytes) {
+			return null;
+		}
+		synchronized (this) {
+			final JSTestCachedResource resource = resources.get(path);
+			if (resource != null) {
+				if (resource.getLastModified() == lastModified
+						&& resource.getContent().length == length) {
+					return resource;
+				}
+				remove(path);
+			}
+		}
+
+		// Files are read outside of the lock so that others may be served in
+		// the meantime.
+		final JSTestCachedResource resource = read(file, lastModified);
+		synchronized (this) {
+			remove(path);
+			resources.put(path, resource);
+			bytes += resource.getSize();
+			final Iterator<Map.Entry<String, JSTestCachedResource>> eldest = resources
+					.entrySet().iterator();
+			while (bytes > maxBytes && eldest.hasNext()) {
+				bytes -= eldest.next().getValue().getSize();
+				eldest.remove();
+			}
+		}
+		return resource;
+	}
+
+	private void remove(final String path) {
+		final JSTestCachedResource resource = resources.remove(path);
+		if (resource != null) {
+			bytes -= resource.getSize();
+		}
+	}
+
+	/**
+	 * Read a file, gzipping it and deriving its entity tag.
+	 * 
+	 * @param file
+	 *            the file.
+	 * @param lastModified
+	 *            when the file was modified before it was read.
+	 * @return the file as held.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	private static JSTestCachedResource read(final File file,
+			final long lastModified) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(
+				(int) file.length());
+		final InputStream in = new FileInputStream(file);
+		try {
+			final byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		final byte[] content = out.toByteArray();
+
+		final ByteArrayOutputStream gzippedOut = new ByteArrayOutputStream();
+		final GZIPOutputStream gzipOut = new GZIPOutputStream(gzippedOut);
+		gzipOut.write(content);
+		gzipOut.close();
+		final byte[] gzippedContent = gzippedOut.size() < content.length ? gzippedOut
+				.toByteArray() : null;
+
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		final StringBuilder eTag = new StringBuilder("\"");
+		for (final byte b : digest.digest(content)) {
+			eTag.append(String.format("%02x", b & 0xff));
+		}
+		eTag.append('"');
+
+		return new JSTestCachedResource(lastModified, content, gzippedContent,
+				eTag.toString());
+	}
+
+	/**
+	 * @return the bytes held.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getMaxResourceBytes() {
+		return maxResourceBytes;
+	}
+}
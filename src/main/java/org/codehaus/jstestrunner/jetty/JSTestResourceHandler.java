@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner.jetty;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.codehaus.jstestrunner.jetty.JSTestResourceCache.JSTestCachedResource;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.ResourceHandler;
+import org.eclipse.jetty.util.resource.Resource;
+
+/**
+ * Serves files from the resource bases by way of a cache held in memory. The
+ * file for a path is found using an index of the files of all resource bases,
+ * rather than by looking within each in turn. Files
+ * are served with their entity tags so that a browser that holds them already
+ * is answered with no content, and gzipped to browsers accepting that. The
+ * browser revalidates each file every time that it is loaded, as files may be
+ * modified while a daemon process keeps its cache. Directories, and files too
+ * large for the cache, are served as Jetty serves them.
+ */
+public class JSTestResourceHandler extends ResourceHandler {
+
+	private final JSTestResourceCache resourceCache;
+
+	private final JSTestResourceIndex resourceIndex;
+
+	/**
+	 * @param resourceCache
+	 *            the cache of files served, which may be shared with other
+	 *            handlers.
+	 * @param resourceIndex
+	 *            finds the file that serves each path.
+	 */
+	public JSTestResourceHandler(final JSTestResourceCache resourceCache,
+			final JSTestResourceIndex resourceIndex) {
+		this.resourceCache = resourceCache;
+		this.resourceIndex = resourceIndex;
+	}
+
+	/**
+	 * Find the file or folder that serves a path using the index.
+	 */
+	@Override
+	public Resource getResource(final String path)
+			throws MalformedURLException {
+		final File file = resourceIndex.find(path);
+		if (file == null) {
+			return null;
+		}
+		try {
+			return Resource.newResource(file);
+		} catch (IOException e) {
+			throw new MalformedURLException(e.toString());
+		}
+	}
+
+	/**
+	 * Serve a file from the cache where it can be, otherwise leaving the
+	 * request to Jetty.
+	 */
+	@Override
+	public void handle(final String target, final Request baseRequest,
+			final HttpServletRequest request, final HttpServletResponse response)
+			throws IOException, ServletException {
+		final JSTestCachedResource cachedResource = baseRequest.isHandled() ? null
+				: getCachedResource(request);
+		if (cachedResource == null) {
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+		baseRequest.setHandled(true);
+
+		final Buffer mimeType = getMimeTypes().getMimeByExtension(
+				request.getPathInfo());
+		final boolean gzip = cachedResource.getGzippedContent() != null
+				&& acceptsGzip(request.getHeader("Accept-Encoding"));
+		final String eTag = gzip ? cachedResource.getGzippedETag()
+				: cachedResource.getETag();
+		response.setHeader("ETag", eTag);
+		response.setDateHeader("Last-Modified", cachedResource.getLastModified());
+		response.setHeader("Cache-Control", "no-cache");
+		if (cachedResource.getGzippedContent() != null) {
+			response.setHeader("Vary", "Accept-Encoding");
+		}
+
+		if (isNotModified(request, eTag, cachedResource.getLastModified())) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		final byte[] content;
+		if (gzip) {
+			response.setHeader("Content-Encoding", "gzip");
+			content = cachedResource.getGzippedContent();
+		} else {
+			content = cachedResource.getContent();
+		}
+		response.setStatus(HttpServletResponse.SC_OK);
+		if (mimeType != null) {
+			response.setContentType(mimeType.toString());
+		}
+		response.setContentLength(content.length);
+		if (!"HEAD".equals(request.getMethod())) {
+			response.getOutputStream().write(content);
+		}
+	}
+
+	/**
+	 * Get the file requested from the cache.
+	 * 
+	 * @param request
+	 *            the request.
+	 * @return the file, or null if the request is not for a file that the
+	 *         cache holds.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	private JSTestCachedResource getCachedResource(
+			final HttpServletRequest request) throws IOException {
+		if (!"GET".equals(request.getMethod())
+				&& !"HEAD".equals(request.getMethod())) {
+			return null;
+		}
+		final Resource resource = getResource(request);
+		if (resource == null || !resource.exists() || resource.isDirectory()
+				|| (resource.getAlias() != null && !isAliases())) {
+			return null;
+		}
+		final File file = resource.getFile();
+		if (file == null || !file.isFile()) {
+			return null;
+		}
+		return resourceCache.get(file);
+	}
+
+	/**
+	 * Determine whether the browser holds the file already.
+	 * 
+	 * @param request
+	 *            the request.
+	 * @param eTag
+	 *            the entity tag of the content that would be served.
+	 * @param lastModified
+	 *            when the file was modified in milliseconds.
+	 * @return true if it does.
+	 */
+	static boolean isNotModified(final HttpServletRequest request,
+			final String eTag, final long lastModified) {
+		final String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (final String matchedETag : ifNoneMatch.split(",")) {
+				final String trimmedETag = matchedETag.trim();
+				if (trimmedETag.equals("*") || trimmedETag.equals(eTag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		final long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+		return ifModifiedSince >= 0
+				&& ifModifiedSince / 1000 >= lastModified / 1000;
+	}
+
+	/**
+	 * Determine whether a browser accepts gzipped content.
+	 * 
+	 * @param acceptEncoding
+	 *            the encodings that it accepts, or null if not told.
+	 * @return true if it does.
+	 */
+	static boolean acceptsGzip(final String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return false;
+		}
+		for (final String encoding : acceptEncoding.split(",")) {
+			final String[] parameters = encoding.split(";");
+			if (!parameters[0].trim().equalsIgnoreCase("gzip")) {
+				continue;
+			}
+			for (int i = 1; i < parameters.length; ++i) {
+				final String parameter = parameters[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						return Double.parseDouble(parameter.substring(2)) > 0;
+					} catch (NumberFormatException e) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	public JSTestResourceCache getResourceCache() {
+		return resourceCache;
+	}
+
+	public JSTestResourceIndex getResourceIndex() {
+		return resourceIndex;
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner.jetty;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jetty.util.URIUtil;
+
+/**
+ * Resolves paths to the files of the resource bases that serve them, the first
+ * resource base having a file for a path serving it. A folder is resolved only
+ * where no resource base has a file for its path. The files of all resource
+ * bases are indexed by path when first needed so that a path is resolved by a
+ * single lookup rather than by looking within each resource base in turn. A
+ * file that has gone since it was indexed is looked for again, as is a path
+ * that was not indexed, so that files added or removed while serving are
+ * accounted for. A file added to one resource base that a later resource base
+ * already serves is not, however.
+ */
+public class JSTestResourceIndex {
+
+	/**
+	 * Get the canonical form of a path.
+	 * 
+	 * @param path
+	 *            the path.
+	 * @return the canonical path or null if it does not start with '/' or lies
+	 *         outside of the root.
+	 */
+	private static String canonicalPath(final String path) {
+		final String canonicalPath = path != null ? URIUtil.canonicalPath(path)
+				: null;
+		return canonicalPath != null && canonicalPath.startsWith("/") ? canonicalPath
+				: null;
+	}
+
+	private final String[] resourceBasePaths;
+
+	private final File[] resourceBases;
+
+	/**
+	 * The files indexed keyed by path, or null until indexed. Once indexed,
+	 * paths are resolved without locking.
+	 */
+	private volatile Map<String, File> files;
+
+	/**
+	 * @param resourceBases
+	 *            the folders that files are served from, in the order that
+	 *            they are looked within.
+	 */
+	public JSTestResourceIndex(final String[] resourceBases) {
+		this.resourceBasePaths = resourceBases;
+		this.resourceBases = new File[resourceBases.length];
+		for (int i = 0; i < resourceBases.length; ++i) {
+			this.resourceBases[i] = new File(resourceBases[i]);
+		}
+	}
+
+	/**
+	 * Find the file, or failing that the folder, that serves a path.
+	 * 
+	 * @param path
+	 *            the path, starting with '/'.
+	 * @return the file or folder, or null if there is none.
+	 */
+	public File find(final String path) {
+		final File file = findFile(path);
+		if (file != null) {
+			return file;
+		}
+		final String canonicalPath = canonicalPath(path);
+		return canonicalPath != null ? lookFor(canonicalPath, false) : null;
+	}
+
+	/**
+	 * Find the file that serves a path.
+	 * 
+	 * @param path
+	 *            the path, starting with '/'.
+	 * @return the file or null if there is none.
+	 */
+	public File findFile(final String path) {
+		final String canonicalPath = canonicalPath(path);
+		if (canonicalPath == null) {
+			return null;
+		}
+		final Map<String, File> files = getFiles();
+		final File indexedFile = files.get(canonicalPath);
+		if (indexedFile != null && indexedFile.isFile()) {
+			return indexedFile;
+		}
+
+		// Not indexed, or gone since.
+		final File file = lookFor(canonicalPath, true);
+		if (file != null) {
+			files.put(canonicalPath, file);
+		} else if (indexedFile != null) {
+			files.remove(canonicalPath);
+		}
+		return file;
+	}
+
+	/**
+	 * Look within each resource base in turn for a path.
+	 * 
+	 * @param canonicalPath
+	 *            the path.
+	 * @param isFile
+	 *            true to look for a file, false for a folder.
+	 * @return the first file or folder found, or null if there is none.
+	 */
+	private File lookFor(final String canonicalPath, final boolean isFile) {
+		final String relativePath = canonicalPath.substring(1).replace('/',
+				File.separatorChar);
+		for (final File resourceBase : resourceBases) {
+			final File file = new File(resourceBase, relativePath);
+			if (isFile ? file.isFile() : file.isDirectory()) {
+				return file;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the files indexed keyed by path, indexing them the first time.
+	 */
+	private Map<String, File> getFiles() {
+		Map<String, File> files = this.files;
+		if (files == null) {
+			synchronized (this) {
+				files = this.files;
+				if (files == null) {
+					files = index();
+					this.files = files;
+				}
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Index the files of each resource base, those of earlier resource bases
+	 * taking precedence.
+	 * 
+	 * @return the files keyed by path.
+	 */
+	private Map<String, File> index() {
+		final Map<String, File> files = new ConcurrentHashMap<String, File>();
+		for (final File resourceBase : resourceBases) {
+			index(files, resourceBase, "/", new HashSet<String>());
+		}
+		return files;
+	}
+
+	/**
+	 * Index the files within a folder.
+	 * 
+	 * @param files
+	 *            the files indexed so far.
+	 * @param folder
+	 *            the folder.
+	 * @param path
+	 *            the path of the folder, ending with '/'.
+	 * @param indexedFolders
+	 *            the canonical paths of the folders indexed so far within the
+	 *            resource base, so that a folder linked to from elsewhere is
+	 *            indexed once and links back to a folder do not recurse
+	 *            forever. Paths not indexed are looked for when requested.
+	 */
+	private void index(final Map<String, File> files, final File folder,
+			final String path, final Set<String> indexedFolders) {
+		try {
+			if (!indexedFolders.add(folder.getCanonicalPath())) {
+				return;
+			}
+		} catch (IOException e) {
+			return;
+		}
+		final File[] children = folder.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (final File child : children) {
+			final String childPath = path + child.getName();
+			if (child.isDirectory()) {
+				index(files, child, childPath + "/", indexedFolders);
+			} else if (!files.containsKey(childPath)) {
+				files.put(childPath, child);
+			}
+		}
+	}
+
+	public String[] getResourceBases() {
+		return resourceBasePaths;
+	}
+
+	/**
+	 * @return the number of files indexed.
+	 */
+	public int size() {
+		final Map<String, File> files = this.files;
+		return files != null ? files.size() : 0;
+	}
+}
@@ -21,12 +21,18 @@ package org.codehaus.jstestrunner.jetty;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeoutException;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -40,22 +46,243 @@ import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
 /**
- * Receive test results and store them in an internal cache.
+ * Receive test results and store them in an internal cache. Each url has its
+ * own completion handle so that a result only wakes those waiting for it. The
+ * progress of the individual tests within each url is also received and passed
+ * on as it happens, and heartbeats note how far each url has got. A url can be
+ * split into parts whose results are merged into the url's. What is posted
+ * about a url handed out for a suite sharing the server is passed on to the
+ * handler of that suite.
  */
 public class JSTestResultHandler extends AbstractHandler {
 
 	/**
-	 * Captures a test result.
+	 * Captures the result of an individual test within a test url e.g. a QUnit
+	 * test.
+	 */
+	public static class JSTestCaseResult {
+		private final String moduleName;
+		private final String testName;
+		private final int failures;
+		private final int passes;
+		private final long duration;
+		private final String message;
+
+		/**
+		 * @param moduleName The module the test belongs to. Can be null
+		 * @param testName The name of the test
+		 * @param failures The number of assertions failing
+		 * @param passes The number of assertions passing
+		 * @param duration How long the test took in milliseconds
+		 * @param message A description of the test's assertions
+		 */
+		public JSTestCaseResult(final String moduleName, final String testName,
+				final int failures, final int passes, final long duration,
+				final String message) {
+			this.moduleName = moduleName;
+			this.testName = testName;
+			this.failures = failures;
+			this.passes = passes;
+			this.duration = duration;
+			this.message = message;
+		}
+
+		/**
+		 * Form the name of a test from its module and test name.
+		 * 
+		 * @param moduleName
+		 *            the module. Can be null.
+		 * @param testName
+		 *            the test name.
+		 * @return the name.
+		 */
+		public static String getName(final String moduleName,
+				final String testName) {
+			return moduleName != null ? "[" + moduleName + "] " + testName
+					: testName;
+		}
+
+		public String getName() {
+			return getName(moduleName, testName);
+		}
+
+		public String getModuleName() {
+			return moduleName;
+		}
+
+		public String getTestName() {
+			return testName;
+		}
+
+		public int getFailures() {
+			return failures;
+		}
+
+		public int getPasses() {
+			return passes;
+		}
+
+		public long getDuration() {
+			return duration;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+	}
+
+	/**
+	 * Captures how far the tests of a url have got, as told by its heartbeats.
+	 */
+	public static class JSTestProgress {
+		private final String moduleName;
+		private final String testName;
+		private final int assertions;
+		private final long time;
+
+		/**
+		 * @param moduleName The module of the test running. Can be null
+		 * @param testName The name of the test running. Can be null
+		 * @param assertions The number of assertions made so far
+		 * @param time When this progress was told of in milliseconds
+		 */
+		public JSTestProgress(final String moduleName, final String testName,
+				final int assertions, final long time) {
+			this.moduleName = moduleName;
+			this.testName = testName;
+			this.assertions = assertions;
+			this.time = time;
+		}
+
+		public String getModuleName() {
+			return moduleName;
+		}
+
+		public String getTestName() {
+			return testName;
+		}
+
+		public int getAssertions() {
+			return assertions;
+		}
+
+		public long getTime() {
+			return time;
+		}
+	}
+
+	/**
+	 * Captures a test result along with how long its url took where known, and
+	 * whether it was reused from an earlier run.
 	 */
 	public static class JSTestResult {
 		private final int failures;
         private final int passes;
         private final String message;
+        private final List<JSTestCaseResult> testCaseResults;
+        private final long loadMillis;
+        private final long runMillis;
+        private final long postLatencyMillis;
+        private final boolean cached;
+
+        /**
+         * Builds a result. Only the assertions and message are required; a
+         * result otherwise has no tests, timings nor reuse to tell of.
+         */
+        public static class Builder {
+            private final int failures;
+            private final int passes;
+            private final String message;
+            private List<JSTestCaseResult> testCaseResults = Collections.<JSTestCaseResult>emptyList();
+            private long loadMillis = -1L;
+            private long runMillis = -1L;
+            private long postLatencyMillis = -1L;
+            private boolean cached;
+
+            /**
+             * @param failures The number of assertions failing
+             * @param passes The number of assertions passing
+             * @param message A description of all of the tests
+             */
+            public Builder(final int failures, final int passes, final String message) {
+                this.failures = failures;
+                this.passes = passes;
+                this.message = message;
+            }
+
+            /**
+             * @param testCaseResults The results of each of the tests
+             * @return this builder
+             */
+            public Builder testCaseResults(final List<JSTestCaseResult> testCaseResults) {
+                this.testCaseResults = testCaseResults;
+                return this;
+            }
+
+            /**
+             * @param loadMillis How long the url took to load, or -1 if not known
+             * @return this builder
+             */
+            public Builder loadMillis(final long loadMillis) {
+                this.loadMillis = loadMillis;
+                return this;
+            }
+
+            /**
+             * @param runMillis How long the tests took to run once loaded, or -1 if not known
+             * @return this builder
+             */
+            public Builder runMillis(final long runMillis) {
+                this.runMillis = runMillis;
+                return this;
+            }
+
+            /**
+             * @param postLatencyMillis How long the result took to arrive once posted, or -1 if not known
+             * @return this builder
+             */
+            public Builder postLatencyMillis(final long postLatencyMillis) {
+                this.postLatencyMillis = postLatencyMillis;
+                return this;
+            }
+
+            /**
+             * @param cached Whether the result was reused from an earlier run rather than the tests being run
+             * @return this builder
+             */
+            public Builder cached(final boolean cached) {
+                this.cached = cached;
+                return this;
+            }
+
+            /**
+             * @return the result
+             */
+            public JSTestResult build() {
+                return new JSTestResult(this);
+            }
+        }
 
+        /**
+         * @param failures The number of assertions failing
+         * @param passes The number of assertions passing
+         * @param message A description of all of the tests
+         * @deprecated use {@link Builder}
+         */
+        @Deprecated
         public JSTestResult(final int failures, final int passes, final String message) {
-            this.failures = failures;
-            this.passes = passes;
-            this.message = message;
+            this(new Builder(failures, passes, message));
+        }
+
+        private JSTestResult(final Builder builder) {
+            this.failures = builder.failures;
+            this.passes = builder.passes;
+            this.message = builder.message;
+            this.testCaseResults = builder.testCaseResults;
+            this.loadMillis = builder.loadMillis;
+            this.runMillis = builder.runMillis;
+            this.postLatencyMillis = builder.postLatencyMillis;
+            this.cached = builder.cached;
         }
 
         public int getFailures() {
@@ -69,14 +296,479 @@ public class JSTestResultHandler extends AbstractHandler {
         public String getMessage() {
             return message;
         }
+
+        public List<JSTestCaseResult> getTestCaseResults() {
+            return testCaseResults;
+        }
+
+        public long getLoadMillis() {
+            return loadMillis;
+        }
+
+        public long getRunMillis() {
+            return runMillis;
+        }
+
+        public long getPostLatencyMillis() {
+            return postLatencyMillis;
+        }
+
+        public boolean isCached() {
+            return cached;
+        }
     }
 
 	/**
-	 * Store a mapping of test results.
+	 * The eventual result of a test. Completes once when the result for its url
+	 * is received.
+	 */
+	public static class JSTestResultFuture implements Future<JSTestResult> {
+		private final CountDownLatch completion = new CountDownLatch(1);
+		private final List<Runnable> completionListeners = new ArrayList<Runnable>();
+		private volatile JSTestResult jsTestResult;
+
+		/**
+		 * Complete with a result, notifying any listeners.
+		 * 
+		 * @param jsTestResult
+		 *            the result.
+		 * @return false if already complete, in which case the result is
+		 *         ignored.
+		 */
+		boolean complete(final JSTestResult jsTestResult) {
+			final List<Runnable> listeners;
+			synchronized (this) {
+				if (isDone()) {
+					return false;
+				}
+				this.jsTestResult = jsTestResult;
+				completion.countDown();
+				listeners = new ArrayList<Runnable>(completionListeners);
+				completionListeners.clear();
+			}
+			for (final Runnable listener : listeners) {
+				listener.run();
+			}
+			return true;
+		}
+
+		/**
+		 * Run something once the result is available. If it is already
+		 * available then the listener is run immediately by the caller.
+		 * 
+		 * @param listener
+		 *            the listener to run.
+		 */
+		public void addCompletionListener(final Runnable listener) {
+			synchronized (this) {
+				if (!isDone()) {
+					completionListeners.add(listener);
+					return;
+				}
+			}
+			listener.run();
+		}
+
+		public boolean cancel(final boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		public boolean isCancelled() {
+			return false;
+		}
+
+		public boolean isDone() {
+			return completion.getCount() == 0;
+		}
+
+		public JSTestResult get() throws InterruptedException {
+			completion.await();
+			return jsTestResult;
+		}
+
+		public JSTestResult get(final long timeout, final TimeUnit unit)
+				throws InterruptedException, TimeoutException {
+			if (!completion.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return jsTestResult;
+		}
+	}
+
+	/**
+	 * Merges the results of the parts that a url has been split into, such as
+	 * a url per QUnit module, into a result for the url as a whole.
+	 */
+	private static class JSTestResultMerge {
+		private final String testUrl;
+		private final List<URL> partUrls;
+		private final Map<String, JSTestResult> partResults = new HashMap<String, JSTestResult>();
+
+		public JSTestResultMerge(final String testUrl, final List<URL> partUrls) {
+			this.testUrl = testUrl;
+			this.partUrls = partUrls;
+		}
+
+		/**
+		 * Note the result of a part.
+		 * 
+		 * @param partUrl
+		 *            the url of the part.
+		 * @param jsTestResult
+		 *            its result.
+		 * @return the merged result once every part has one, otherwise null.
+		 */
+		public synchronized JSTestResult add(final String partUrl,
+				final JSTestResult jsTestResult) {
+			partResults.put(partUrl, jsTestResult);
+			if (partResults.size() < partUrls.size()) {
+				return null;
+			}
+
+			int failures = 0;
+			int passes = 0;
+			final StringBuilder message = new StringBuilder();
+			final List<JSTestCaseResult> testCaseResults = new ArrayList<JSTestCaseResult>();
+			long loadMillis = 0L;
+			long runMillis = 0L;
+			long postLatencyMillis = 0L;
+			for (final URL url : partUrls) {
+				final JSTestResult partResult = partResults.get(url.toString());
+				failures += partResult.getFailures();
+				passes += partResult.getPasses();
+				if (partResult.getTestCaseResults().isEmpty()
+						&& partResult.getFailures() > 0) {
+					// Say which part failed when its tests do not.
+					message.append(url.getQuery()).append(": ");
+				}
+				message.append(partResult.getMessage());
+				if (message.length() > 0
+						&& message.charAt(message.length() - 1) != '\n') {
+					message.append('\n');
+				}
+				testCaseResults.addAll(partResult.getTestCaseResults());
+				loadMillis = loadMillis >= 0 && partResult.getLoadMillis() >= 0 ? loadMillis
+						+ partResult.getLoadMillis()
+						: -1L;
+				runMillis = runMillis >= 0 && partResult.getRunMillis() >= 0 ? runMillis
+						+ partResult.getRunMillis()
+						: -1L;
+				postLatencyMillis = postLatencyMillis >= 0
+						&& partResult.getPostLatencyMillis() >= 0 ? Math.max(
+						postLatencyMillis, partResult.getPostLatencyMillis())
+						: -1L;
+			}
+			return new JSTestResult.Builder(failures, passes,
+					message.toString()).testCaseResults(testCaseResults)
+					.loadMillis(loadMillis).runMillis(runMillis)
+					.postLatencyMillis(postLatencyMillis).build();
+		}
+	}
+
+	/**
+	 * Receives test results as they arrive.
+	 */
+	public interface JSTestResultListener {
+
+		/**
+		 * Called when the result for a url has been received.
+		 * 
+		 * @param testUrl
+		 *            the url of the test.
+		 * @param jsTestResult
+		 *            the result.
+		 */
+		void jsTestResultReceived(String testUrl, JSTestResult jsTestResult);
+	}
+
+	private final List<JSTestResultListener> jsTestResultListeners = new CopyOnWriteArrayList<JSTestResultListener>();
+
+	/**
+	 * Receives the progress of the individual tests within test urls.
+	 */
+	public interface JSTestCaseListener {
+
+		/**
+		 * Called when a test has started.
+		 * 
+		 * @param testUrl
+		 *            the url of the test document the test belongs to.
+		 * @param moduleName
+		 *            the module. Can be null.
+		 * @param testName
+		 *            the name of the test.
+		 */
+		void jsTestCaseStarted(String testUrl, String moduleName,
+				String testName);
+
+		/**
+		 * Called when a test has finished.
+		 * 
+		 * @param testUrl
+		 *            the url of the test document the test belongs to.
+		 * @param jsTestCaseResult
+		 *            the result.
+		 */
+		void jsTestCaseFinished(String testUrl,
+				JSTestCaseResult jsTestCaseResult);
+	}
+
+	private final List<JSTestCaseListener> jsTestCaseListeners = new CopyOnWriteArrayList<JSTestCaseListener>();
+
+	/**
+	 * Store a mapping of test results keyed by url.
 	 */
-	private final Map<String, JSTestResult> jsTestResults = new HashMap<String, JSTestResult>();
-	private final Lock jsTestResultsLock = new ReentrantLock();
-	private final Condition newJsTestResults = jsTestResultsLock.newCondition();
+	private final ConcurrentMap<String, JSTestResultFuture> jsTestResults = new ConcurrentHashMap<String, JSTestResultFuture>();
+
+	/**
+	 * The merges of urls that have been split into parts keyed by the url of
+	 * each part.
+	 */
+	private final ConcurrentMap<String, JSTestResultMerge> jsTestResultMerges = new ConcurrentHashMap<String, JSTestResultMerge>();
+
+	/**
+	 * The parts of each url that has been split keyed by the url.
+	 */
+	private final ConcurrentMap<String, List<URL>> jsTestResultPartUrls = new ConcurrentHashMap<String, List<URL>>();
+
+	/**
+	 * The latest progress of each url that has told of any.
+	 */
+	private final ConcurrentMap<String, JSTestProgress> jsTestProgresses = new ConcurrentHashMap<String, JSTestProgress>();
+
+	/**
+	 * The handlers of the suites sharing our server keyed by suite.
+	 */
+	private final ConcurrentMap<String, JSTestResultHandler> suiteHandlers = new ConcurrentHashMap<String, JSTestResultHandler>();
+
+	/**
+	 * Pass on what is posted about the urls of a suite sharing our server.
+	 * 
+	 * @param suite
+	 *            the suite.
+	 * @param suiteHandler
+	 *            the handler of the suite.
+	 */
+	void addSuiteHandler(final String suite,
+			final JSTestResultHandler suiteHandler) {
+		suiteHandlers.put(suite, suiteHandler);
+	}
+
+	/**
+	 * Stop passing on what is posted about the urls of a suite.
+	 * 
+	 * @param suite
+	 *            the suite.
+	 */
+	void removeSuiteHandler(final String suite) {
+		suiteHandlers.remove(suite);
+	}
+
+	/**
+	 * Get the handler of the suite that a posted url was handed out for.
+	 * 
+	 * @param testUrl
+	 *            the url as posted.
+	 * @return the handler, being ours if the url was not handed out for a
+	 *         suite that is sharing our server.
+	 */
+	private JSTestResultHandler getSuiteHandler(final String testUrl) {
+		final String suite = testUrl != null ? JSTestWorkQueueHandler
+				.getUrlSuite(testUrl) : null;
+		final JSTestResultHandler suiteHandler = suite != null ? suiteHandlers
+				.get(suite) : null;
+		return suiteHandler != null ? suiteHandler : this;
+	}
+
+	/**
+	 * Listen to results in the order that they arrive.
+	 * 
+	 * @param jsTestResultListener
+	 *            the listener.
+	 */
+	public void addJsTestResultListener(
+			final JSTestResultListener jsTestResultListener) {
+		jsTestResultListeners.add(jsTestResultListener);
+	}
+
+	/**
+	 * Stop listening to results.
+	 * 
+	 * @param jsTestResultListener
+	 *            the listener.
+	 */
+	public void removeJsTestResultListener(
+			final JSTestResultListener jsTestResultListener) {
+		jsTestResultListeners.remove(jsTestResultListener);
+	}
+
+	/**
+	 * Listen to the progress of individual tests as it happens.
+	 * 
+	 * @param jsTestCaseListener
+	 *            the listener.
+	 */
+	public void addJsTestCaseListener(final JSTestCaseListener jsTestCaseListener) {
+		jsTestCaseListeners.add(jsTestCaseListener);
+	}
+
+	/**
+	 * Stop listening to the progress of individual tests.
+	 * 
+	 * @param jsTestCaseListener
+	 *            the listener.
+	 */
+	public void removeJsTestCaseListener(
+			final JSTestCaseListener jsTestCaseListener) {
+		jsTestCaseListeners.remove(jsTestCaseListener);
+	}
+
+	/**
+	 * Store a url's result unless it already has one, waking only those
+	 * waiting on the url, and then tell those interested in every result. This
+	 * allows for results obtained other than by running the url's tests.
+	 * 
+	 * @param testUrl
+	 *            the url.
+	 * @param jsTestResult
+	 *            the result.
+	 * @return true if the result was stored.
+	 */
+	public boolean complete(final String testUrl,
+			final JSTestResult jsTestResult) {
+		if (!getJsTestResultFuture(testUrl).complete(jsTestResult)) {
+			return false;
+		}
+		for (final JSTestResultListener jsTestResultListener : jsTestResultListeners) {
+			jsTestResultListener.jsTestResultReceived(testUrl, jsTestResult);
+		}
+		final JSTestResultMerge jsTestResultMerge = jsTestResultMerges
+				.get(testUrl);
+		if (jsTestResultMerge != null) {
+			final JSTestResult mergedJsTestResult = jsTestResultMerge.add(
+					testUrl, jsTestResult);
+			if (mergedJsTestResult != null) {
+				complete(jsTestResultMerge.testUrl, mergedJsTestResult);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Split a url into parts that run separately, such as a url per QUnit
+	 * module. The url's result is completed once each of its parts has a
+	 * result, by merging theirs. The progress of the individual tests within
+	 * the parts is passed on as that of the url.
+	 * 
+	 * @param url
+	 *            the url.
+	 * @param partUrls
+	 *            the urls of its parts.
+	 */
+	public void split(final URL url, final List<URL> partUrls) {
+		removeJsTestResult(url);
+		final JSTestResultMerge jsTestResultMerge = new JSTestResultMerge(
+				url.toString(), new ArrayList<URL>(partUrls));
+		for (final URL partUrl : partUrls) {
+			removeJsTestResult(partUrl);
+			jsTestResultMerges.put(partUrl.toString(), jsTestResultMerge);
+		}
+		jsTestResultPartUrls.put(url.toString(), jsTestResultMerge.partUrls);
+	}
+
+	/**
+	 * Get the parts that a url has been split into.
+	 * 
+	 * @param url
+	 *            the url.
+	 * @return the urls of the parts or an empty list if it has not been split.
+	 */
+	public List<URL> getPartUrls(final URL url) {
+		final List<URL> partUrls = jsTestResultPartUrls.get(url.toString());
+		return partUrls != null ? Collections.unmodifiableList(partUrls)
+				: Collections.<URL> emptyList();
+	}
+
+	/**
+	 * Fail a url unless it already has a result e.g. because there is nothing
+	 * left to produce one.
+	 * 
+	 * @param testUrl
+	 *            the url.
+	 * @param message
+	 *            why the url failed.
+	 * @return true if the url was failed.
+	 */
+	public boolean fail(final String testUrl, final String message) {
+		return complete(testUrl, new JSTestResult.Builder(1, 0, message).build());
+	}
+
+	/**
+	 * Forget any result received for a url so that a new one can be waited
+	 * for.
+	 * 
+	 * @param url
+	 *            the url.
+	 */
+	public void removeJsTestResult(final URL url) {
+		jsTestResults.remove(url.toString());
+		jsTestProgresses.remove(url.toString());
+		jsTestResultMerges.remove(url.toString());
+		final List<URL> partUrls = jsTestResultPartUrls.remove(url.toString());
+		if (partUrls != null) {
+			for (final URL partUrl : partUrls) {
+				removeJsTestResult(partUrl);
+			}
+		}
+	}
+
+	/**
+	 * Forget how far the tests of a url have got e.g. because it is to run
+	 * again.
+	 * 
+	 * @param url
+	 *            the url.
+	 */
+	public void removeJsTestProgress(final URL url) {
+		jsTestProgresses.remove(url.toString());
+	}
+
+	/**
+	 * Get how far the tests of a url have got.
+	 * 
+	 * @param testUrl
+	 *            the url.
+	 * @return the progress or null if the url has not told of any.
+	 */
+	public JSTestProgress getJsTestProgress(final String testUrl) {
+		return jsTestProgresses.get(testUrl);
+	}
+
+	/**
+	 * Get the completion handle for a url's result, creating it if necessary.
+	 * The handle can be waited on or listened to without holding up anyone
+	 * else.
+	 * 
+	 * @param url
+	 *            the url of the test.
+	 * @return the handle.
+	 */
+	public JSTestResultFuture getJsTestResultFuture(final URL url) {
+		return getJsTestResultFuture(url.toString());
+	}
+
+	private JSTestResultFuture getJsTestResultFuture(final String url) {
+		JSTestResultFuture jsTestResultFuture = jsTestResults.get(url);
+		if (jsTestResultFuture == null) {
+			final JSTestResultFuture newJsTestResultFuture = new JSTestResultFuture();
+			jsTestResultFuture = jsTestResults.putIfAbsent(url,
+					newJsTestResultFuture);
+			if (jsTestResultFuture == null) {
+				jsTestResultFuture = newJsTestResultFuture;
+			}
+		}
+		return jsTestResultFuture;
+	}
 
 	/**
 	 * Get the test result associated with the given url and block until it
@@ -95,28 +787,203 @@ public class JSTestResultHandler extends AbstractHandler {
 	 */
 	public JSTestResult getJsTestResult(final URL url,
 			final TestResultProducer testResultProducer, final long time, final TimeUnit unit) {
+		final JSTestResultFuture jsTestResultFuture = getJsTestResultFuture(url);
 		JSTestResult jsTestResult = null;
-		jsTestResultsLock.lock();
+		if (jsTestResultFuture.isDone() || testResultProducer.isAvailable()) {
+			try {
+				jsTestResult = jsTestResultFuture.get(time, unit);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (TimeoutException e) {
+				// No result in time.
+			}
+		}
+		return jsTestResult;
+	}
+
+	/**
+	 * Read the scalar fields of the object that the parser is positioned on.
+	 * Nested objects and arrays are skipped, as are null values.
+	 * 
+	 * @param jp
+	 *            the parser.
+	 * @return the values of the fields keyed by name.
+	 * @throws IOException
+	 *             if the object cannot be read.
+	 */
+	private static Map<String, String> readFields(final JsonParser jp)
+			throws IOException {
+		final Map<String, String> fields = new HashMap<String, String>();
+		while (jp.nextToken() != JsonToken.END_OBJECT) {
+			final String fieldname = jp.getCurrentName();
+			final JsonToken token = jp.nextToken();
+			if (token == JsonToken.START_OBJECT
+					|| token == JsonToken.START_ARRAY) {
+				jp.skipChildren();
+			} else if (token != JsonToken.VALUE_NULL) {
+				fields.put(fieldname, jp.getText());
+			}
+		}
+		return fields;
+	}
+
+	/**
+	 * Form the result of an individual test from the fields describing it.
+	 * 
+	 * @param fields
+	 *            the fields.
+	 * @return the result or null if the fields are incomplete.
+	 */
+	private static JSTestCaseResult toJsTestCaseResult(
+			final Map<String, String> fields) {
+		final String testName = fields.get("testName");
+		final String failures = fields.get("failures");
+		final String passes = fields.get("passes");
+		if (testName == null || failures == null || passes == null) {
+			return null;
+		}
+		final String duration = fields.get("duration");
+		final String message = fields.get("message");
 		try {
-			do {
-				jsTestResult = jsTestResults.get(url.toString());
-				if (jsTestResult == null) {
-					boolean newJsTestResult;
-					try {
-                        newJsTestResult = (testResultProducer.isAvailable() &&
-                                newJsTestResults.await(time, unit));
-					} catch (InterruptedException e) {
-						newJsTestResult = false;
-					}
-					if (!newJsTestResult) {
-						break;
-					}
+			return new JSTestCaseResult(fields.get("moduleName"), testName,
+					Integer.parseInt(failures), Integer.parseInt(passes),
+					duration != null ? Long.parseLong(duration) : 0L,
+					message != null ? message : "");
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Read the results of the individual tests from the array that the parser
+	 * is positioned on.
+	 * 
+	 * @param jp
+	 *            the parser.
+	 * @return the results.
+	 * @throws IOException
+	 *             if the array cannot be read.
+	 */
+	private static List<JSTestCaseResult> readJsTestCaseResults(
+			final JsonParser jp) throws IOException {
+		final List<JSTestCaseResult> jsTestCaseResults = new ArrayList<JSTestCaseResult>();
+		JsonToken token;
+		while ((token = jp.nextToken()) != JsonToken.END_ARRAY) {
+			if (token == JsonToken.START_OBJECT) {
+				final JSTestCaseResult jsTestCaseResult = toJsTestCaseResult(readFields(jp));
+				if (jsTestCaseResult != null) {
+					jsTestCaseResults.add(jsTestCaseResult);
 				}
-			} while (jsTestResult == null);
+			} else {
+				jp.skipChildren();
+			}
+		}
+		return jsTestCaseResults;
+	}
+
+	/**
+	 * Handle a heartbeat, noting how far the tests have got and when. Any
+	 * heartbeat shows that the page is still alive, even where its tests have
+	 * got no further e.g. while a test waits on something asynchronous.
+	 * 
+	 * @param request
+	 *            the request.
+	 * @param response
+	 *            the response.
+	 * @throws IOException
+	 *             if the request cannot be read.
+	 */
+	private void handleTestHeartbeat(final HttpServletRequest request,
+			final HttpServletResponse response) throws IOException {
+		final JsonParser jp = new JsonFactory().createJsonParser(request
+				.getReader());
+		final Map<String, String> fields;
+		try {
+			if (jp.nextToken() == JsonToken.START_OBJECT) {
+				fields = readFields(jp);
+			} else {
+				fields = Collections.emptyMap();
+			}
 		} finally {
-			jsTestResultsLock.unlock();
+			jp.close();
+		}
+
+		final JSTestResultHandler suiteHandler = getSuiteHandler(fields
+				.get("testUrl"));
+		final String testUrl = fields.get("testUrl") != null ? JSTestWorkQueueHandler
+				.removeUrlSuite(fields.get("testUrl")) : null;
+		final String assertions = fields.get("assertions");
+		JSTestProgress jsTestProgress = null;
+		if (testUrl != null && assertions != null) {
+			try {
+				jsTestProgress = new JSTestProgress(fields.get("moduleName"),
+						fields.get("testName"), Integer.parseInt(assertions),
+						System.currentTimeMillis());
+			} catch (NumberFormatException e) {
+				// Handled as a bad request.
+			}
+		}
+
+		if (jsTestProgress != null) {
+			response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+			suiteHandler.jsTestProgresses.put(testUrl, jsTestProgress);
+		} else {
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+		}
+	}
+
+	/**
+	 * Handle the progress of an individual test.
+	 * 
+	 * @param request
+	 *            the request.
+	 * @param response
+	 *            the response.
+	 * @throws IOException
+	 *             if the request cannot be read.
+	 */
+	private void handleTestEvent(final HttpServletRequest request,
+			final HttpServletResponse response) throws IOException {
+		final JsonParser jp = new JsonFactory().createJsonParser(request
+				.getReader());
+		final Map<String, String> fields;
+		try {
+			if (jp.nextToken() == JsonToken.START_OBJECT) {
+				fields = readFields(jp);
+			} else {
+				fields = Collections.emptyMap();
+			}
+		} finally {
+			jp.close();
+		}
+
+		final JSTestResultHandler suiteHandler = getSuiteHandler(fields
+				.get("testUrl"));
+		final String postedTestUrl = fields.get("testUrl") != null ? JSTestWorkQueueHandler
+				.removeUrlSuite(fields.get("testUrl")) : null;
+		final JSTestResultMerge jsTestResultMerge = postedTestUrl != null ? suiteHandler.jsTestResultMerges
+				.get(postedTestUrl) : null;
+		final String testUrl = jsTestResultMerge != null ? jsTestResultMerge.testUrl
+				: postedTestUrl;
+		final String event = fields.get("event");
+		final String testName = fields.get("testName");
+		final JSTestCaseResult jsTestCaseResult = toJsTestCaseResult(fields);
+
+		if (testUrl != null && testName != null && "testStart".equals(event)) {
+			response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+			for (final JSTestCaseListener jsTestCaseListener : suiteHandler.jsTestCaseListeners) {
+				jsTestCaseListener.jsTestCaseStarted(testUrl,
+						fields.get("moduleName"), testName);
+			}
+		} else if (testUrl != null && jsTestCaseResult != null
+				&& "testDone".equals(event)) {
+			response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+			for (final JSTestCaseListener jsTestCaseListener : suiteHandler.jsTestCaseListeners) {
+				jsTestCaseListener.jsTestCaseFinished(testUrl, jsTestCaseResult);
+			}
+		} else {
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
 		}
-		return jsTestResult;
 	}
 
 	/**
@@ -125,7 +992,25 @@ public class JSTestResultHandler extends AbstractHandler {
 	public void handle(final String target, final Request baseRequest,
 			final HttpServletRequest request, final HttpServletResponse response)
 			throws IOException, ServletException {
-		if (target.equals("/testResults") && request.getMethod().equals("POST")
+		if (target.equals("/testHeartbeats") && request.getMethod().equals("POST")
+				&& request.getContentType().contains("application/json")) {
+
+			handleTestHeartbeat(request, response);
+
+			response.setContentType("application/json");
+
+			baseRequest.setHandled(true);
+
+		} else if (target.equals("/testEvents") && request.getMethod().equals("POST")
+				&& request.getContentType().contains("application/json")) {
+
+			handleTestEvent(request, response);
+
+			response.setContentType("application/json");
+
+			baseRequest.setHandled(true);
+
+		} else if (target.equals("/testResults") && request.getMethod().equals("POST")
 				&& request.getContentType().contains("application/json")) {
 
 			JSTestResult jsTestResult = null;
@@ -137,6 +1022,10 @@ public class JSTestResultHandler extends AbstractHandler {
 			Integer failures = null;
 			Integer passes = null;
 			String message = null;
+			List<JSTestCaseResult> testCaseResults = Collections.emptyList();
+			long loadTime = -1L;
+			long runTime = -1L;
+			long postTime = -1L;
 
 			try {
 				jp.nextToken(); // will return JsonToken.START_OBJECT (verify?)
@@ -152,6 +1041,17 @@ public class JSTestResultHandler extends AbstractHandler {
 						passes = jp.getIntValue();
 					} else if (fieldname.equals("message")) {
 						message = jp.getText();
+					} else if (fieldname.equals("loadTime")) {
+						loadTime = jp.getLongValue();
+					} else if (fieldname.equals("runTime")) {
+						runTime = jp.getLongValue();
+					} else if (fieldname.equals("postTime")) {
+						postTime = jp.getLongValue();
+					} else if (fieldname.equals("tests")
+							&& jp.getCurrentToken() == JsonToken.START_ARRAY) {
+						testCaseResults = readJsTestCaseResults(jp);
+					} else {
+						jp.skipChildren();
 					}
 				}
 			} finally {
@@ -162,7 +1062,12 @@ public class JSTestResultHandler extends AbstractHandler {
 			if (testUrl != null && failures != null && passes != null
 					&& message != null) {
 
-				jsTestResult = new JSTestResult(failures, passes, message);
+				jsTestResult = new JSTestResult.Builder(failures, passes,
+						message).testCaseResults(testCaseResults)
+						.loadMillis(loadTime).runMillis(runTime)
+						.postLatencyMillis(postTime >= 0 ? Math.max(0L,
+								System.currentTimeMillis() - postTime) : -1L)
+						.build();
 
 				response.setStatus(HttpServletResponse.SC_NO_CONTENT);
 
@@ -174,16 +1079,12 @@ public class JSTestResultHandler extends AbstractHandler {
 
 			baseRequest.setHandled(true);
 
-			// Minimally signal any threads to re-look at things. Store results
-			// if we received them.
-			jsTestResultsLock.lock();
-			try {
-				if (jsTestResult != null) {
-					jsTestResults.put(testUrl, jsTestResult);
-				}
-				newJsTestResults.signalAll();
-			} finally {
-				jsTestResultsLock.unlock();
+			// Store results if we received them, with the suite that the url
+			// was handed out for.
+			if (jsTestResult != null) {
+				getSuiteHandler(testUrl).complete(
+						JSTestWorkQueueHandler.removeUrlSuite(testUrl),
+						jsTestResult);
 			}
 
 		}
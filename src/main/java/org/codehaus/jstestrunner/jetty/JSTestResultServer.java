@@ -19,54 +19,230 @@
 
 package org.codehaus.jstestrunner.jetty;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.codehaus.jstestrunner.TestResultProducer;
 import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestResult;
 import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.server.handler.HandlerList;
-import org.eclipse.jetty.server.handler.ResourceHandler;
 import org.eclipse.jetty.server.nio.SelectChannelConnector;
 
 /**
- * A server responsible for obtaining results from an execution.
+ * A server responsible for obtaining results from an execution. A server can
+ * be shared by those that start and stop it; it runs while any of them have it
+ * started. A port of 0 binds to any free port. Files are served from the
+ * resource bases by way of a cache held in memory. Each suite sharing a server
+ * has a queue and results of its own, so that suites neither take each other's
+ * urls nor see each other's results.
  */
 public class JSTestResultServer {
 
+	/**
+	 * How long to wait for a test result once its url has been handed out
+	 * beyond the time that its tests may take, allowing for it to load.
+	 */
+	private static final long LOADING_TIMEOUT_MILLIS = 10000L;
+
+	/**
+	 * Servers shared within the JVM keyed by their port, context path and
+	 * resource bases.
+	 */
+	private static final Map<String, JSTestResultServer> SHARED_SERVERS = new HashMap<String, JSTestResultServer>();
+
+	/**
+	 * Get a server for a suite, sharing its web server with others requiring
+	 * the same port, context path and resource bases. The web server is created
+	 * if necessary, and is held for the suite until the suite's server is
+	 * stopped. The web server is stopped and no longer shared once the last of
+	 * the suites holding it has stopped theirs.
+	 * 
+	 * @param port
+	 *            the port to listen on, or 0 for any free port.
+	 * @param contextPath
+	 *            the context path.
+	 * @param resourceBases
+	 *            the folders that tests are served from.
+	 * @return the server of the suite.
+	 */
+	public static JSTestResultServer getSharedInstance(final int port,
+			final String contextPath, final String[] resourceBases) {
+		final String key = port + contextPath + Arrays.toString(resourceBases);
+		synchronized (SHARED_SERVERS) {
+			JSTestResultServer jSTestResultServer = SHARED_SERVERS.get(key);
+			if (jSTestResultServer == null) {
+				jSTestResultServer = new JSTestResultServer(new Server(),
+						new JSTestResultHandler(), port, contextPath,
+						resourceBases);
+				jSTestResultServer.sharedKey = key;
+				SHARED_SERVERS.put(key, jSTestResultServer);
+			}
+			++jSTestResultServer.holders;
+			return new JSTestResultServer(jSTestResultServer,
+					String.valueOf(jSTestResultServer.suiteIds
+							.incrementAndGet()));
+		}
+	}
+
 	private final Server webServer;
 
     private final JSTestResultHandler jsTestResultHandler;
 
-	private final Integer port;
+    private final JSTestWorkQueueHandler jsTestWorkQueueHandler;
+
+    private final JSTestBatchHandler jsTestBatchHandler;
+
+    /**
+     * Holds the files served from the resource bases in memory.
+     */
+    private final JSTestResourceCache resourceCache;
+
+    /**
+     * Finds the file of the resource bases that serves each path.
+     */
+    private final JSTestResourceIndex resourceIndex;
+
+	/**
+	 * The port listened on. Becomes the port actually bound to once bound.
+	 */
+	private volatile Integer port;
 
 	private final String contextPath;
 
     private final String[] resourceBases;
 
+	/**
+	 * The server whose web server serves us, being ourselves unless we are a
+	 * suite sharing it.
+	 */
+	private final JSTestResultServer sharedServer;
+
+	/**
+	 * The suite that we are, or null if we do not share a web server.
+	 */
+	private final String suite;
+
+	/**
+	 * Used to identify the suites sharing our web server.
+	 */
+	private final AtomicInteger suiteIds = new AtomicInteger();
+
+	/**
+	 * The started suites sharing our web server keyed by suite.
+	 */
+	private final ConcurrentMap<String, JSTestResultServer> suites = new ConcurrentHashMap<String, JSTestResultServer>();
+
+	/**
+	 * What we are shared by, or null if we are not shared. Guarded by the
+	 * shared servers.
+	 */
+	private String sharedKey;
+
+	/**
+	 * The number of suites holding our web server. Guarded by the shared
+	 * servers.
+	 */
+	private int holders;
+
+	/**
+	 * Set once a suite has stopped holding the web server that it shares.
+	 * Guarded by the shared servers.
+	 */
+	private boolean released;
+
     /**
      * @param webServer The Jetty server instance
      * @param jsTestResultHandler The handler of test results (POST requests)
      */
     public JSTestResultServer(final Server webServer, final JSTestResultHandler jsTestResultHandler,
                               final Integer port, final String contextPath, final String[] resourceBases) {
+        this(webServer, jsTestResultHandler, new JSTestWorkQueueHandler(), port, contextPath, resourceBases);
+    }
+
+    /**
+     * @param webServer The Jetty server instance
+     * @param jsTestResultHandler The handler of test results (POST requests)
+     * @param jsTestWorkQueueHandler The handler of requests for the next test
+     */
+    public JSTestResultServer(final Server webServer, final JSTestResultHandler jsTestResultHandler,
+                              final JSTestWorkQueueHandler jsTestWorkQueueHandler,
+                              final Integer port, final String contextPath, final String[] resourceBases) {
         this.webServer = webServer;
         this.jsTestResultHandler = jsTestResultHandler;
+        this.jsTestWorkQueueHandler = jsTestWorkQueueHandler;
+        this.jsTestBatchHandler = new JSTestBatchHandler(jsTestWorkQueueHandler);
         this.port = port;
         this.contextPath = contextPath;
         this.resourceBases = resourceBases;
+        this.resourceCache = new JSTestResourceCache();
+        this.resourceIndex = new JSTestResourceIndex(resourceBases);
+        this.sharedServer = this;
+        this.suite = null;
     }
 
+	/**
+	 * @param sharedServer
+	 *            the server whose web server serves the suite.
+	 * @param suite
+	 *            the suite.
+	 */
+	private JSTestResultServer(final JSTestResultServer sharedServer,
+			final String suite) {
+		this.webServer = sharedServer.webServer;
+		this.jsTestResultHandler = new JSTestResultHandler();
+		this.jsTestWorkQueueHandler = new JSTestWorkQueueHandler(suite);
+		this.jsTestBatchHandler = new JSTestBatchHandler(jsTestWorkQueueHandler);
+		this.port = sharedServer.port;
+		this.contextPath = sharedServer.contextPath;
+		this.resourceBases = sharedServer.resourceBases;
+		this.resourceCache = sharedServer.resourceCache;
+		this.resourceIndex = sharedServer.resourceIndex;
+		this.sharedServer = sharedServer;
+		this.suite = suite;
+	}
+
     /**
 	 * Set when the web server has been initialised.
 	 */
-	private final AtomicBoolean initedWebServer = new AtomicBoolean(false);
+	private boolean initedWebServer;
 
 	/**
-	 * Get a result for a given URL.
+	 * The connector that the web server listens with once initialised.
+	 */
+	private SelectChannelConnector connector;
+
+	/**
+	 * The number of starts not yet matched by a stop.
+	 */
+	private int starts;
+
+	/**
+	 * Get a result for a given URL. The time spent waiting for a url that is
+	 * yet to be handed out from the work queue does not count towards the
+	 * timeout, which allows for the time that the url's tests may take. A url
+	 * that has been split into parts is waited upon while any of its parts
+	 * without a result are, each subject to its own timeout. A url run within
+	 * a batch is subject to the timeout of its batch.
 	 * 
 	 * @param url
 	 *            the url to obtain the result for.
@@ -77,8 +253,149 @@ public class JSTestResultServer {
 	 */
 	public JSTestResult getJsTestResult(final URL url,
 			final TestResultProducer testResultProducer) {
-		return jsTestResultHandler.getJsTestResult(url, testResultProducer, 30,
-				TimeUnit.SECONDS);
+		final long testResultTimeout = getTestResultTimeoutMillis(url);
+		long deadline = System.currentTimeMillis() + testResultTimeout;
+		for (;;) {
+			final JSTestResult jsTestResult = jsTestResultHandler
+					.getJsTestResult(url, testResultProducer, deadline
+							- System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+			if (jsTestResult != null || !testResultProducer.isAvailable()) {
+				return jsTestResult;
+			}
+			final long now = System.currentTimeMillis();
+			List<URL> outstandingUrls = jsTestResultHandler.getPartUrls(url);
+			if (outstandingUrls.isEmpty()) {
+				outstandingUrls = Collections.singletonList(url);
+			}
+			boolean queued = false;
+			long expiry = 0L;
+			for (final URL outstandingUrl : outstandingUrls) {
+				if (outstandingUrl != url
+						&& jsTestResultHandler.getJsTestResultFuture(
+								outstandingUrl).isDone()) {
+					continue;
+				}
+				final URL batchUrl = jsTestWorkQueueHandler
+						.getBatchUrl(outstandingUrl);
+				final URL queuedUrl = batchUrl != null ? batchUrl
+						: outstandingUrl;
+				if (jsTestWorkQueueHandler.isQueued(queuedUrl)) {
+					queued = true;
+				} else {
+					expiry = Math.max(expiry,
+							jsTestWorkQueueHandler.getDispatchTime(queuedUrl)
+									+ getTestResultTimeoutMillis(queuedUrl));
+				}
+			}
+			if (queued) {
+				deadline = now + testResultTimeout;
+			} else if (expiry <= now) {
+				if (!jsTestResultHandler.getJsTestResultFuture(url).isDone()) {
+					return null;
+				}
+				deadline = now;
+			} else {
+				deadline = expiry;
+			}
+		}
+	}
+
+	/**
+	 * Get the url that execution servers request their next test from.
+	 * 
+	 * @param host
+	 *            the host that execution servers reach this server by.
+	 * @param worker
+	 *            identifies the execution server making requests.
+	 * @return the url.
+	 * @throws MalformedURLException
+	 *             if the url cannot be formed.
+	 */
+	public URL getNextTestUrl(final String host, final String worker)
+			throws MalformedURLException {
+		return getNextTestUrl(host, worker, 1);
+	}
+
+	/**
+	 * Get the url that execution servers request their next test from, telling
+	 * them how many pages to run tests with at once.
+	 * 
+	 * @param host
+	 *            the host that execution servers reach this server by.
+	 * @param worker
+	 *            identifies the execution server making requests.
+	 * @param pages
+	 *            the number of pages that the execution server runs tests with
+	 *            at once, each requesting its own next test.
+	 * @return the url.
+	 * @throws MalformedURLException
+	 *             if the url cannot be formed.
+	 */
+	public URL getNextTestUrl(final String host, final String worker,
+			final int pages) throws MalformedURLException {
+		final StringBuilder path = new StringBuilder(contextPath);
+		if (path.length() == 0 || path.charAt(path.length() - 1) != '/') {
+			path.append('/');
+		}
+		path.append("nextTest?worker=").append(worker);
+		if (pages > 1) {
+			path.append("&pages=").append(pages);
+		}
+		if (suite != null) {
+			path.append('&').append(JSTestWorkQueueHandler.SUITE_PARAMETER)
+					.append('=').append(suite);
+		}
+		return new URL("http", host, getPort(), path.toString());
+	}
+
+	/**
+	 * Get the url of the composite document that runs a batch of urls.
+	 * 
+	 * @param urls
+	 *            the urls, each served by this server.
+	 * @return the url.
+	 * @throws MalformedURLException
+	 *             if the url cannot be formed.
+	 */
+	public URL getBatchUrl(final List<URL> urls) throws MalformedURLException {
+		final StringBuilder path = new StringBuilder(contextPath);
+		if (path.length() > 0 && path.charAt(path.length() - 1) == '/') {
+			path.setLength(path.length() - 1);
+		}
+		path.append(JSTestBatchHandler.PATH);
+		char separator = '?';
+		for (final URL url : urls) {
+			try {
+				path.append(separator).append("url=")
+						.append(URLEncoder.encode(url.toString(), "UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+			separator = '&';
+		}
+		final URL url = urls.get(0);
+		return new URL(url.getProtocol(), url.getHost(), url.getPort(),
+				path.toString());
+	}
+
+	/**
+	 * Get the worker identified by a url that execution servers request their
+	 * next test from.
+	 * 
+	 * @param nextTestUrl
+	 *            the url.
+	 * @return the worker or null if the url does not identify one.
+	 */
+	public String getWorker(final URL nextTestUrl) {
+		final String query = nextTestUrl.getQuery();
+		if (query != null) {
+			for (final String parameter : query.split("&")) {
+				if (parameter.startsWith("worker=")) {
+					return parameter.substring("worker=".length());
+				}
+			}
+		}
+		return null;
 	}
 
 	/**
@@ -86,18 +403,38 @@ public class JSTestResultServer {
 	 */
 	private void initWebServer() {
 
-		final SelectChannelConnector connector = new SelectChannelConnector();
+		connector = new SelectChannelConnector();
 		connector.setPort(port);
 		webServer.addConnector(connector);
 
-		final Handler[] handlers = new Handler[resourceBases.length + 1];
-		int i = 0;
-		for (String resourceBase : resourceBases) {
-			final ResourceHandler resourceHandler = new ResourceHandler();
-			resourceHandler.setResourceBase(resourceBase);
-			handlers[i++] = resourceHandler;
-		}
-		handlers[i] = jsTestResultHandler;
+		// Requests for the next test and for batches are handed to the suite
+		// that they are made for. What is posted about a url is passed on to
+		// its suite by our result handler.
+		final Handler suiteHandler = new AbstractHandler() {
+			public void handle(final String target, final Request baseRequest,
+					final HttpServletRequest request,
+					final HttpServletResponse response) throws IOException,
+					ServletException {
+				final String suite = request
+						.getParameter(JSTestWorkQueueHandler.SUITE_PARAMETER);
+				final JSTestResultServer suiteServer = suite != null ? suites
+						.get(suite) : null;
+				if (suiteServer != null) {
+					suiteServer.jsTestWorkQueueHandler.handle(target,
+							baseRequest, request, response);
+					if (!baseRequest.isHandled()) {
+						suiteServer.jsTestBatchHandler.handle(target,
+								baseRequest, request, response);
+					}
+				}
+			}
+		};
+
+		// Requests of the server itself come first so that they are not held
+		// up by looking for files.
+		final Handler[] handlers = new Handler[] { suiteHandler,
+				jsTestResultHandler, jsTestWorkQueueHandler, jsTestBatchHandler,
+				new JSTestResourceHandler(resourceCache, resourceIndex) };
 
 		HandlerList handlerList = new HandlerList();
 		handlerList.setHandlers(handlers);
@@ -111,30 +448,176 @@ public class JSTestResultServer {
 	}
 
 	/**
-	 * Start the server.
+	 * Bind the server's port without starting it so that the port is known
+	 * beforehand. Having bound to any free port, the server continues to use
+	 * that port should it be restarted.
+	 * 
+	 * @return the port bound to.
+	 * @throws IOException
+	 *             if the port cannot be bound.
+	 */
+	public synchronized int bind() throws IOException {
+		if (sharedServer != this) {
+			return sharedServer.bind();
+		}
+		if (!initedWebServer) {
+			initWebServer();
+			initedWebServer = true;
+		}
+		connector.open();
+		port = connector.getLocalPort();
+		connector.setPort(port);
+		return port;
+	}
+
+	/**
+	 * Start the server unless it has already been started by another. A
+	 * suite sharing the server is handed its requests once started.
+	 * 
+	 * @throws Exception
+	 *             if something goes wrong.
+	 */
+	public synchronized void start() throws Exception {
+		if (sharedServer != this) {
+			synchronized (SHARED_SERVERS) {
+				if (released) {
+					throw new IllegalStateException(
+							"The suite no longer holds the server");
+				}
+			}
+			if (starts == 0) {
+				sharedServer.addSuite(this);
+				try {
+					sharedServer.startWebServer();
+				} catch (Exception e) {
+					sharedServer.removeSuite(this);
+					throw e;
+				}
+			}
+			++starts;
+			return;
+		}
+		if (starts == 0) {
+			startWebServer();
+		}
+		++starts;
+	}
+
+	/**
+	 * Stop the server once each start has been matched by a stop, closing any
+	 * port bound even if the server was never started. A suite sharing the
+	 * server stops holding it, so that the web server is stopped once the last
+	 * of the suites holding it has stopped.
 	 * 
 	 * @throws Exception
 	 *             if something goes wrong.
 	 */
-	public void start() throws Exception {
-		if (!initedWebServer.getAndSet(true)) {
+	public synchronized void stop() throws Exception {
+		if (sharedServer != this) {
+			if (starts > 0) {
+				starts = 0;
+				sharedServer.removeSuite(this);
+			}
+			boolean lastHolder = false;
+			synchronized (SHARED_SERVERS) {
+				if (!released) {
+					released = true;
+					lastHolder = --sharedServer.holders == 0;
+					if (lastHolder
+							&& SHARED_SERVERS.get(sharedServer.sharedKey) == sharedServer) {
+						SHARED_SERVERS.remove(sharedServer.sharedKey);
+					}
+				}
+			}
+			if (lastHolder) {
+				sharedServer.stopWebServer();
+			}
+			return;
+		}
+		if (starts > 0) {
+			--starts;
+		}
+		if (starts == 0) {
+			stopWebServer();
+		}
+	}
+
+	/**
+	 * Start the web server unless it is already running.
+	 * 
+	 * @throws Exception
+	 *             if something goes wrong.
+	 */
+	private synchronized void startWebServer() throws Exception {
+		if (!initedWebServer) {
 			initWebServer();
+			initedWebServer = true;
+		}
+		if (!webServer.isRunning()) {
+			try {
+				webServer.start();
+			} catch (Exception e) {
+				webServer.stop();
+				throw e;
+			}
 		}
-		webServer.start();
 	}
 
 	/**
-	 * Stop the server.
+	 * Stop the web server and close any port bound.
 	 * 
 	 * @throws Exception
 	 *             if something goes wrong.
 	 */
-	public void stop() throws Exception {
-		if (initedWebServer.get()) {
+	private synchronized void stopWebServer() throws Exception {
+		try {
 			webServer.stop();
+		} finally {
+			if (connector != null) {
+				connector.close();
+			}
 		}
 	}
 
+	/**
+	 * Hand a suite sharing our web server its requests.
+	 * 
+	 * @param suiteServer
+	 *            the server of the suite.
+	 */
+	private void addSuite(final JSTestResultServer suiteServer) {
+		suites.put(suiteServer.suite, suiteServer);
+		jsTestResultHandler.addSuiteHandler(suiteServer.suite,
+				suiteServer.jsTestResultHandler);
+	}
+
+	/**
+	 * Stop handing a suite its requests.
+	 * 
+	 * @param suiteServer
+	 *            the server of the suite.
+	 */
+	private void removeSuite(final JSTestResultServer suiteServer) {
+		jsTestResultHandler.removeSuiteHandler(suiteServer.suite);
+		suites.remove(suiteServer.suite);
+	}
+
+    /**
+     * @return how long to wait for a test result once its url has been handed out, unless its url declares
+     *         otherwise.
+     */
+    public long getTestResultTimeoutMillis() {
+        return JSTestWorkQueueHandler.DEFAULT_TIMEOUT_MILLIS + LOADING_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * @param url the url to obtain the result for.
+     * @return how long to wait for the url's result once it has been handed out.
+     */
+    public long getTestResultTimeoutMillis(final URL url) {
+        return jsTestWorkQueueHandler.getTimeoutMillis(url) + LOADING_TIMEOUT_MILLIS;
+    }
+
     public Server getWebServer() {
         return webServer;
     }
@@ -143,8 +626,31 @@ public class JSTestResultServer {
         return jsTestResultHandler;
     }
 
+    public JSTestWorkQueueHandler getJsTestWorkQueueHandler() {
+        return jsTestWorkQueueHandler;
+    }
+
+    public JSTestBatchHandler getJsTestBatchHandler() {
+        return jsTestBatchHandler;
+    }
+
+    public JSTestResourceCache getResourceCache() {
+        return resourceCache;
+    }
+
+    public JSTestResourceIndex getResourceIndex() {
+        return resourceIndex;
+    }
+
     public Integer getPort() {
-        return port;
+        return sharedServer.port;
+    }
+
+    /**
+     * @return the suite that we are, or null if we do not share a web server.
+     */
+    public String getSuite() {
+        return suite;
     }
 
     public String getContextPath() {
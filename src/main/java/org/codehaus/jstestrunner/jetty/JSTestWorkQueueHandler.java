@@ -0,0 +1,614 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner.jetty;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+/**
+ * Hand out test urls to execution servers as they ask for them. Each execution
+ * server requests its next url once it has finished with its previous one so
+ * that work is shared out according to how quickly it is processed. Each url is
+ * handed out along with how long its tests may take to complete. An execution
+ * server can be told to recycle instead, so that it exits once it has finished
+ * with the urls it has and a fresh one can take over. Each suite sharing a
+ * server has a queue of its own, whose urls carry the suite as they are handed
+ * out so that what is posted about them is told apart from the same urls of
+ * other suites.
+ */
+public class JSTestWorkQueueHandler extends AbstractHandler {
+
+	/**
+	 * How long the tests of a url may take to complete once loaded unless
+	 * declared otherwise.
+	 */
+	public static final long DEFAULT_TIMEOUT_MILLIS = 20000L;
+
+	/**
+	 * What a worker is told instead of its next url when it is to recycle.
+	 */
+	public static final String RECYCLE = "recycle";
+
+	/**
+	 * The parameter that identifies a suite sharing a server, which is last
+	 * within the urls of the suite as they are handed out.
+	 */
+	public static final String SUITE_PARAMETER = "suite";
+
+	/**
+	 * The suite whose queue this is, or null if the queue is not shared.
+	 */
+	private final String suite;
+
+	/**
+	 * The urls that have yet to be handed out, in the order that they will be.
+	 */
+	private final LinkedList<String> queuedUrls = new LinkedList<String>();
+
+	/**
+	 * The number of times that each url is in the queue, so that whether a url
+	 * is queued is told without searching the queue.
+	 */
+	private final Map<String, Integer> queuedCounts = new HashMap<String, Integer>();
+
+	/**
+	 * When each url was handed out.
+	 */
+	private final Map<String, Long> dispatchTimes = new HashMap<String, Long>();
+
+	/**
+	 * How long the tests of each url may take where declared.
+	 */
+	private final Map<String, Long> timeouts = new HashMap<String, Long>();
+
+	/**
+	 * The url most recently handed out to each worker, or to each page of a
+	 * worker that runs several pages at once, keyed by the worker followed by
+	 * '/' and the page.
+	 */
+	private final Map<String, String> dispatchedUrlsByWorker = new LinkedHashMap<String, String>();
+
+	/**
+	 * The batch that each url is run within, where it is.
+	 */
+	private final Map<String, URL> batchUrls = new HashMap<String, URL>();
+
+	/**
+	 * The urls still run within each batch in the order that they run, keyed
+	 * by the url of the batch.
+	 */
+	private final Map<String, Set<String>> batchedUrls = new HashMap<String, Set<String>>();
+
+	/**
+	 * The number of urls handed out to each worker since it was last reset.
+	 */
+	private final Map<String, Integer> dispatchCounts = new HashMap<String, Integer>();
+
+	/**
+	 * The number of urls that each worker may be handed before it is to
+	 * recycle, where limited.
+	 */
+	private final Map<String, Integer> maxDispatches = new HashMap<String, Integer>();
+
+	/**
+	 * The workers that are to recycle.
+	 */
+	private final Set<String> recyclingWorkers = new HashSet<String>();
+
+	/**
+	 * Used to identify workers.
+	 */
+	private final AtomicInteger workers = new AtomicInteger();
+
+	public JSTestWorkQueueHandler() {
+		this(null);
+	}
+
+	/**
+	 * @param suite
+	 *            the suite whose queue this is, or null if the queue is not
+	 *            shared.
+	 */
+	public JSTestWorkQueueHandler(final String suite) {
+		this.suite = suite;
+	}
+
+	/**
+	 * @return the suite whose queue this is, or null if the queue is not
+	 *         shared.
+	 */
+	public String getSuite() {
+		return suite;
+	}
+
+	/**
+	 * Add our suite to a url as it is handed out.
+	 * 
+	 * @param url
+	 *            the url.
+	 * @return the url carrying the suite.
+	 */
+	public String addSuite(final String url) {
+		if (suite == null) {
+			return url;
+		}
+		return url + (url.indexOf('?') >= 0 ? '&' : '?') + SUITE_PARAMETER
+				+ "=" + suite;
+	}
+
+	/**
+	 * Find where the suite that a url was handed out for begins.
+	 * 
+	 * @param url
+	 *            the url.
+	 * @return the index of the suite parameter's separator or -1 if the url
+	 *         does not carry a suite.
+	 */
+	private static int indexOfSuite(final String url) {
+		final int suiteStart = url.lastIndexOf(SUITE_PARAMETER + "=");
+		if (suiteStart < 1) {
+			return -1;
+		}
+		final char separator = url.charAt(suiteStart - 1);
+		if ((separator != '?' && separator != '&')
+				|| url.indexOf('&', suiteStart) >= 0
+				|| url.indexOf('#', suiteStart) >= 0) {
+			return -1;
+		}
+		return suiteStart - 1;
+	}
+
+	/**
+	 * Get the suite that a url was handed out for.
+	 * 
+	 * @param url
+	 *            the url.
+	 * @return the suite or null if the url does not carry one.
+	 */
+	public static String getUrlSuite(final String url) {
+		final int suiteStart = indexOfSuite(url);
+		return suiteStart >= 0 ? url.substring(suiteStart
+				+ SUITE_PARAMETER.length() + 2) : null;
+	}
+
+	/**
+	 * Get a url as it was before being handed out for a suite.
+	 * 
+	 * @param url
+	 *            the url.
+	 * @return the url without any suite.
+	 */
+	public static String removeUrlSuite(final String url) {
+		final int suiteStart = indexOfSuite(url);
+		return suiteStart >= 0 ? url.substring(0, suiteStart) : url;
+	}
+
+	/**
+	 * Identify a new worker. Identities are unique for the queue, which is our
+	 * suite's own.
+	 * 
+	 * @return the identity.
+	 */
+	public String newWorker() {
+		return String.valueOf(workers.getAndIncrement());
+	}
+
+	/**
+	 * Add urls to the end of the queue.
+	 *
+	 * @param urls
+	 *            the urls to add.
+	 */
+	public synchronized void submit(final List<URL> urls) {
+		for (final URL url : urls) {
+			unbatch(url.toString());
+			enqueue(url.toString());
+		}
+	}
+
+	/**
+	 * Add a batch to the end of the queue. The batch is handed out as one url
+	 * that runs each of the urls within it in turn, so they are not queued
+	 * themselves. Submitting one of them again takes it out of the batch.
+	 *
+	 * @param batchUrl
+	 *            the url of the batch.
+	 * @param urls
+	 *            the urls within the batch.
+	 */
+	public synchronized void submitBatch(final URL batchUrl,
+			final List<URL> urls) {
+		for (final URL url : urls) {
+			unbatch(url.toString());
+		}
+		Set<String> urlsInBatch = batchedUrls.get(batchUrl.toString());
+		if (urlsInBatch == null) {
+			urlsInBatch = new LinkedHashSet<String>();
+			batchedUrls.put(batchUrl.toString(), urlsInBatch);
+		}
+		for (final URL url : urls) {
+			batchUrls.put(url.toString(), batchUrl);
+			urlsInBatch.add(url.toString());
+		}
+		enqueue(batchUrl.toString());
+	}
+
+	/**
+	 * Take a url out of the batch that it is run within, if any.
+	 *
+	 * @param url
+	 *            the url.
+	 */
+	private void unbatch(final String url) {
+		final URL batchUrl = batchUrls.remove(url);
+		if (batchUrl != null) {
+			final Set<String> urlsInBatch = batchedUrls.get(batchUrl.toString());
+			urlsInBatch.remove(url);
+			if (urlsInBatch.isEmpty()) {
+				batchedUrls.remove(batchUrl.toString());
+			}
+		}
+	}
+
+	private void enqueue(final String url) {
+		queuedUrls.add(url);
+		final Integer queuedCount = queuedCounts.get(url);
+		queuedCounts.put(url, queuedCount != null ? queuedCount + 1 : 1);
+	}
+
+	private String dequeue() {
+		final String url = queuedUrls.poll();
+		if (url != null) {
+			final int queuedCount = queuedCounts.get(url);
+			if (queuedCount > 1) {
+				queuedCounts.put(url, queuedCount - 1);
+			} else {
+				queuedCounts.remove(url);
+			}
+		}
+		return url;
+	}
+
+	/**
+	 * Get the batch that a url is run within.
+	 *
+	 * @param url
+	 *            the url.
+	 * @return the url of the batch or null if the url is not within one.
+	 */
+	public synchronized URL getBatchUrl(final URL url) {
+		return batchUrls.get(url.toString());
+	}
+
+	/**
+	 * Get the urls that are still run within a batch.
+	 *
+	 * @param batchUrl
+	 *            the url of the batch.
+	 * @return the urls in the order that they run.
+	 */
+	public synchronized List<URL> getBatchedUrls(final URL batchUrl) {
+		final Set<String> urlsInBatch = batchedUrls.get(batchUrl.toString());
+		if (urlsInBatch == null) {
+			return new ArrayList<URL>();
+		}
+		final List<URL> urls = new ArrayList<URL>(urlsInBatch.size());
+		for (final String url : urlsInBatch) {
+			try {
+				urls.add(new URL(url));
+			} catch (MalformedURLException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return urls;
+	}
+
+	/**
+	 * Declare how long the tests of a url may take to complete once loaded.
+	 * 
+	 * @param url
+	 *            the url.
+	 * @param timeoutMillis
+	 *            the time in milliseconds.
+	 */
+	public synchronized void setTimeoutMillis(final URL url,
+			final long timeoutMillis) {
+		timeouts.put(url.toString(), timeoutMillis);
+	}
+
+	/**
+	 * Get how long the tests of a url may take to complete once loaded.
+	 * 
+	 * @param url
+	 *            the url.
+	 * @return the time in milliseconds.
+	 */
+	public synchronized long getTimeoutMillis(final URL url) {
+		return getTimeoutMillis(url.toString());
+	}
+
+	private synchronized long getTimeoutMillis(final String url) {
+		final Long timeout = timeouts.get(url);
+		return timeout != null ? timeout : DEFAULT_TIMEOUT_MILLIS;
+	}
+
+	/**
+	 * Take the next url from the queue.
+	 *
+	 * @param worker
+	 *            identifies who the url is being handed to. Can be null.
+	 * @return the url or null if there are none left.
+	 */
+	public synchronized String takeNext(final String worker) {
+		final String url = dequeue();
+		if (url != null) {
+			dispatchTimes.put(url, System.currentTimeMillis());
+			if (worker != null) {
+				dispatchedUrlsByWorker.put(worker, url);
+				final String baseWorker = getBaseWorker(worker);
+				final Integer dispatchCount = dispatchCounts.get(baseWorker);
+				dispatchCounts.put(baseWorker, dispatchCount != null ? dispatchCount + 1 : 1);
+			}
+		}
+		return url;
+	}
+
+	/**
+	 * Get the worker that a page belongs to.
+	 *
+	 * @param worker
+	 *            the worker, or the worker followed by '/' and a page.
+	 * @return the worker.
+	 */
+	private static String getBaseWorker(final String worker) {
+		final int pageStart = worker.indexOf('/');
+		return pageStart >= 0 ? worker.substring(0, pageStart) : worker;
+	}
+
+	/**
+	 * Limit the number of urls that a worker may be handed before it is to
+	 * recycle.
+	 *
+	 * @param worker
+	 *            the worker.
+	 * @param maxDispatchCount
+	 *            the number of urls, or 0 for no limit.
+	 */
+	public synchronized void setMaxDispatches(final String worker,
+			final int maxDispatchCount) {
+		if (maxDispatchCount > 0) {
+			maxDispatches.put(worker, maxDispatchCount);
+		} else {
+			maxDispatches.remove(worker);
+		}
+	}
+
+	/**
+	 * Tell a worker to recycle when it next asks for a url, rather than
+	 * handing it one.
+	 *
+	 * @param worker
+	 *            the worker.
+	 */
+	public synchronized void recycle(final String worker) {
+		recyclingWorkers.add(worker);
+	}
+
+	/**
+	 * Determine whether a worker is to recycle.
+	 *
+	 * @param worker
+	 *            the worker.
+	 * @return true if it is.
+	 */
+	public synchronized boolean isRecycling(final String worker) {
+		return recyclingWorkers.contains(worker);
+	}
+
+	/**
+	 * Reset a worker once it has recycled so that it is handed urls again.
+	 *
+	 * @param worker
+	 *            the worker.
+	 */
+	public synchronized void reset(final String worker) {
+		recyclingWorkers.remove(worker);
+		dispatchCounts.remove(worker);
+	}
+
+	/**
+	 * Take the next url from the queue for a worker, unless the worker is to
+	 * recycle, either because it has been told to or because it has been
+	 * handed as many urls as it may be.
+	 *
+	 * @param worker
+	 *            the worker, or the worker followed by '/' and a page.
+	 * @return the url, {@link #RECYCLE} if the worker is to recycle, or null
+	 *         if there are none left.
+	 */
+	private synchronized String takeNextOrRecycle(final String worker) {
+		if (worker != null) {
+			final String baseWorker = getBaseWorker(worker);
+			final Integer maxDispatchCount = maxDispatches.get(baseWorker);
+			final Integer dispatchCount = dispatchCounts.get(baseWorker);
+			if (maxDispatchCount != null && dispatchCount != null
+					&& dispatchCount >= maxDispatchCount && !queuedUrls.isEmpty()) {
+				recyclingWorkers.add(baseWorker);
+			}
+			if (recyclingWorkers.contains(baseWorker)) {
+				return RECYCLE;
+			}
+		}
+		return takeNext(worker);
+	}
+
+	/**
+	 * Take every url remaining in the queue e.g. because there is nothing left
+	 * to request them.
+	 *
+	 * @return the urls.
+	 */
+	public synchronized List<String> takeAll() {
+		final List<String> urls = new ArrayList<String>(queuedUrls);
+		queuedUrls.clear();
+		queuedCounts.clear();
+		return urls;
+	}
+
+	/**
+	 * Determine whether any urls are still waiting to be handed out.
+	 *
+	 * @return true if there are none.
+	 */
+	public synchronized boolean isEmpty() {
+		return queuedUrls.isEmpty();
+	}
+
+	/**
+	 * Determine whether a url is still waiting to be handed out.
+	 *
+	 * @param url
+	 *            the url to test.
+	 * @return true if it is queued.
+	 */
+	public synchronized boolean isQueued(final URL url) {
+		return queuedCounts.containsKey(url.toString());
+	}
+
+	/**
+	 * Get the time that a url was handed out.
+	 *
+	 * @param url
+	 *            the url.
+	 * @return the time in milliseconds or 0 if it has not been handed out.
+	 */
+	public synchronized long getDispatchTime(final URL url) {
+		final Long dispatchTime = dispatchTimes.get(url.toString());
+		return dispatchTime != null ? dispatchTime : 0L;
+	}
+
+	/**
+	 * Get the url most recently handed out to a worker.
+	 *
+	 * @param worker
+	 *            the worker.
+	 * @return the url or null if the worker has not been handed one.
+	 */
+	public synchronized String getDispatchedUrl(final String worker) {
+		return dispatchedUrlsByWorker.get(worker);
+	}
+
+	/**
+	 * Get the urls most recently handed out to a worker, being one for each of
+	 * the pages that it runs tests with.
+	 *
+	 * @param worker
+	 *            the worker.
+	 * @return the urls, which are empty if the worker has not been handed any.
+	 */
+	public synchronized List<String> getDispatchedUrls(final String worker) {
+		final List<String> urls = new ArrayList<String>();
+		for (final Map.Entry<String, String> dispatchedUrl : dispatchedUrlsByWorker
+				.entrySet()) {
+			if (dispatchedUrl.getKey().equals(worker)
+					|| dispatchedUrl.getKey().startsWith(worker + "/")) {
+				urls.add(dispatchedUrl.getValue());
+			}
+		}
+		return urls;
+	}
+
+	/**
+	 * Take the urls most recently handed out to a worker so that they are no
+	 * longer considered to be with it e.g. because they are to be run again
+	 * elsewhere.
+	 *
+	 * @param worker
+	 *            the worker.
+	 * @return the urls, which are empty if the worker has not been handed any.
+	 */
+	public synchronized List<String> takeDispatchedUrls(final String worker) {
+		final List<String> urls = new ArrayList<String>();
+		for (final Iterator<Map.Entry<String, String>> dispatchedUrls = dispatchedUrlsByWorker
+				.entrySet().iterator(); dispatchedUrls.hasNext();) {
+			final Map.Entry<String, String> dispatchedUrl = dispatchedUrls.next();
+			if (dispatchedUrl.getKey().equals(worker)
+					|| dispatchedUrl.getKey().startsWith(worker + "/")) {
+				urls.add(dispatchedUrl.getValue());
+				dispatchedUrls.remove();
+			}
+		}
+		return urls;
+	}
+
+	/**
+	 * Handle a request for the next test. The url is returned as plain text
+	 * followed by a line giving how long its tests may take in milliseconds, or
+	 * no content is returned when the queue is empty. A worker running several
+	 * pages at once identifies the page requesting. A worker that is to
+	 * recycle is told so instead of being handed a url.
+	 */
+	public void handle(final String target, final Request baseRequest,
+			final HttpServletRequest request, final HttpServletResponse response)
+			throws IOException, ServletException {
+		if (target.equals("/nextTest")) {
+
+			final String worker = request.getParameter("worker");
+			final String page = request.getParameter("page");
+			final String url = takeNextOrRecycle(worker != null && page != null ? worker
+					+ "/" + page : worker);
+
+			response.setHeader("Cache-Control", "no-cache");
+			if (RECYCLE.equals(url)) {
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.setContentType("text/plain");
+				response.getWriter().print(RECYCLE);
+			} else if (url != null) {
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.setContentType("text/plain");
+				response.getWriter().print(
+						addSuite(url) + "\n" + getTimeoutMillis(url));
+			} else {
+				response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+			}
+
+			baseRequest.setHandled(true);
+		}
+	}
+}
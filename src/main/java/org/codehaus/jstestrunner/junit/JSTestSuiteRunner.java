@@ -19,28 +19,62 @@
 
 package org.codehaus.jstestrunner.junit;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Inherited;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.codehaus.jstestrunner.JSTestBatcher;
+import org.codehaus.jstestrunner.JSTestDependencies;
 import org.codehaus.jstestrunner.JSTestExecutionServer;
+import org.codehaus.jstestrunner.JSTestModuleSplitter;
+import org.codehaus.jstestrunner.JSTestResultCache;
 import org.codehaus.jstestrunner.JSTestSuiteRunnerService;
+import org.codehaus.jstestrunner.JSTestTimeouts;
+import org.codehaus.jstestrunner.JSTestTimingStore;
 import org.codehaus.jstestrunner.jetty.JSTestResultHandler;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestCaseListener;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestCaseResult;
 import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestResult;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestResultListener;
 import org.codehaus.jstestrunner.jetty.JSTestResultServer;
-import org.eclipse.jetty.server.Server;
+import org.codehaus.jstestrunner.jetty.JSTestWorkQueueHandler;
 import org.junit.runner.Description;
+import org.junit.runner.Result;
 import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
 import org.junit.runner.notification.RunNotifier;
+import org.junit.runner.notification.StoppedByUserException;
 import org.junit.runners.ParentRunner;
 import org.junit.runners.model.InitializationError;
+import org.junit.runners.model.RunnerScheduler;
 import org.junit.runners.model.Statement;
 
 /**
@@ -48,7 +82,8 @@ import org.junit.runners.model.Statement;
  * URLs to be requested that will cause tests to occur. The test runner will
  * first ensure that a test results server container is started. By default the
  * test results server will listen for requests on 0.0.0.0:9080. Theses defaults
- * can be overridden.
+ * can be overridden. The test results server is shared with other suites in
+ * the same JVM that use the same port, context path and resource bases.
  * 
  * <p>
  * Once the test results server started it will then map the context path for
@@ -59,7 +94,19 @@ import org.junit.runners.model.Statement;
  * <p>
  * A test execution server is also managed as a separate process. The command
  * used by the test runner is expected as a system property named
- * "org.codehaus.jstestrunner.commandPattern".
+ * "org.codehaus.jstestrunner.commandPattern". Tests are shared between a
+ * number of these processes which by default is the number of available
+ * processors. Each process requests its next test from the test results
+ * server as it completes its previous one, and may run several tests at once
+ * with a page for each. Processes can be recycled after a number of pages or
+ * once they hold too much memory. Setting the
+ * "org.codehaus.jstestrunner.daemon" system property to true keeps these
+ * processes running for use by later suites in the same JVM. Results are waited upon and
+ * reported by a number of threads which by default is the number of
+ * processes, or they can be reported in the order that they complete. The
+ * individual tests within each url can also be reported as they finish, and
+ * urls that take long can be split into a url per QUnit module, while those
+ * that take little time can be run in batches by a single page load.
  * 
  * <p>
  * 
@@ -69,6 +116,68 @@ import org.junit.runners.model.Statement;
  */
 public class JSTestSuiteRunner extends ParentRunner<URL> {
 
+	/**
+	 * Describes that the timeout of each url is to be derived from how long it
+	 * took in earlier runs, being the 99th percentile of its recorded durations
+	 * multiplied by a factor but no less than a floor in seconds. Urls yet to
+	 * be recorded use the timeout declared for them. Timings are recorded in
+	 * the test runner file path. The
+	 * "org.codehaus.jstestrunner.adaptiveTimeouts" system property can also be
+	 * set to true for this, using the default factor and floor.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	@Inherited
+	public @interface AdaptiveTimeouts {
+		double factor() default 3;
+
+		int floor() default 2;
+	}
+
+	/**
+	 * Describes that urls taking less than a number of seconds are to be run
+	 * in batches of up to a number of urls, each batch being run by a single
+	 * page load of a composite document that loads its urls in turn. By
+	 * default batches hold up to 10 urls that take less than a second, as
+	 * told by the timings of earlier runs. Urls yet to be timed are batched.
+	 * The "org.codehaus.jstestrunner.batchTests" system property can also be
+	 * set to the number of urls for this.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	@Inherited
+	public @interface BatchTests {
+		int value() default 10;
+
+		int maxDuration() default 1;
+	}
+
+	/**
+	 * Describes that the result of each url is to be reused from an earlier
+	 * run while its test document and the local scripts and stylesheets that
+	 * it references are unchanged. Results are kept in the test runner file
+	 * path, and reused results are marked as cached when they fail. The
+	 * "org.codehaus.jstestrunner.cacheResults" system property can also be set
+	 * to true for this.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	@Inherited
+	public @interface CacheResults {
+	}
+
+	/**
+	 * Describes that test results are to be reported in the order that they
+	 * complete rather than in the order that tests were found. The
+	 * "org.codehaus.jstestrunner.completionOrder" system property can also be
+	 * set to true for this.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	@Inherited
+	public @interface CompletionOrder {
+	}
+
 	/**
 	 * Describes the context path used by the test results server. Defaults to
 	 * "/".
@@ -90,9 +199,27 @@ public class JSTestSuiteRunner extends ParentRunner<URL> {
 		String[] value();
 	}
 
+	/**
+	 * Describes the number of seconds that a url may go without a heartbeat
+	 * before it is failed and its test execution server process is killed.
+	 * Heartbeats are sent by the url each second while its tests run, even
+	 * while a test waits on something asynchronous. By default this is 0,
+	 * which disables the detection of hangs. The
+	 * "org.codehaus.jstestrunner.hangTimeout" system property takes precedence
+	 * over this annotation.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	@Inherited
+	public @interface HangTimeout {
+		int value();
+	}
+
 	/**
 	 * Describes the host and port of the test results server using the
-	 * host:port convention.
+	 * host:port convention. A port of 0 uses any free port. The
+	 * "org.codehaus.jstestrunner.port" system property takes precedence over
+	 * the port declared here.
 	 */
 	@Retention(RetentionPolicy.RUNTIME)
 	@Target(ElementType.TYPE)
@@ -111,20 +238,59 @@ public class JSTestSuiteRunner extends ParentRunner<URL> {
 		String[] value();
 	}
 
+	/**
+	 * Describes the number of pages that each test execution server process
+	 * runs tests with at once, each page requesting its own next test. By
+	 * default this is 1. Running several pages in one process gives
+	 * parallelism without the memory and startup cost of a process for each.
+	 * The "org.codehaus.jstestrunner.pagesPerWorker" system property takes
+	 * precedence over this annotation.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	@Inherited
+	public @interface PagesPerWorker {
+		int value();
+	}
+
+	/**
+	 * Describes that test execution server processes are to be recycled after
+	 * they have been handed a number of pages, or once they hold more than a
+	 * number of megabytes of memory as told by /proc on Linux. A process being
+	 * recycled finishes with the pages that it has and then exits, a fresh one
+	 * continuing with the tests remaining. This keeps browsers that leak from
+	 * slowing down as they grow. By default neither limit applies. The
+	 * "org.codehaus.jstestrunner.recyclePages" and
+	 * "org.codehaus.jstestrunner.recycleMemory" system properties take
+	 * precedence over this annotation.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	@Inherited
+	public @interface Recycle {
+		int pages() default 0;
+
+		int memory() default 0;
+	}
+
 	/**
 	 * A JavaScript execution failure object.
 	 */
 	private static class JSTestFailure extends Failure {
-		private final URL url;
+		private final String testHeader;
 
 		public JSTestFailure(final Description description, final URL url, final String message) {
+			this(description, JSTestSuiteRunnerService.getFormattedPath(url), message);
+		}
+
+		public JSTestFailure(final Description description, final String testHeader, final String message) {
 			super(description, new RuntimeException(message));
-			this.url = url;
+			this.testHeader = testHeader;
 		}
 
 		@Override
 		public String getTestHeader() {
-			return JSTestSuiteRunnerService.getFormattedPath(url);
+			return testHeader;
 		}
 
 		@Override
@@ -140,6 +306,334 @@ public class JSTestSuiteRunner extends ParentRunner<URL> {
 
 	}
 
+	/**
+	 * Reports the individual tests of a url as they progress, each described as
+	 * a child of its module, which is a child of the url's description. A test
+	 * is reported as started and finished as its events arrive, so that how
+	 * long it takes is seen. Progress that arrives before the url is being
+	 * reported is held back until it is.
+	 */
+	static class JSTestCaseReport {
+		private final String className;
+		private final Description description;
+		private final Map<String, Description> moduleDescriptions = new HashMap<String, Description>();
+		private final Map<String, Description> testDescriptions = new LinkedHashMap<String, Description>();
+		private final Set<String> startedNames = new HashSet<String>();
+		private final Set<String> finishedNames = new HashSet<String>();
+		private final List<JSTestCaseResult> heldResults = new ArrayList<JSTestCaseResult>();
+		private RunNotifier notifier;
+		private boolean closed;
+		private boolean cached;
+		private int failures;
+
+		/**
+		 * @param url
+		 *            the url.
+		 * @param description
+		 *            describes the url, to which the descriptions of its
+		 *            modules and tests are added as they are first seen.
+		 */
+		public JSTestCaseReport(final URL url, final Description description) {
+			this.className = JSTestSuiteRunnerService.getFormattedPath(url);
+			this.description = description;
+		}
+
+		/**
+		 * Describe a test, adding it and its module to the url's description
+		 * when first seen.
+		 */
+		private Description describe(final String moduleName,
+				final String testName) {
+			final String name = JSTestCaseResult.getName(moduleName, testName);
+			Description testDescription = testDescriptions.get(name);
+			if (testDescription == null) {
+				testDescription = Description.createTestDescription(className,
+						name);
+				testDescriptions.put(name, testDescription);
+				Description parent = description;
+				if (moduleName != null) {
+					parent = moduleDescriptions.get(moduleName);
+					if (parent == null) {
+						parent = Description.createSuiteDescription(moduleName,
+								className + " " + moduleName);
+						moduleDescriptions.put(moduleName, parent);
+						addChild(description, parent);
+					}
+				}
+				addChild(parent, testDescription);
+			}
+			return testDescription;
+		}
+
+		private static void addChild(final Description parent,
+				final Description child) {
+			synchronized (parent) {
+				parent.addChild(child);
+			}
+		}
+
+		private void start(final String name) {
+			if (startedNames.add(name)) {
+				notifier.fireTestStarted(testDescriptions.get(name));
+			}
+		}
+
+		private void report(final JSTestCaseResult jsTestCaseResult) {
+			final String name = jsTestCaseResult.getName();
+			if (!finishedNames.add(name)) {
+				return;
+			}
+			final Description testDescription = describe(
+					jsTestCaseResult.getModuleName(),
+					jsTestCaseResult.getTestName());
+			start(name);
+			if (jsTestCaseResult.getFailures() > 0) {
+				failures += jsTestCaseResult.getFailures();
+				notifier.fireTestFailure(new JSTestFailure(testDescription,
+						className + " " + name, "Failures: "
+								+ jsTestCaseResult.getFailures() + ", passes: "
+								+ jsTestCaseResult.getPasses() + ", duration: "
+								+ jsTestCaseResult.getDuration() + "ms"
+								+ (cached ? " (cached)" : "") + ":"
+								+ jsTestCaseResult.getMessage()));
+			}
+			notifier.fireTestFinished(testDescription);
+		}
+
+		/**
+		 * Note that a test has started.
+		 */
+		public synchronized void started(final String moduleName,
+				final String testName) {
+			if (closed) {
+				return;
+			}
+			describe(moduleName, testName);
+			final String name = JSTestCaseResult.getName(moduleName, testName);
+			if (notifier != null && !finishedNames.contains(name)) {
+				start(name);
+			}
+		}
+
+		/**
+		 * Note that a test has finished.
+		 */
+		public synchronized void finished(final JSTestCaseResult jsTestCaseResult) {
+			if (closed) {
+				return;
+			}
+			if (notifier != null) {
+				report(jsTestCaseResult);
+			} else {
+				describe(jsTestCaseResult.getModuleName(),
+						jsTestCaseResult.getTestName());
+				heldResults.add(jsTestCaseResult);
+			}
+		}
+
+		/**
+		 * Begin reporting, including any progress held back until now.
+		 */
+		public synchronized void open(final RunNotifier notifier) {
+			this.notifier = notifier;
+			final Set<String> heldNames = new HashSet<String>();
+			for (final JSTestCaseResult jsTestCaseResult : heldResults) {
+				heldNames.add(jsTestCaseResult.getName());
+			}
+			for (final String name : new ArrayList<String>(
+					testDescriptions.keySet())) {
+				if (!heldNames.contains(name)) {
+					start(name);
+				}
+			}
+			for (final JSTestCaseResult jsTestCaseResult : heldResults) {
+				report(jsTestCaseResult);
+			}
+			heldResults.clear();
+		}
+
+		/**
+		 * Finish reporting. Any tests within the url's result that have not been
+		 * reported are, and those tests that started but never finished fail.
+		 * 
+		 * @param jsTestResult
+		 *            the url's result or null if there is none.
+		 */
+		public synchronized void close(final JSTestResult jsTestResult) {
+			if (jsTestResult != null) {
+				cached = jsTestResult.isCached();
+				for (final JSTestCaseResult jsTestCaseResult : jsTestResult
+						.getTestCaseResults()) {
+					report(jsTestCaseResult);
+				}
+			}
+			for (final Map.Entry<String, Description> testDescription : testDescriptions
+					.entrySet()) {
+				final String name = testDescription.getKey();
+				if (finishedNames.add(name)) {
+					start(name);
+					notifier.fireTestFailure(new JSTestFailure(testDescription
+							.getValue(), className + " " + name,
+							"Did not finish"));
+					notifier.fireTestFinished(testDescription.getValue());
+				}
+			}
+			closed = true;
+		}
+
+		/**
+		 * @return the number of tests reported.
+		 */
+		public synchronized int getReportedCount() {
+			return finishedNames.size();
+		}
+
+		/**
+		 * @return the number of assertions failing across the tests reported.
+		 */
+		public synchronized int getFailures() {
+			return failures;
+		}
+	}
+
+	/**
+	 * Runs children concurrently using a fixed number of threads. Whatever a
+	 * child throws, such as when the run is stopped by the user, is thrown
+	 * again once all of the children have finished.
+	 */
+	private static class ParallelScheduler implements RunnerScheduler {
+		private final ExecutorService executorService;
+		private final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+		public ParallelScheduler(final int threads) {
+			executorService = Executors.newFixedThreadPool(threads,
+					new ThreadFactory() {
+						public Thread newThread(final Runnable r) {
+							final Thread thread = new Thread(r,
+									"jstestrunner-child");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+
+		public void schedule(final Runnable childStatement) {
+			futures.add(executorService.submit(childStatement));
+		}
+
+		public void finished() {
+			executorService.shutdown();
+			try {
+				while (!executorService.awaitTermination(1, TimeUnit.SECONDS)) {
+					// Keep waiting for the children to finish.
+				}
+			} catch (InterruptedException e) {
+				executorService.shutdownNow();
+				Thread.currentThread().interrupt();
+				return;
+			}
+
+			for (final Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				} catch (ExecutionException e) {
+					final Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					} else if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw new RuntimeException(cause);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Serialises notifications so that listeners need not be thread safe when
+	 * children are run concurrently.
+	 */
+	private static class SynchronizedRunNotifier extends RunNotifier {
+		private final RunNotifier notifier;
+
+		public SynchronizedRunNotifier(final RunNotifier notifier) {
+			this.notifier = notifier;
+		}
+
+		@Override
+		public synchronized void addListener(final RunListener listener) {
+			notifier.addListener(listener);
+		}
+
+		@Override
+		public synchronized void removeListener(final RunListener listener) {
+			notifier.removeListener(listener);
+		}
+
+		@Override
+		public synchronized void addFirstListener(final RunListener listener) {
+			notifier.addFirstListener(listener);
+		}
+
+		@Override
+		public synchronized void fireTestRunStarted(final Description description) {
+			notifier.fireTestRunStarted(description);
+		}
+
+		@Override
+		public synchronized void fireTestRunFinished(final Result result) {
+			notifier.fireTestRunFinished(result);
+		}
+
+		@Override
+		public synchronized void fireTestStarted(final Description description)
+				throws StoppedByUserException {
+			notifier.fireTestStarted(description);
+		}
+
+		@Override
+		public synchronized void fireTestFailure(final Failure failure) {
+			notifier.fireTestFailure(failure);
+		}
+
+		@Override
+		public synchronized void fireTestAssumptionFailed(final Failure failure) {
+			notifier.fireTestAssumptionFailed(failure);
+		}
+
+		@Override
+		public synchronized void fireTestIgnored(final Description description) {
+			notifier.fireTestIgnored(description);
+		}
+
+		@Override
+		public synchronized void fireTestFinished(final Description description) {
+			notifier.fireTestFinished(description);
+		}
+
+		@Override
+		public void pleaseStop() {
+			notifier.pleaseStop();
+		}
+	}
+
+	/**
+	 * Describes that the individual tests within each url are to be reported as
+	 * they start and finish, each described within its module under the url.
+	 * The url's result is reported only where it cannot be accounted for by its
+	 * tests e.g. when it times out. The
+	 * "org.codehaus.jstestrunner.reportTestCases" system property can also be
+	 * set to true for this.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	@Inherited
+	public @interface ReportTestCases {
+	}
+
 	/**
 	 * Describes where in relation to the project home folder the context path
 	 * should be mapped to. This can have multiple values. The defaults are
@@ -152,6 +646,37 @@ public class JSTestSuiteRunner extends ParentRunner<URL> {
 		String[] value();
 	}
 
+	/**
+	 * Describes the number of times that test execution server processes may
+	 * be restarted, having exited unexpectedly, so as to continue with the
+	 * tests remaining. By default this is 3. The
+	 * "org.codehaus.jstestrunner.respawns" system property takes precedence
+	 * over this annotation.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	@Inherited
+	public @interface Respawns {
+		int value();
+	}
+
+	/**
+	 * Describes that urls are to be split into a url per QUnit module, so that
+	 * their modules can run in several test execution server processes at
+	 * once, should their modules take at least a number of seconds
+	 * altogether. By default this is 10. The modules of a url are learnt from
+	 * its earlier runs, and it runs as a whole again should it or the local
+	 * scripts and stylesheets that it references be modified. The
+	 * "org.codehaus.jstestrunner.splitByModule" system property can also be
+	 * set to the number of seconds for this.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	@Inherited
+	public @interface SplitByModule {
+		int value() default 10;
+	}
+
 	/**
 	 * Describes where in relation to the project home folder the test runner
 	 * file can be made available from for execution purposes. This file runs on
@@ -165,8 +690,194 @@ public class JSTestSuiteRunner extends ParentRunner<URL> {
 		String value();
 	}
 
-	private final JSTestSuiteRunnerService jSTestSuiteRunnerService;
-	private final List<URL> urls;
+	/**
+	 * Describes the number of threads that wait upon and report test results
+	 * concurrently. By default this is the number of pages that the test
+	 * execution server processes run tests with altogether. The
+	 * "org.codehaus.jstestrunner.threads" system property takes precedence
+	 * over this annotation.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	@Inherited
+	public @interface Threads {
+		int value();
+	}
+
+	/**
+	 * Describes the number of seconds that the tests of each url may take to
+	 * complete once loaded. By default this is 20. The
+	 * "org.codehaus.jstestrunner.timeout" system property takes precedence
+	 * over this annotation.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	@Inherited
+	public @interface Timeout {
+		int value();
+	}
+
+	/**
+	 * Describes the number of seconds that the tests of urls matching patterns
+	 * may take to complete once loaded using the pattern=seconds convention
+	 * e.g. "**&#47;slow/*Test.html=60". The first pattern matching a url
+	 * applies.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	@Inherited
+	public @interface Timeouts {
+		String[] value();
+	}
+
+	/**
+	 * Describes the number of test execution server processes that the tests
+	 * are shared between. By default the number of available processors is
+	 * used. The "org.codehaus.jstestrunner.workers" system property takes
+	 * precedence over this annotation.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	@Inherited
+	public @interface Workers {
+		int value();
+	}
+
+	private final String host;
+
+	/**
+	 * The port that the test results server listens on, or 0 for any free
+	 * port.
+	 */
+	private final int declaredPort;
+
+	/**
+	 * The port within urls, being the port bound to once the test results
+	 * server has bound any free port.
+	 */
+	private int port;
+
+	private final String contextPath;
+	private final String[] resourceBases;
+	private final String[] includes;
+	private final String[] excludes;
+	private final String commandPattern;
+	private final String testRunnerFilePath;
+	private final int workers;
+	private final int respawns;
+	private final int hangTimeout;
+
+	/**
+	 * The number of pages that each test execution server runs tests with at
+	 * once.
+	 */
+	private final int pagesPerWorker;
+
+	/**
+	 * The number of pages that a test execution server process may be handed
+	 * before it is recycled, or 0 for no limit.
+	 */
+	private final int recyclePages;
+
+	/**
+	 * The megabytes of memory that a test execution server process may hold
+	 * before it is recycled, or 0 for no limit.
+	 */
+	private final int recycleMemory;
+
+	/**
+	 * The number of threads waiting upon results, or 0 for as many as there
+	 * are pages running tests.
+	 */
+	private final int threads;
+
+	private final boolean daemon;
+	private final boolean completionOrder;
+	private final boolean reportTestCases;
+
+	/**
+	 * The timeouts declared, which are derived from the timings of earlier
+	 * runs once loaded when adaptive.
+	 */
+	private final JSTestTimeouts declaredTimeouts;
+
+	private final boolean adaptiveTimeouts;
+	private final boolean cacheResults;
+
+	/**
+	 * How long a url takes before it is split into a url per module, or -1 if
+	 * urls are not split.
+	 */
+	private final long splitByModuleMillis;
+
+	/**
+	 * The most urls run in a batch, or 0 if urls are not batched.
+	 */
+	private final int batchSize;
+
+	/**
+	 * How long a url may take to be run in a batch.
+	 */
+	private final long batchMaxDurationMillis;
+
+	/**
+	 * What earlier runs recorded and what depends on it, which are only loaded
+	 * once the urls are first needed so that a suite that never runs does not
+	 * read them.
+	 */
+	private JSTestTimingStore timingStore;
+	private JSTestTimeouts timeouts;
+	private JSTestResultCache resultCache;
+
+	/**
+	 * Splits urls into a url per module, or null if urls are not split.
+	 */
+	private JSTestModuleSplitter moduleSplitter;
+
+	/**
+	 * Groups urls into batches, or null if urls are not batched.
+	 */
+	private JSTestBatcher batcher;
+
+	/**
+	 * The changed files that urls are selected by, or null if urls are not
+	 * selected by the files named.
+	 */
+	private final List<File> changedFiles;
+
+	/**
+	 * Finds the files that urls depend on, resolving paths as they are
+	 * served.
+	 */
+	private final JSTestDependencies dependencies;
+
+	private final boolean changedSinceLastRun;
+	private final int shardIndex;
+	private final int shardCount;
+
+	/**
+	 * The test results server, which is only got once needed so that a suite
+	 * that never runs holds no port.
+	 */
+	private JSTestResultServer jSTestResultServer;
+
+	/**
+	 * The urls found, which are only looked for once they are needed.
+	 */
+	private List<URL> urls;
+
+	/**
+	 * Runs the urls remaining after any filtering, once the tests run.
+	 */
+	private JSTestSuiteRunnerService jSTestSuiteRunnerService;
+
+	private Map<String, JSTestCaseReport> jsTestCaseReports;
+
+	/**
+	 * The description of each url, which is kept so that the descriptions of
+	 * the tests within it can be added to it as they are first seen.
+	 */
+	private final ConcurrentMap<String, Description> urlDescriptions = new ConcurrentHashMap<String, Description>();
 
 	public JSTestSuiteRunner(final Class<?> testClass) throws InitializationError {
 		super(testClass);
@@ -178,7 +889,6 @@ public class JSTestSuiteRunner extends ParentRunner<URL> {
 
 		// Set up our host.
 		final Host hostAnnotation = testClass.getAnnotation(Host.class);
-		String host;
 		int port;
 		if (hostAnnotation == null) {
 			host = "localhost";
@@ -195,10 +905,22 @@ public class JSTestSuiteRunner extends ParentRunner<URL> {
 
 		}
 
+		// The port can be overridden e.g. with 0 to use any free port so that
+		// suites running at the same time need not share one.
+		final String portProperty = System
+				.getProperty("org.codehaus.jstestrunner.port");
+		if (portProperty != null && portProperty.length() > 0) {
+			try {
+				port = Integer.parseInt(portProperty);
+			} catch (NumberFormatException e) {
+				throw new InitializationError(
+						"org.codehaus.jstestrunner.port must be a number");
+			}
+		}
+
 		// Set up our context path.
 		final ContextPath contextPathAnnotation = testClass
 				.getAnnotation(ContextPath.class);
-		String contextPath;
 		if (contextPathAnnotation == null) {
 			contextPath = "/";
 		} else {
@@ -208,7 +930,6 @@ public class JSTestSuiteRunner extends ParentRunner<URL> {
 		// Set up our resource bases.
 		final ResourceBase resourceBaseAnnotation = testClass
 				.getAnnotation(ResourceBase.class);
-		String[] resourceBases;
 		if (resourceBaseAnnotation == null) {
 			resourceBases = new String[] {
 					"target" + File.separator + "classes",
@@ -219,7 +940,6 @@ public class JSTestSuiteRunner extends ParentRunner<URL> {
 
 		// Inclusion patterns
 		final Include includeAnnotation = testClass.getAnnotation(Include.class);
-		String[] includes;
 		if (includeAnnotation == null) {
 			includes = new String[] { "**/*Test.html", "**/*Test.htm" };
 		} else {
@@ -228,7 +948,6 @@ public class JSTestSuiteRunner extends ParentRunner<URL> {
 
 		// Inclusion patterns
 		final Exclude excludeAnnotation = testClass.getAnnotation(Exclude.class);
-		String[] excludes;
 		if (excludeAnnotation == null) {
 			excludes = new String[0];
 		} else {
@@ -236,36 +955,415 @@ public class JSTestSuiteRunner extends ParentRunner<URL> {
 		}
 
 		// Resolve the commandPattern from system properties.
-		String commandPattern = System
+		final String commandPatternProperty = System
 				.getProperty("org.codehaus.jstestrunner.commandPattern");
-		if (commandPattern == null) {
+		if (commandPatternProperty == null) {
 			commandPattern = "phantomjs '%1$s' %2$s";
+		} else {
+			commandPattern = commandPatternProperty;
 		}
 
 		// Test runner file path.
 		final TestRunnerFilePath testRunnerFilePathAnnotation = testClass
 				.getAnnotation(TestRunnerFilePath.class);
-		String testRunnerFilePath;
 		if (testRunnerFilePathAnnotation == null) {
 			testRunnerFilePath = "target" + File.separator + "js-testrunner";
 		} else {
 			testRunnerFilePath = testRunnerFilePathAnnotation.value();
 		}
 
-		/**
-		 * Determine the URLs representing the tests.
-		 */
-		urls = JSTestSuiteRunnerService.scanTestFiles(host, port,
-				resourceBases, includes, excludes);
+		// Number of test execution servers.
+		final Workers workersAnnotation = testClass.getAnnotation(Workers.class);
+		workers = getCount("org.codehaus.jstestrunner.workers",
+				workersAnnotation != null ? workersAnnotation.value() : null,
+				Runtime.getRuntime().availableProcessors(), 1);
+
+		// Number of pages that each test execution server runs tests with.
+		final PagesPerWorker pagesPerWorkerAnnotation = testClass
+				.getAnnotation(PagesPerWorker.class);
+		pagesPerWorker = getCount("org.codehaus.jstestrunner.pagesPerWorker",
+				pagesPerWorkerAnnotation != null ? pagesPerWorkerAnnotation
+						.value() : null, 1, 1);
+
+		// When test execution server processes are recycled.
+		final Recycle recycleAnnotation = testClass.getAnnotation(Recycle.class);
+		recyclePages = getCount("org.codehaus.jstestrunner.recyclePages",
+				recycleAnnotation != null ? recycleAnnotation.pages() : null, 0,
+				0);
+		recycleMemory = getCount("org.codehaus.jstestrunner.recycleMemory",
+				recycleAnnotation != null ? recycleAnnotation.memory() : null, 0,
+				0);
+
+		// Number of times that test execution servers may be restarted.
+		final Respawns respawnsAnnotation = testClass.getAnnotation(Respawns.class);
+		respawns = getCount("org.codehaus.jstestrunner.respawns",
+				respawnsAnnotation != null ? respawnsAnnotation.value() : null,
+				3, 0);
+
+		// Seconds that urls may go without a heartbeat.
+		final HangTimeout hangTimeoutAnnotation = testClass
+				.getAnnotation(HangTimeout.class);
+		hangTimeout = getCount("org.codehaus.jstestrunner.hangTimeout",
+				hangTimeoutAnnotation != null ? hangTimeoutAnnotation.value()
+						: null, 0, 0);
+
+		// The files that urls depend on, found as they are served.
+		dependencies = new JSTestDependencies(resourceBases);
+
+		// How long the tests of each url may take, derived from the timings of
+		// urls in earlier runs when adaptive.
+		declaredTimeouts = getTimeouts(testClass);
+		adaptiveTimeouts = testClass.getAnnotation(AdaptiveTimeouts.class) != null
+				|| Boolean.getBoolean("org.codehaus.jstestrunner.adaptiveTimeouts");
+
+		// The results of urls in earlier runs, which are reused while the urls
+		// are unchanged.
+		cacheResults = testClass.getAnnotation(CacheResults.class) != null
+				|| Boolean.getBoolean("org.codehaus.jstestrunner.cacheResults");
+
+		// Splitting urls that take long into a url per module.
+		final SplitByModule splitByModuleAnnotation = testClass
+				.getAnnotation(SplitByModule.class);
+		final String splitByModuleProperty = System
+				.getProperty("org.codehaus.jstestrunner.splitByModule");
+		if (splitByModuleAnnotation != null
+				|| (splitByModuleProperty != null && splitByModuleProperty
+						.length() > 0)) {
+			splitByModuleMillis = getCount(
+					"org.codehaus.jstestrunner.splitByModule",
+					splitByModuleAnnotation != null ? splitByModuleAnnotation
+							.value() : null, 10, 0) * 1000L;
+		} else {
+			splitByModuleMillis = -1L;
+		}
+
+		// Running urls that take little time in batches.
+		final BatchTests batchTestsAnnotation = testClass
+				.getAnnotation(BatchTests.class);
+		final String batchTestsProperty = System
+				.getProperty("org.codehaus.jstestrunner.batchTests");
+		if (batchTestsAnnotation != null
+				|| (batchTestsProperty != null && batchTestsProperty.length() > 0)) {
+			batchSize = getCount("org.codehaus.jstestrunner.batchTests",
+					batchTestsAnnotation != null ? batchTestsAnnotation.value()
+							: null, 10, 1);
+		} else {
+			batchSize = 0;
+		}
+		batchMaxDurationMillis = (batchTestsAnnotation != null ? batchTestsAnnotation
+				.maxDuration() : 1) * 1000L;
+
+		// The urls that are affected by changes when only those are to run,
+		// and the shard that is ours when the tests are split between
+		// machines.
+		changedFiles = getChangedFiles();
+		changedSinceLastRun = Boolean
+				.getBoolean("org.codehaus.jstestrunner.changedSinceLastRun");
+		shardCount = getCount("org.codehaus.jstestrunner.shardCount", null, 1,
+				1);
+		shardIndex = getCount("org.codehaus.jstestrunner.shardIndex", null, 0,
+				0);
+		if (shardIndex >= shardCount) {
+			throw new InitializationError(
+					"org.codehaus.jstestrunner.shardIndex must be less than org.codehaus.jstestrunner.shardCount");
+		}
+
+		// The test results server is shared with other suites using the same
+		// port, context path and resource bases. When any free port is to be
+		// used then it is bound once urls are first needed so that the port
+		// can be used within them.
+		declaredPort = port;
+		this.port = port;
+
+		// Whether execution processes are kept for later suites.
+		daemon = Boolean.getBoolean("org.codehaus.jstestrunner.daemon");
+
+		// Number of threads waiting upon results.
+		final Threads threadsAnnotation = testClass.getAnnotation(Threads.class);
+		final String threadsProperty = System
+				.getProperty("org.codehaus.jstestrunner.threads");
+		if (threadsAnnotation != null
+				|| (threadsProperty != null && threadsProperty.length() > 0)) {
+			threads = getCount("org.codehaus.jstestrunner.threads",
+					threadsAnnotation != null ? threadsAnnotation.value()
+							: null, 1, 1);
+		} else {
+			threads = 0;
+		}
 
-        final JSTestResultServer jSTestResultServer = new JSTestResultServer(new Server(), new JSTestResultHandler(),
-                port, contextPath, resourceBases);
+		// Reporting order.
+		completionOrder = testClass.getAnnotation(CompletionOrder.class) != null
+				|| Boolean.getBoolean("org.codehaus.jstestrunner.completionOrder");
 
-		final JSTestExecutionServer jSTestExecutionServer = new JSTestExecutionServer(testRunnerFilePath,
-                commandPattern, urls);
+		// Reporting of the tests within each url.
+		reportTestCases = testClass.getAnnotation(ReportTestCases.class) != null
+				|| Boolean.getBoolean("org.codehaus.jstestrunner.reportTestCases");
+
+	}
+
+	/**
+	 * Resolve how long the tests of each url may take from the annotations and
+	 * system properties, before any timings of earlier runs are loaded.
+	 * 
+	 * @param testClass
+	 *            the class of the suite.
+	 * @return the timeouts.
+	 * @throws InitializationError
+	 *             if a timeout cannot be understood.
+	 */
+	private static JSTestTimeouts getTimeouts(final Class<?> testClass)
+			throws InitializationError {
+		final Timeout timeoutAnnotation = testClass.getAnnotation(Timeout.class);
+		final int timeout = getCount("org.codehaus.jstestrunner.timeout",
+				timeoutAnnotation != null ? timeoutAnnotation.value() : null,
+				(int) (JSTestWorkQueueHandler.DEFAULT_TIMEOUT_MILLIS / 1000L), 1);
+
+		final Map<String, Long> patternTimeouts = new LinkedHashMap<String, Long>();
+		final Timeouts timeoutsAnnotation = testClass
+				.getAnnotation(Timeouts.class);
+		if (timeoutsAnnotation != null) {
+			for (final String patternTimeout : timeoutsAnnotation.value()) {
+				final int separator = patternTimeout.lastIndexOf('=');
+				try {
+					patternTimeouts.put(patternTimeout.substring(0, separator),
+							Long.parseLong(patternTimeout
+									.substring(separator + 1)) * 1000L);
+				} catch (RuntimeException e) {
+					throw new InitializationError(
+							"Timeouts must be of the form pattern=seconds");
+				}
+			}
+		}
+
+		final AdaptiveTimeouts adaptiveTimeoutsAnnotation = testClass
+				.getAnnotation(AdaptiveTimeouts.class);
+		double factor = 3;
+		int floor = 2;
+		if (adaptiveTimeoutsAnnotation != null) {
+			factor = adaptiveTimeoutsAnnotation.factor();
+			floor = adaptiveTimeoutsAnnotation.floor();
+		}
+		return new JSTestTimeouts(timeout * 1000L, patternTimeouts, null,
+				factor, floor * 1000L);
+	}
+
+	/**
+	 * Load what earlier runs recorded, once the urls are first needed.
+	 */
+	private synchronized void loadStores() {
+		if (timingStore != null) {
+			return;
+		}
+		timingStore = JSTestTimingStore.load(new File(testRunnerFilePath,
+				"timings.log"));
+		if (adaptiveTimeouts) {
+			timeouts = new JSTestTimeouts(
+					declaredTimeouts.getDefaultTimeoutMillis(),
+					declaredTimeouts.getPatternTimeoutsMillis(), timingStore,
+					declaredTimeouts.getFactor(),
+					declaredTimeouts.getFloorMillis());
+		} else {
+			timeouts = declaredTimeouts;
+		}
+		if (cacheResults) {
+			resultCache = JSTestResultCache.load(new File(testRunnerFilePath,
+					"results.cache"), dependencies);
+		}
+		if (splitByModuleMillis >= 0) {
+			moduleSplitter = new JSTestModuleSplitter(timingStore,
+					dependencies, splitByModuleMillis);
+		}
+		if (batchSize > 0) {
+			batcher = new JSTestBatcher(timingStore, batchSize,
+					batchMaxDurationMillis);
+		}
+	}
+
+	/**
+	 * Get the test results server, binding any free port so that it can be
+	 * used within urls.
+	 * 
+	 * @return the test results server.
+	 * @throws IOException
+	 *             if the port cannot be bound.
+	 */
+	private synchronized JSTestResultServer getJSTestResultServer()
+			throws IOException {
+		if (jSTestResultServer == null) {
+			final JSTestResultServer server = JSTestResultServer
+					.getSharedInstance(declaredPort, contextPath, resourceBases);
+			if (declaredPort == 0) {
+				port = server.bind();
+			}
+			jSTestResultServer = server;
+		}
+		return jSTestResultServer;
+	}
+
+	/**
+	 * Release the test results server so that a later run gets it again,
+	 * stopping it should the tests not have got as far as stopping it
+	 * themselves.
+	 * 
+	 * @throws Exception
+	 *             if the server cannot be stopped.
+	 */
+	private synchronized void releaseJSTestResultServer() throws Exception {
+		if (jSTestResultServer != null) {
+			try {
+				jSTestResultServer.stop();
+			} finally {
+				jSTestResultServer = null;
+			}
+		}
+	}
+
+	/**
+	 * Resolve the changed files that urls are to be selected by from the
+	 * "org.codehaus.jstestrunner.changedFiles" system property, which lists
+	 * them separated by commas. A file prefixed with '@' lists changed files a
+	 * line at a time.
+	 * 
+	 * @return the changed files or null if urls are not to be selected by
+	 *         them.
+	 * @throws InitializationError
+	 *             if a list of changed files cannot be read.
+	 */
+	private static List<File> getChangedFiles() throws InitializationError {
+		final String changedFilesProperty = System
+				.getProperty("org.codehaus.jstestrunner.changedFiles");
+		if (changedFilesProperty == null || changedFilesProperty.length() == 0) {
+			return null;
+		}
+		final List<File> changedFiles = new ArrayList<File>();
+		for (final String changedFile : changedFilesProperty.split(",")) {
+			if (changedFile.startsWith("@")) {
+				try {
+					final BufferedReader reader = new BufferedReader(
+							new InputStreamReader(new FileInputStream(
+									changedFile.substring(1)), "UTF-8"));
+					try {
+						String line;
+						while ((line = reader.readLine()) != null) {
+							if (line.trim().length() > 0) {
+								changedFiles.add(new File(line.trim()));
+							}
+						}
+					} finally {
+						reader.close();
+					}
+				} catch (IOException e) {
+					throw new InitializationError(
+							"Unable to read the changed files listed in "
+									+ changedFile.substring(1) + ": "
+									+ e.getMessage());
+				}
+			} else if (changedFile.trim().length() > 0) {
+				changedFiles.add(new File(changedFile.trim()));
+			}
+		}
+		return changedFiles;
+	}
+
+	/**
+	 * Select the urls affected by changes when only those are to run, being
+	 * those affected by the changed files named and, when the
+	 * "org.codehaus.jstestrunner.changedSinceLastRun" system property is true,
+	 * those affected by files modified since they last ran.
+	 * 
+	 * @param urls
+	 *            the urls.
+	 * @return the affected urls, or every url if all are to run.
+	 */
+	private List<URL> selectAffected(final List<URL> urls) {
+		if (changedFiles == null && !changedSinceLastRun) {
+			return urls;
+		}
+
+		final Set<String> affectedUrls = new HashSet<String>();
+		if (changedFiles != null) {
+			for (final URL url : JSTestSuiteRunnerService.selectAffected(urls,
+					dependencies, changedFiles)) {
+				affectedUrls.add(url.toString());
+			}
+		}
+		if (changedSinceLastRun) {
+			for (final URL url : JSTestSuiteRunnerService.selectModified(urls,
+					dependencies, timingStore)) {
+				affectedUrls.add(url.toString());
+			}
+		}
+
+		final List<URL> selectedUrls = new ArrayList<URL>(affectedUrls.size());
+		for (final URL url : urls) {
+			if (affectedUrls.contains(url.toString())) {
+				selectedUrls.add(url);
+			}
+		}
+		return selectedUrls;
+	}
 
-        jSTestSuiteRunnerService = new JSTestSuiteRunnerService(jSTestResultServer, jSTestExecutionServer);
+	/**
+	 * Select the urls of our shard when the tests are split between machines
+	 * using the "org.codehaus.jstestrunner.shardIndex" and
+	 * "org.codehaus.jstestrunner.shardCount" system properties. Shards are
+	 * balanced using the timings in the file named by the
+	 * "org.codehaus.jstestrunner.shardTimings" system property, if any, which
+	 * must be the same for every shard.
+	 * 
+	 * @param urls
+	 *            the urls of every shard.
+	 * @return the urls of our shard.
+	 */
+	private List<URL> selectShard(final List<URL> urls) {
+		if (shardCount == 1) {
+			return urls;
+		}
+		final String shardTimings = System
+				.getProperty("org.codehaus.jstestrunner.shardTimings");
+		return JSTestSuiteRunnerService.selectShard(urls, shardIndex,
+				shardCount, shardTimings != null && shardTimings.length() > 0 ? JSTestTimingStore
+						.load(new File(shardTimings)) : null);
+	}
 
+	/**
+	 * Resolve a count from a system property, falling back to an annotated
+	 * value and then a default.
+	 * 
+	 * @param propertyName
+	 *            the name of the system property.
+	 * @param annotatedCount
+	 *            the annotated value or null if there is none.
+	 * @param defaultCount
+	 *            the default.
+	 * @param minimumCount
+	 *            the least that the count may be.
+	 * @return the count.
+	 * @throws InitializationError
+	 *             if the count is not a number or is less than the minimum.
+	 */
+	private static int getCount(final String propertyName,
+			final Integer annotatedCount, final int defaultCount,
+			final int minimumCount) throws InitializationError {
+		final String countProperty = System.getProperty(propertyName);
+		int count;
+		if (countProperty != null && countProperty.length() > 0) {
+			try {
+				count = Integer.parseInt(countProperty);
+			} catch (NumberFormatException e) {
+				throw new InitializationError(propertyName
+						+ " must be a number");
+			}
+		} else if (annotatedCount != null) {
+			count = annotatedCount;
+		} else {
+			count = defaultCount;
+		}
+		if (count < minimumCount) {
+			throw new InitializationError(propertyName + " must be at least "
+					+ minimumCount);
+		}
+		return count;
 	}
 
 	/**
@@ -283,12 +1381,69 @@ public class JSTestSuiteRunner extends ParentRunner<URL> {
 					// Evaluate all that comes before this point.
 					statement.evaluate();
 				} finally {
-					jSTestSuiteRunnerService.afterTests();
+					try {
+						if (jSTestSuiteRunnerService != null) {
+							jSTestSuiteRunnerService.afterTests();
+						}
+					} finally {
+						releaseJSTestResultServer();
+					}
 				}
 			}
 		};
 	}
 
+	/**
+	 * Create the service that runs the urls remaining after any filtering, in
+	 * the order that they are to be reported, sharing them between as many
+	 * test execution servers as are useful.
+	 * 
+	 * @throws IOException
+	 *             if the url to request tests from cannot be formed or the
+	 *             port cannot be bound.
+	 */
+	private void createJSTestSuiteRunnerService() throws IOException {
+		final List<URL> runnableUrls = getRunnableUrls();
+		final JSTestResultServer jSTestResultServer = getJSTestResultServer();
+
+		// There's no point starting more execution servers than there are urls
+		// for their pages to request, unless urls may be split.
+		final int workerCount = moduleSplitter != null ? workers : Math.max(1,
+				Math.min(workers, (runnableUrls.size() + pagesPerWorker - 1)
+						/ pagesPerWorker));
+		final List<JSTestExecutionServer> jSTestExecutionServers = new ArrayList<JSTestExecutionServer>(workerCount);
+		for (int i = 0; i < workerCount; ++i) {
+			jSTestExecutionServers.add(new JSTestExecutionServer.Builder(
+					testRunnerFilePath, commandPattern,
+					jSTestResultServer.getNextTestUrl(host, jSTestResultServer
+							.getJsTestWorkQueueHandler().newWorker(),
+							pagesPerWorker)).daemon(daemon)
+					.maxPages(recyclePages)
+					.maxResidentSetSize(recycleMemory * 1024L * 1024L).build());
+		}
+
+		jSTestSuiteRunnerService = new JSTestSuiteRunnerService.Builder(
+				jSTestResultServer, jSTestExecutionServers)
+				.queuedUrls(runnableUrls).maxRespawns(respawns)
+				.hangTimeoutMillis(hangTimeout * 1000L).timeouts(timeouts)
+				.timingStore(timingStore).resultCache(resultCache)
+				.moduleSplitter(moduleSplitter).batcher(batcher).build();
+
+		final int threadCount = threads > 0 ? threads : workerCount
+				* pagesPerWorker;
+		if (threadCount > 1) {
+			setScheduler(new ParallelScheduler(threadCount));
+		}
+
+		if (reportTestCases) {
+			jsTestCaseReports = new HashMap<String, JSTestCaseReport>();
+			for (final URL url : runnableUrls) {
+				jsTestCaseReports.put(url.toString(), new JSTestCaseReport(url,
+						describeUrl(url)));
+			}
+		}
+	}
+
 	/**
 	 * Establish our test environment.
 	 * 
@@ -300,57 +1455,238 @@ public class JSTestSuiteRunner extends ParentRunner<URL> {
 		return new Statement() {
 			@Override
 			public void evaluate() throws Throwable {
-				jSTestSuiteRunnerService.beforeTests();
+				createJSTestSuiteRunnerService();
+				if (!reportTestCases) {
+					jSTestSuiteRunnerService.beforeTests();
+
+					// Evaluate the remaining statements.
+					statement.evaluate();
+					return;
+				}
 
-				// Evaluate the remaining statements.
-				statement.evaluate();
+				// Listen before any url is handed out so that no progress is
+				// missed.
+				final JSTestCaseListener jsTestCaseListener = newJsTestCaseListener();
+				final JSTestResultHandler jsTestResultHandler = jSTestSuiteRunnerService
+						.getjSTestResultServer().getJsTestResultHandler();
+				jsTestResultHandler.addJsTestCaseListener(jsTestCaseListener);
+				try {
+					jSTestSuiteRunnerService.beforeTests();
+
+					// Evaluate the remaining statements.
+					statement.evaluate();
+				} finally {
+					jsTestResultHandler.removeJsTestCaseListener(jsTestCaseListener);
+				}
 			}
 		};
 	}
 
 	@Override
 	protected Statement classBlock(final RunNotifier notifier) {
-		final Statement statement1 = super.classBlock(notifier);
+		final Statement statement1 = super.classBlock(new SynchronizedRunNotifier(notifier));
         final Statement statement2 = beforeTests(statement1);
         final Statement statement3 = afterTests(statement2);
 		return statement3;
 	}
 
+	@Override
+	protected Statement childrenInvoker(final RunNotifier notifier) {
+		if (!completionOrder) {
+			return super.childrenInvoker(notifier);
+		}
+		return new Statement() {
+			@Override
+			public void evaluate() {
+				runChildrenInCompletionOrder(notifier);
+			}
+		};
+	}
+
+	/**
+	 * Create a listener that passes the progress of the tests within each url
+	 * on to the url's report.
+	 * 
+	 * @return the listener.
+	 */
+	private JSTestCaseListener newJsTestCaseListener() {
+		return new JSTestCaseListener() {
+			public void jsTestCaseStarted(final String testUrl,
+					final String moduleName, final String testName) {
+				final JSTestCaseReport jsTestCaseReport = jsTestCaseReports
+						.get(testUrl);
+				if (jsTestCaseReport != null) {
+					jsTestCaseReport.started(moduleName, testName);
+				}
+			}
+
+			public void jsTestCaseFinished(final String testUrl,
+					final JSTestCaseResult jsTestCaseResult) {
+				final JSTestCaseReport jsTestCaseReport = jsTestCaseReports
+						.get(testUrl);
+				if (jsTestCaseReport != null) {
+					jsTestCaseReport.finished(jsTestCaseResult);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Report each child as its result arrives. Should no result arrive for as
+	 * long as a test is allowed to take then the remaining children are
+	 * reported in turn, each subject to its own timeout.
+	 * 
+	 * @param notifier
+	 *            the notifier to report to.
+	 */
+	private void runChildrenInCompletionOrder(final RunNotifier notifier) {
+		final Map<String, URL> pendingUrls = new LinkedHashMap<String, URL>();
+		for (final URL url : getRunnableUrls()) {
+			pendingUrls.put(url.toString(), url);
+		}
+
+		final BlockingQueue<String> completedUrls = new LinkedBlockingQueue<String>();
+		final JSTestResultListener jsTestResultListener = new JSTestResultListener() {
+			public void jsTestResultReceived(final String testUrl,
+					final JSTestResult jsTestResult) {
+				completedUrls.offer(testUrl);
+			}
+		};
+		final JSTestResultServer jSTestResultServer = jSTestSuiteRunnerService
+				.getjSTestResultServer();
+		final JSTestResultHandler jsTestResultHandler = jSTestResultServer
+				.getJsTestResultHandler();
+		jsTestResultHandler.addJsTestResultListener(jsTestResultListener);
+		try {
+			// Catch up with those results that arrived before we listened.
+			for (final URL url : pendingUrls.values()) {
+				if (jsTestResultHandler.getJsTestResultFuture(url).isDone()) {
+					completedUrls.offer(url.toString());
+				}
+			}
+
+			while (!pendingUrls.isEmpty()) {
+				final String completedUrl;
+				try {
+					completedUrl = completedUrls.poll(
+							jSTestResultServer.getTestResultTimeoutMillis(),
+							TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				if (completedUrl == null) {
+					break;
+				}
+				final URL url = pendingUrls.remove(completedUrl);
+				if (url != null) {
+					runChild(url, notifier);
+				}
+			}
+		} finally {
+			jsTestResultHandler.removeJsTestResultListener(jsTestResultListener);
+		}
+
+		for (final URL url : pendingUrls.values()) {
+			runChild(url, notifier);
+		}
+	}
+
+	/**
+	 * Determine the children that remain after any filtering and sorting.
+	 * 
+	 * @return the urls of the children in the order that they are run.
+	 */
+	private List<URL> getRunnableUrls() {
+		final Map<Description, URL> urlsByDescription = new HashMap<Description, URL>();
+		for (final URL url : getChildren()) {
+			urlsByDescription.put(describeChild(url), url);
+		}
+		final List<URL> runnableUrls = new ArrayList<URL>();
+		for (final Description description : getDescription().getChildren()) {
+			final URL url = urlsByDescription.get(description);
+			if (url != null) {
+				runnableUrls.add(url);
+			}
+		}
+		return runnableUrls;
+	}
+
 	@Override
 	protected Description describeChild(final URL url) {
-		return Description
-				.createTestDescription(this.getTestClass().getJavaClass(),
-						JSTestSuiteRunnerService.getFormattedPath(url));
+		return describeUrl(url);
 	}
 
+	/**
+	 * Describe a url as a test in its own right.
+	 * 
+	 * @param url
+	 *            the url.
+	 * @return the description.
+	 */
+	private Description describeUrl(final URL url) {
+		Description description = urlDescriptions.get(url.toString());
+		if (description == null) {
+			final Description newDescription = Description
+					.createTestDescription(this.getTestClass().getJavaClass(),
+							JSTestSuiteRunnerService.getFormattedPath(url));
+			description = urlDescriptions.putIfAbsent(url.toString(),
+					newDescription);
+			if (description == null) {
+				description = newDescription;
+			}
+		}
+		return description;
+	}
+
+	/**
+	 * Determine the URLs representing the tests, looking for them only once
+	 * they are first needed so that a suite that is filtered out before then
+	 * does no scanning. Those affected by changes are selected when only those
+	 * are to run and then those of our shard when the tests are split between
+	 * machines, longest first so that the slowest are not left until last.
+	 * What earlier runs recorded is loaded now, as is any free port bound so
+	 * that it can be used within the urls.
+	 */
 	@Override
-	protected List<URL> getChildren() {
+	protected synchronized List<URL> getChildren() {
+		if (urls == null) {
+			loadStores();
+			if (declaredPort == 0) {
+				try {
+					getJSTestResultServer();
+				} catch (IOException e) {
+					throw new IllegalStateException(
+							"Unable to bind the test results server", e);
+				}
+			}
+			urls = JSTestSuiteRunnerService.orderLongestFirst(
+					selectShard(selectAffected(JSTestSuiteRunnerService
+							.scanTestFiles(host, port, resourceBases, includes,
+									excludes))), timingStore);
+		}
 		return urls;
 	}
 
+	/**
+	 * @return the service running the urls, which is only available once the
+	 *         tests have started to run.
+	 */
 	public JSTestSuiteRunnerService getjSTestSuiteRunnerService() {
 		return jSTestSuiteRunnerService;
 	}
 
 	@Override
 	protected void runChild(final URL url, final RunNotifier notifier) {
-		final Description description = describeChild(url);
+		if (jsTestCaseReports != null) {
+			runChildTestCases(url, notifier);
+			return;
+		}
+		final Description description = describeUrl(url);
 		notifier.fireTestStarted(description);
 		try {
-			final JSTestResult jsTestResult = jSTestSuiteRunnerService.runTest(url);
-			if (jsTestResult != null) {
-				if (jsTestResult.getFailures() > 0) {
-					final JSTestFailure failure = new JSTestFailure(description, url,
-							"Failures: " + jsTestResult.getFailures() + ", passes: "
-									+ jsTestResult.getPasses() + ":\n"
-									+ jsTestResult.getMessage());
-					notifier.fireTestFailure(failure);
-				}
-			} else {
-				final JSTestFailure failure = new JSTestFailure(description, url,
-						"Timed out waiting for test");
-				notifier.fireTestFailure(failure);
-			}
+			reportFailure(description, url,
+					jSTestSuiteRunnerService.runTest(url), notifier);
 		} finally {
 			notifier.fireTestFinished(description);
 
@@ -358,4 +1694,67 @@ public class JSTestSuiteRunner extends ParentRunner<URL> {
 
 	}
 
+	/**
+	 * Run a url reporting each of the tests within it as a child of the url.
+	 * The url itself is reported only where its result is not accounted for by
+	 * its tests.
+	 * 
+	 * @param url
+	 *            the url.
+	 * @param notifier
+	 *            the notifier to report to.
+	 */
+	private void runChildTestCases(final URL url, final RunNotifier notifier) {
+		final JSTestCaseReport jsTestCaseReport = jsTestCaseReports.get(url
+				.toString());
+		jsTestCaseReport.open(notifier);
+		JSTestResult jsTestResult = null;
+		try {
+			jsTestResult = jSTestSuiteRunnerService.runTest(url);
+		} finally {
+			jsTestCaseReport.close(jsTestResult);
+		}
+		if (jsTestResult == null || jsTestCaseReport.getReportedCount() == 0
+				|| jsTestResult.getFailures() > jsTestCaseReport.getFailures()) {
+			final Description description = describeUrl(url);
+			notifier.fireTestStarted(description);
+			try {
+				reportFailure(description, url, jsTestResult, notifier);
+			} finally {
+				notifier.fireTestFinished(description);
+			}
+		}
+	}
+
+	/**
+	 * Report a url's result as a failure should it have failed.
+	 * 
+	 * @param description
+	 *            describes the url.
+	 * @param url
+	 *            the url.
+	 * @param jsTestResult
+	 *            the result or null if there is none.
+	 * @param notifier
+	 *            the notifier to report to.
+	 */
+	private void reportFailure(final Description description, final URL url,
+			final JSTestResult jsTestResult, final RunNotifier notifier) {
+		if (jsTestResult != null) {
+			if (jsTestResult.getFailures() > 0) {
+				final JSTestFailure failure = new JSTestFailure(description, url,
+						"Failures: " + jsTestResult.getFailures() + ", passes: "
+								+ jsTestResult.getPasses()
+								+ (jsTestResult.isCached() ? " (cached)" : "")
+								+ ":\n"
+								+ jsTestResult.getMessage());
+				notifier.fireTestFailure(failure);
+			}
+		} else {
+			final JSTestFailure failure = new JSTestFailure(description, url,
+					"Timed out waiting for test");
+			notifier.fireTestFailure(failure);
+		}
+	}
+
 }
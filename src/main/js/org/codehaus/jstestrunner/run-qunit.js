@@ -17,25 +17,613 @@
  * under the License.    
  */
 
-/*global console, phantom, WebPage */
+/*global console, phantom, require, WebPage, window */
 
 /**
- * Process the test.
+ * Hook into QUnit's callbacks so that results are collected as each test
+ * completes and so that we are told as soon as all of them have. Each test is
+ * also posted as it starts and finishes so that it can be reported straight
+ * away, and a heartbeat is posted each second until the tests complete. How
+ * long the document takes to load and then to run its tests is noted. Runs
+ * within the page as it initialises, before any of its scripts. QUnit is
+ * hooked once the document's scripts have loaded and before its tests start.
+ * The page may instead be the composite document of a batch, which runs each
+ * of its test documents in turn within a frame, hooking into the QUnit of
+ * each frame once it has loaded.
  */
-function processTestAndLoadNext(testUrls) {
-	var testPage, testUrl, loadingTime, loadingTimeout;
+function installTestHooks() {
+	var initTime;
+
+	initTime = new Date().getTime();
+
+	/**
+	 * Post to the test results server. We don't wait for a response so as
+	 * not to hold up the tests.
+	 */
+	function post(path, data) {
+		var xhr;
+		xhr = new XMLHttpRequest();
+		xhr.open("POST", path, true);
+		xhr.setRequestHeader("Content-Type", "application/json");
+		try {
+			xhr.send(JSON.stringify(data));
+		} catch (e) {
+			// The final results are posted regardless.
+		}
+	}
+
+	/**
+	 * Post the result of a test document, waiting for it to be received.
+	 */
+	function postTestResult(testResult) {
+		var xhr;
+		xhr = new XMLHttpRequest();
+		xhr.open("POST", "/testResults", false);
+		xhr.setRequestHeader("Content-Type", "application/json");
+		try {
+			xhr.send(JSON.stringify(testResult));
+		} catch (e) {
+			// Nothing useful can be done about comms errors.
+		}
+	}
+
+	/**
+	 * Describe the assertions of a test.
+	 */
+	function describe(testResult) {
+		var detail, i, message;
+		message = "";
+		for (i = 0; i < testResult.details.length; ++i) {
+			detail = testResult.details[i];
+			message += "\n  " + detail.message;
+			if (detail.expected !== undefined) {
+				message += ", expected: " + detail.expected;
+			}
+			if (detail.actual !== undefined) {
+				message += ", actual: " + detail.actual;
+			}
+			if (detail.diff !== undefined) {
+				message += ", diff: " + detail.diff;
+			}
+			if (detail.sourceLine !== undefined) {
+				message += ", source: " + detail.sourceLine;
+			}
+		}
+		return message;
+	}
+
+	/**
+	 * Hook into the QUnit of a window, calling upon a function once its tests
+	 * have completed.
+	 * 
+	 * @param win
+	 *            the window.
+	 * @param testUrl
+	 *            the url of the test document within the window.
+	 * @param loadStartTime
+	 *            when the test document started to load.
+	 * @param done
+	 *            called once the tests have completed.
+	 * @return the run of the tests or null if there is no QUnit to hook.
+	 */
+	function hookQUnit(win, testUrl, loadStartTime, done) {
+		var currentModuleName, currentTestResult, heartbeatTimer, qunit, startTime, testRun;
+
+		qunit = win.QUnit;
+		if (!qunit) {
+			return null;
+		}
+
+		/**
+		 * Later versions of QUnit register callbacks whereas earlier ones
+		 * expect their callbacks to be replaced.
+		 */
+		function hook(name, callback) {
+			var original;
+			if (qunit.config && qunit.config[name] instanceof win.Array) {
+				qunit[name](callback);
+			} else {
+				original = qunit[name];
+				qunit[name] = function() {
+					callback.apply(this, arguments);
+					return original.apply(this, arguments);
+				};
+			}
+		}
+
+		function dump(value) {
+			return (qunit.jsDump ? qunit.jsDump.parse(value) : String(value));
+		}
+
+		/**
+		 * Post the progress of a test.
+		 */
+		function postTestEvent(event, testResult) {
+			post("/testEvents", {
+				testUrl : testUrl,
+				event : event,
+				moduleName : testResult.moduleName,
+				testName : testResult.testName,
+				failures : testResult.failed,
+				passes : testResult.passed,
+				duration : testResult.duration,
+				message : testResult.message
+			});
+		}
+
+		/**
+		 * Post that the page is still running along with how far its tests
+		 * have got, so that a page that has stalled can be told apart from
+		 * one that is merely slow.
+		 */
+		function postHeartbeat() {
+			post("/testHeartbeats", {
+				testUrl : testUrl,
+				moduleName : (currentTestResult !== null ? currentTestResult.moduleName : currentModuleName),
+				testName : (currentTestResult !== null ? currentTestResult.testName : null),
+				assertions : testRun.assertions
+			});
+		}
+
+		startTime = new Date().getTime();
+
+		testRun = {
+			assertions : 0,
+			completed : false,
+			loadTime : startTime - loadStartTime,
+			runTime : null,
+			testResults : [],
+			stop : function() {
+				window.clearInterval(heartbeatTimer);
+			}
+		};
+
+		currentModuleName = null;
+		currentTestResult = null;
+
+		hook("moduleStart", function(details) {
+			currentModuleName = (typeof details === "object" ? details.name : details);
+		});
+
+		hook("testStart", function(details) {
+			currentTestResult = {
+				moduleName : (typeof details === "object" && details.module ? details.module : currentModuleName),
+				testName : (typeof details === "object" ? details.name : details),
+				failed : 0,
+				passed : 0,
+				details : [],
+				startTime : new Date().getTime()
+			};
+			postTestEvent("testStart", currentTestResult);
+		});
+
+		hook("log", function(details, message, legacyDetails) {
+			var result, detail;
+			if (typeof details !== "object") {
+				result = details;
+				details = legacyDetails || { message : message };
+			} else {
+				result = details.result;
+			}
+			testRun.assertions += 1;
+			if (currentTestResult !== null) {
+				detail = { message : details.message };
+				if (result) {
+					currentTestResult.passed += 1;
+				} else {
+					currentTestResult.failed += 1;
+					if (details.expected !== undefined) {
+						detail.expected = dump(details.expected);
+					}
+					if (details.actual !== undefined) {
+						detail.actual = dump(details.actual);
+					}
+					if (details.source !== undefined) {
+						detail.sourceLine = details.source;
+					}
+				}
+				currentTestResult.details.push(detail);
+			}
+		});
+
+		hook("testDone", function(details, failures, total) {
+			if (currentTestResult !== null) {
+				if (typeof details === "object") {
+					currentTestResult.failed = details.failed;
+					currentTestResult.passed = details.passed;
+				} else {
+					currentTestResult.failed = failures;
+					currentTestResult.passed = total - failures;
+				}
+				currentTestResult.duration = new Date().getTime() - currentTestResult.startTime;
+				currentTestResult.message = describe(currentTestResult);
+				postTestEvent("testDone", currentTestResult);
+				testRun.testResults.push(currentTestResult);
+				currentTestResult = null;
+			}
+		});
+
+		hook("done", function() {
+			testRun.stop();
+			testRun.runTime = new Date().getTime() - startTime;
+			testRun.completed = true;
+			done(testRun);
+		});
+
+		win.jstestrunnerTestRun = testRun;
+
+		heartbeatTimer = window.setInterval(postHeartbeat, 1000);
+		postHeartbeat();
+
+		return testRun;
+	}
+
+	/**
+	 * Post the result of a test document from the run of its tests.
+	 * 
+	 * @param testUrl
+	 *            the url of the test document.
+	 * @param testRun
+	 *            the run of its tests, or just the results of its tests
+	 *            where they were parsed from the document.
+	 */
+	function postTestRun(testUrl, testRun) {
+		var details, failures, i, message, messages, passes, testResult, tests;
+
+		failures = 0;
+		passes = 0;
+		messages = "";
+		tests = [];
+
+		for (i = 0; i < testRun.testResults.length; ++i) {
+			testResult = testRun.testResults[i];
+			if (testResult.moduleName !== null) {
+				message = "[" + testResult.moduleName + "] ";
+			} else {
+				message = "";
+			}
+			message += testResult.testName + ": failed: " + testResult.failed
+					+ " passed: " + testResult.passed;
+			details = describe(testResult);
+			messages += message + details + "\n";
+
+			tests.push({
+				moduleName : testResult.moduleName,
+				testName : testResult.testName,
+				failures : testResult.failed,
+				passes : testResult.passed,
+				duration : testResult.duration || 0,
+				message : details
+			});
+
+			passes += testResult.passed;
+			failures += testResult.failed;
+		}
+
+		postTestResult({
+			testUrl : testUrl,
+			passes : passes,
+			failures : failures,
+			message : messages,
+			tests : tests,
+			loadTime : testRun.loadTime,
+			runTime : testRun.runTime,
+			postTime : new Date().getTime()
+		});
+	}
+
+	/**
+	 * Run the test documents of a batch in turn, each within a frame of its
+	 * own, posting the result of each as it completes or times out. Each
+	 * test document may take as long as its timeout once loaded. We are told
+	 * once all of them have been run.
+	 * 
+	 * @param tests
+	 *            the url and timeout of each test document.
+	 */
+	function runBatch(tests) {
+		var batchRun, index;
+
+		batchRun = {
+			batch : true,
+			completed : false
+		};
+		window.jstestrunnerTestRun = batchRun;
+		index = 0;
+
+		function runNext() {
+			var finished, frame, loadStartTime, test, testRun, timer;
+
+			if (index === tests.length) {
+				batchRun.completed = true;
+				if (window.callPhantom) {
+					window.callPhantom("done");
+				}
+				return;
+			}
+			test = tests[index];
+			index += 1;
+			finished = false;
+			testRun = null;
+
+			function finish(failureMessage) {
+				if (finished) {
+					return;
+				}
+				finished = true;
+				window.clearTimeout(timer);
+				if (failureMessage) {
+					if (testRun) {
+						testRun.stop();
+					}
+					postTestResult({
+						testUrl : test.testUrl,
+						passes : 0,
+						failures : 1,
+						message : failureMessage
+					});
+				} else {
+					postTestRun(test.testUrl, testRun);
+				}
+				// Leave the frame's scripts before removing it.
+				window.setTimeout(function() {
+					document.body.removeChild(frame);
+					runNext();
+				}, 0);
+			}
+
+			frame = document.createElement("iframe");
+			frame.onload = function() {
+				if (testRun !== null || finished) {
+					return;
+				}
+				testRun = hookQUnit(frame.contentWindow, test.testUrl, loadStartTime, function() {
+					finish(null);
+				});
+				if (testRun === null) {
+					finish("QUnit was not found within the test document");
+					return;
+				}
+				timer = window.setTimeout(function() {
+					finish("Timed out after " + test.timeout + "ms waiting for the tests to complete");
+				}, test.timeout);
+			};
+			loadStartTime = new Date().getTime();
+			frame.src = test.testUrl;
+			document.body.appendChild(frame);
+		}
+
+		if (window.callPhantom) {
+			window.callPhantom("hooked");
+		}
+		runNext();
+	}
+
+	window.jstestrunnerRunBatch = runBatch;
+	window.jstestrunnerPostTestRun = postTestRun;
+
+	document.addEventListener("DOMContentLoaded", function() {
+		var testRun;
+
+		testRun = hookQUnit(window, document.location.href, initTime, function() {
+			if (window.callPhantom) {
+				window.callPhantom("done");
+			}
+		});
+
+		if (testRun !== null && window.callPhantom) {
+			window.callPhantom("hooked");
+		}
+	}, false);
+}
+
+/**
+ * Post the test results if the tests have completed. Runs within the page.
+ * Results collected by the QUnit hooks are used where they are available,
+ * otherwise the document is parsed for them. Either way they are posted by
+ * the function that the hooks expose, so that their messages are formed alike.
+ * 
+ * @return true if the results were posted.
+ */
+function processTestResults() {
+	var testResultsProcessed, testResults, testResultElem, testRun;
+
+	/**
+	 * Parse the document for test results.
+	 */
+	function getTestResults() {
+		var details, failed, i, j, nodeList, message, messageElem, moduleName, passed, testsElem, testItemElem, testItemElems, testName, testResults;
+
+		function getFailedTestText(node, className) {
+			var elem;
+			elem = node.getElementsByClassName(className);
+			return (elem.length > 0? 
+				elem[0].getElementsByTagName("pre")[0].innerText :
+				undefined);
+		}
+
+		testResults = [];
+
+		testsElem = document.getElementById("qunit-tests");
+		if (testsElem !== null) {
+
+			testItemElems = testsElem.getElementsByTagName("li");
+
+			// For each test, collect the test results
+			for (i = 0; i < testItemElems.length; ++i) {
+				// Extract the microformatted data.
+				testItemElem = testItemElems[i];
+
+				// Not interested in the detailed messages.
+				if (testItemElem.parentNode === testsElem) {
+					nodeList = testItemElem.getElementsByClassName("module-name");
+					if (nodeList.length === 1) {
+						moduleName = nodeList[0].innerText;
+					} else {
+						moduleName = null;
+					}
+					nodeList = testItemElem.getElementsByClassName("test-name");
+					if (nodeList.length === 1) {
+						testName = nodeList[0].innerText;
+					} else {
+						testName = null;
+					}
+					nodeList = testItemElem.getElementsByClassName("failed");
+					if (nodeList.length === 1) {
+						failed = parseInt(nodeList[0].innerText, 10);
+					} else {
+						failed = null;
+					}
+					nodeList = testItemElem.getElementsByClassName("passed");
+					if (nodeList.length === 1) {
+						passed = parseInt(nodeList[0].innerText, 10);
+					} else {
+						passed = null;
+					}
+					nodeList = testItemElem.getElementsByTagName("li");
+					details = [];
+					for (j = 0; j < nodeList.length; ++j) {
+						messageElem = nodeList[j].getElementsByClassName("test-message");
+						if (messageElem.length > 0) {
+							message = messageElem[0].innerText;
+						} else {
+							message = nodeList[j].innerText;
+						}
+						if (nodeList[j].className === "fail") {
+							details.push({
+								message : message,
+								actual : getFailedTestText(nodeList[j], "test-actual"),
+								diff : getFailedTestText(nodeList[j], "test-diff"),
+								expected : getFailedTestText(nodeList[j], "test-expected"),
+								sourceLine : getFailedTestText(nodeList[j], "test-source")
+							});
+						} else {
+							details.push({
+								message : message
+							});
+						}
+					}
+					
+					testResults.push({
+						moduleName : moduleName,
+						testName : testName,
+						failed : failed,
+						passed : passed,
+						details : details
+					});
+				}
+			}
+
+		} else {
+			console.log("Cannot find #qunit-tests element. Skipping test results.");
+			
+		}
+		
+		return testResults;
+	}
+
+	testRun = window.jstestrunnerTestRun;
+	testResultElem = document.getElementById("qunit-testresult");
+
+	if (testRun && testRun.batch) {
+
+		// The results of a batch are posted as each of its test documents
+		// completes.
+
+		testResultsProcessed = testRun.completed;
+
+	} else if (testRun && testRun.completed) {
+
+		// Tests are complete and their results were collected as they ran.
+
+		window.jstestrunnerPostTestRun(document.location.href, testRun);
+
+		testResultsProcessed = true;
+
+	} else if (!testRun && testResultElem && testResultElem.innerText.match("completed")) {
+
+		// Tests are complete. Drill down and extract all the test
+		// results from this one file.
+
+		testResults = getTestResults();
+		
+		// Pass the data on for all tests per given test url.
+
+		window.jstestrunnerPostTestRun(document.location.href, {
+			testResults : testResults
+		});
+
+		// Signal that we're done processing the test results.
+		
+		testResultsProcessed = true;
+		
+	} else {
+		testResultsProcessed = false;
+	}
 	
-	// loadingTimeout is how long (in MS) we wait for testPage.evaluate
-	// to succesfully evaluate the QUnit HTML. If this time is exceeded,
-	// then we proceed to the next test or end processing if no more tests
-	// exist.
-	loadingTime = new Date().getTime();
-	// This should be less than the timeout declared in
-	// JSTestResultServer.java (which is currently 30s)
-	loadingTimeout = 20000;
+	return testResultsProcessed;
+}
+
+/**
+ * Close a page once we have left any of its callbacks, freeing what it holds
+ * so that memory does not grow with each test. Earlier versions of PhantomJS
+ * release pages rather than close them.
+ */
+function closePage(page) {
+	setTimeout(function() {
+		if (page.close) {
+			page.close();
+		} else {
+			page.release();
+		}
+	}, 0);
+}
+
+/**
+ * Tell the test results server that a test failed without its tests telling
+ * us, such as when it timed out or could not be loaded, calling upon the
+ * function that continues once it has been told. The page of the test may no
+ * longer be responsive, so the result is posted from a page of its own.
+ */
+function postFailure(testUrl, message, proceed) {
+	var originEnd, resultsPage, resultsUrl;
+
+	originEnd = testUrl.indexOf("/", testUrl.indexOf("//") + 2);
+	resultsUrl = (originEnd >= 0 ? testUrl.substring(0, originEnd) : testUrl) + "/testResults";
+
+	resultsPage = new WebPage();
+	resultsPage.customHeaders = {
+		"Content-Type" : "application/json"
+	};
+	resultsPage.open(resultsUrl, "post", JSON.stringify({
+		testUrl : testUrl,
+		passes : 0,
+		failures : 1,
+		message : message
+	}), function() {
+		closePage(resultsPage);
+		proceed();
+	});
+}
+
+/**
+ * Process the test and then call upon the function that continues with the
+ * next one. We are told when the tests complete by the hooks installed into
+ * QUnit, falling back to polling the page should the hooks not be installed.
+ */
+function processTest(testUrl, timeout, proceed) {
+	var hooked, loadingTimeout, loadingTimer, opened, processed, testPage, testResultChecker;
 	
-	testUrl = testUrls[0];
-	testUrls.splice(0, 1);
+	// loadingTimeout is how long (in MS) we wait for the QUnit tests to
+	// complete once loaded. If this time is exceeded, then the test fails and
+	// we proceed to the next test or end processing if no more tests exist.
+	// The test results server tells us of it along with each queued test,
+	// allowing for it when waiting for the test's result.
+	loadingTimeout = timeout || 20000;
+
+	hooked = false;
+	opened = false;
+	processed = false;
 
 	testPage = new WebPage();
 	
@@ -43,262 +631,232 @@ function processTestAndLoadNext(testUrls) {
 		console.log(msg);
 	};
 
-	testPage.open(testUrl, function(status) {
-		var testResultChecker;
-		
-		if (status === "success"){
-			testResultChecker = setInterval(function() {
-				var testResultsProcessed;
-				
-				testResultsProcessed = testPage.evaluate(function() {
-					var testResultsProcessed, testResults, testResultElem;
-			
-					/**
-					 * Notify the notifier using an HTTP POST. We send it asynchronously and don't
-					 * bother about a response. If tests fail at the consuming end then this should
-					 * an exception rather than the rule. Failing tests are better than false
-					 * positives.
-					 * 
-					 * @param testUrl
-					 *            the url of the test document the test relates to.
-					 * @param moduleName
-					 *            the module. Can be null.
-					 * @param testName
-					 *            the name of the test.
-					 * @param failed
-					 *            the number of assertions failing.
-					 * @param passed
-					 *            the number of assertions passing.
-					 */
-					function notify(testUrl, testResults) {
-
-						var failures, i, j, message, messages, passes, testResult, xhr;
-
-						failures = 0;
-						passes = 0;
-						messages = "";
-
-						for (j = 0; j < testResults.length; ++j) {
-							testResult = testResults[j];
-							if (testResult.moduleName !== null) {
-								message = "[" + testResult.moduleName + "] ";
-							} else {
-								message = "";
-							}
-							message += testResult.testName + ": failed: " + testResult.failed
-									+ " passed: " + testResult.passed;
-							for (i = 0; i < testResult.details.length; ++i) {
-								message += "\n  " + testResult.details[i].message;
-								if (testResult.details[i].expected !== undefined) {
-									message += ", expected: " + testResult.details[i].expected;
-								}
-								if (testResult.details[i].actual !== undefined) {
-									message += ", actual: " + testResult.details[i].actual;
-								}
-								if (testResult.details[i].diff !== undefined) {
-									message += ", diff: " + testResult.details[i].diff;
-								}
-								if (testResult.details[i].sourceLine !== undefined) {
-									message += ", source: " + testResult.details[i].sourceLine;
-								}
-							}
-
-							messages += message + "\n";
-
-							passes += testResult.passed;
-							failures += testResult.failed;
-						}
+	/**
+	 * Continue with the next test, or exit if all tests are complete.
+	 */
+	function stopProcessing() {
+		if (processed) {
+			return false;
+		}
+		processed = true;
 
-						xhr = new XMLHttpRequest();
-						xhr.open("POST", "/testResults", false);
-						xhr.setRequestHeader("Content-Type", "application/json");
-						try {
-							xhr.send(JSON.stringify({
-								testUrl : testUrl,
-								passes : passes,
-								failures : failures,
-								message : messages
-							}));
-						} catch (e) {
-							// Just swallow exceptions as we can't do anything useful if there are
-							// comms errors.
-						}
-					}
+		// Discontinue our checking for test results as we now have them.
 
-					/**
-					 * Parse the document for test results.
-					 */
-					function getTestResults() {
-						var details, failed, i, j, nodeList, message, messageElem, moduleName, passed, testsElem, testItemElem, testItemElems, testName, testResults;
-
-						function getFailedTestText(node, className) {
-							var elem;
-							elem = node.getElementsByClassName(className);
-							return (elem.length > 0? 
-								elem[0].getElementsByTagName("pre")[0].innerText :
-								undefined);
-						}
+		clearInterval(testResultChecker);
+		clearTimeout(loadingTimer);
 
-						testResults = [];
-
-						testsElem = document.getElementById("qunit-tests");
-						if (testsElem !== null) {
-
-							testItemElems = testsElem.getElementsByTagName("li");
-
-							// For each test, collect the test results
-							for (i = 0; i < testItemElems.length; ++i) {
-								// Extract the microformatted data.
-								testItemElem = testItemElems[i];
-
-								// Not interested in the detailed messages.
-								if (testItemElem.parentNode === testsElem) {
-									nodeList = testItemElem.getElementsByClassName("module-name");
-									if (nodeList.length === 1) {
-										moduleName = nodeList[0].innerText;
-									} else {
-										moduleName = null;
-									}
-									nodeList = testItemElem.getElementsByClassName("test-name");
-									if (nodeList.length === 1) {
-										testName = nodeList[0].innerText;
-									} else {
-										testName = null;
-									}
-									nodeList = testItemElem.getElementsByClassName("failed");
-									if (nodeList.length === 1) {
-										failed = parseInt(nodeList[0].innerText, 10);
-									} else {
-										failed = null;
-									}
-									nodeList = testItemElem.getElementsByClassName("passed");
-									if (nodeList.length === 1) {
-										passed = parseInt(nodeList[0].innerText, 10);
-									} else {
-										passed = null;
-									}
-									nodeList = testItemElem.getElementsByTagName("li");
-									details = [];
-									for (j = 0; j < nodeList.length; ++j) {
-										messageElem = nodeList[j].getElementsByClassName("test-message");
-										if (messageElem.length > 0) {
-											message = messageElem[0].innerText;
-										} else {
-											message = nodeList[j].innerText;
-										}
-										if (nodeList[j].className === "fail") {
-											details.push({
-												message : message,
-												actual : getFailedTestText(nodeList[j], "test-actual"),
-												diff : getFailedTestText(nodeList[j], "test-diff"),
-												expected : getFailedTestText(nodeList[j], "test-expected"),
-												sourceLine : getFailedTestText(nodeList[j], "test-source")
-											});
-										} else {
-											details.push({
-												message : message
-											});
-										}
-									}
-									
-									testResults.push({
-										moduleName : moduleName,
-										testName : testName,
-										failed : failed,
-										passed : passed,
-										details : details
-									});
-								}
-							}
+		// The results have been posted so the page is done with.
 
-						} else {
-							console.log("Cannot find #qunit-tests element. Skipping test results.");
-							
-						}
-						
-						return testResults;
-					}
+		closePage(testPage);
+		return true;
+	}
 
-					testResultElem = document.getElementById("qunit-testresult");
+	function proceedWithTests() {
+		if (stopProcessing()) {
 
-					if (testResultElem && testResultElem.innerText.match("completed")) {
+			// Run the next test or exit if no more.
 
-						// Tests are complete. Drill down and extract all the test
-						// results from this one file.
-			
-						testResults = getTestResults();
-						
-						// Pass the data on for all tests per given test url.
+			proceed();
+		}
+	}
 
-						notify(document.location.href, testResults);
+	function checkTestResults() {
+		if (!processed && testPage.evaluate(processTestResults)) {
+			proceedWithTests();
+		}
+	}
 
-						// Signal that we're done processing the test results.
-						
-						testResultsProcessed = true;
-						
-					} else {
-						testResultsProcessed = false;
-					}
-					
-					return testResultsProcessed;
-				});
-			
-				/**
-				 * Continue with the next test, or exit if all tests are complete.
-				 */
-				function proceedWithTests() {
-					// Discontinue our checking for test results as we now have them.
-					
-					clearInterval(testResultChecker);
-					
-					// Run the next test or exit if no more.
+	testPage.onInitialized = function() {
+		testPage.evaluate(installTestHooks);
+	};
 
-					if (testUrls.length === 0) {
-						phantom.exit();
-					} else {					
-						processTestAndLoadNext(testUrls);
-					}
-				}
+	testPage.onCallback = function(message) {
+		if (message === "hooked") {
+			hooked = true;
+			clearInterval(testResultChecker);
+		} else if (message === "done" && opened) {
+			// Leave the page's callback before evaluating within it.
+			setTimeout(checkTestResults, 0);
+		}
+	};
+
+	testPage.open(testUrl, function(status) {
+		if (opened) {
+			return;
+		}
+		opened = true;
+
+		if (status === "success") {
+			loadingTimer = setTimeout(function() {
+				console.log("Unable to process test results, timed out");
 				
-				if (testResultsProcessed) {
-					proceedWithTests();
-					
-				} else {
-					
-					// If we're reached the timeout waiting for this test:
-					if (new Date().getTime() >= loadingTime + loadingTimeout) {
-						console.log("Unable to process test results, timed out");
-						
-						proceedWithTests();
-					}
+				if (stopProcessing()) {
+					postFailure(testUrl, "Timed out after " + loadingTimeout
+							+ "ms waiting for the tests to complete", proceed);
 				}
-				
-			}, 100);
+			}, loadingTimeout);
+
+			if (!hooked) {
+				testResultChecker = setInterval(checkTestResults, 100);
+			}
+
+			// The tests may have completed while loading.
+			checkTestResults();
 
 		} else {
-			phantom.exit();
+			// Other pages of ours may still be running tests, so carry on
+			// with the next test rather than exiting.
+			console.log("Unable to load " + testUrl);
+
+			if (stopProcessing()) {
+				postFailure(testUrl, "Unable to load the test document", proceed);
+			}
 		}
 	
 	});
 }
 
+/**
+ * Process the first of the tests and then the remainder, exiting when there
+ * are none left.
+ */
+function processTestAndLoadNext(testUrls) {
+	var testUrl;
+
+	testUrl = testUrls[0];
+	testUrls.splice(0, 1);
+
+	processTest(testUrl, undefined, function() {
+		if (testUrls.length === 0) {
+			phantom.exit();
+		} else {
+			processTestAndLoadNext(testUrls);
+		}
+	});
+}
+
+/**
+ * Request the next test from the queue and process it, calling upon the
+ * function that continues once the queue has no more to give. The queue gives
+ * the url of the test followed by a line with its timeout, or tells us to
+ * recycle, in which case the function is told so.
+ */
+function processQueuedTestAndLoadNext(queueUrl, queuePage, drained) {
+	queuePage.open(queueUrl, function(status) {
+		var lines, testUrl, timeout;
+
+		if (status === "success") {
+			lines = queuePage.plainText.split("\n");
+			testUrl = lines[0];
+			timeout = parseInt(lines[1], 10) || undefined;
+		}
+
+		if (testUrl === "recycle") {
+			drained(true);
+		} else if (testUrl) {
+			processTest(testUrl, timeout, function() {
+				processQueuedTestAndLoadNext(queueUrl, queuePage, drained);
+			});
+		} else {
+			drained(false);
+		}
+	});
+}
+
+/**
+ * Request tests from the queue with a number of pages at once, each page
+ * requesting its next test once it has finished with its previous one, and
+ * call upon the function that continues once the queue has no more to give
+ * any of them. The number of pages is given by the queue url's "pages"
+ * parameter, and each page identifies itself to the queue by a "page"
+ * parameter of its own. The function is told whether we are to recycle.
+ */
+function processQueue(queueUrl, drained) {
+	var i, match, pages, recycle, remaining;
+
+	match = queueUrl.match(/[?&]pages=([0-9]+)/);
+	pages = (match ? parseInt(match[1], 10) : 1);
+	remaining = pages;
+	recycle = false;
+
+	function processPage(pageQueueUrl) {
+		var queuePage;
+
+		queuePage = new WebPage();
+		processQueuedTestAndLoadNext(pageQueueUrl, queuePage, function(pageRecycle) {
+			closePage(queuePage);
+			recycle = recycle || pageRecycle;
+			remaining -= 1;
+			if (remaining === 0) {
+				drained(recycle);
+			}
+		});
+	}
+
+	if (pages > 1) {
+		for (i = 0; i < pages; ++i) {
+			processPage(queueUrl + "&page=" + i);
+		}
+	} else {
+		processPage(queueUrl);
+	}
+}
+
+/**
+ * Process each queue that we are told of on standard input in turn, announcing
+ * on standard output whenever we are waiting to be told of the next one. This
+ * keeps us running between suites. Exits when standard input is closed, or
+ * when told to recycle so that a fresh daemon can take over.
+ */
+function processDaemonQueues(system) {
+	var queueUrl;
+
+	console.log("jstestrunner:idle");
+	queueUrl = system.stdin.readLine();
+
+	if (queueUrl) {
+		processQueue(queueUrl, function(recycle) {
+			if (recycle) {
+				phantom.exit();
+			} else {
+				processDaemonQueues(system);
+			}
+		});
+	} else {
+		phantom.exit();
+	}
+}
+
 /**
  * Main control flow for Phantom.
  */
 function main() {
 
-	var testUrls;
+	var daemonArg, queueArg, testUrls;
+
+	daemonArg = "--daemon";
+	queueArg = "--queue=";
 
 	if (phantom.args.length === 1) {
 
-		testUrls = phantom.args[0].split(',');
+		if (phantom.args[0] === daemonArg) {
+			processDaemonQueues(require("system"));
 
-		if (testUrls.length > 0) {
-			processTestAndLoadNext(testUrls);
+		} else if (phantom.args[0].indexOf(queueArg) === 0) {
+			processQueue(phantom.args[0].substring(queueArg.length), function() {
+				phantom.exit();
+			});
+
+		} else {
+			testUrls = phantom.args[0].split(',');
+
+			if (testUrls.length > 0) {
+				processTestAndLoadNext(testUrls);
+			}
 		}
 
 	} else {
-		console.log("Usage: run-qunit.js URL[,URL]*");
+		console.log("Usage: run-qunit.js URL[,URL]* | --queue=URL | --daemon");
 		phantom.exit();
 
 	}
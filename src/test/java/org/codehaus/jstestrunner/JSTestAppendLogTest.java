@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class JSTestAppendLogTest {
+
+	private static List<String> read(final JSTestAppendLog log)
+			throws IOException {
+		final List<String> lines = new ArrayList<String>();
+		log.read(new JSTestAppendLog.LineReader() {
+			public void read(final String line) {
+				lines.add(line);
+			}
+		});
+		return lines;
+	}
+
+	/**
+	 * Test that lines appended by logs sharing a file are read, and that the
+	 * file is compacted once it would hold more lines than allowed, including
+	 * those appended by others since it was read.
+	 */
+	@Test
+	public void testAppendAndCompact() throws IOException {
+		File file = File.createTempFile("append", ".log");
+		file.delete();
+		try {
+			JSTestAppendLog log = new JSTestAppendLog(file);
+			JSTestAppendLog otherLog = new JSTestAppendLog(file);
+			assertEquals(Collections.<String> emptyList(), read(log));
+
+			final List<List<String>> compactedLines = new ArrayList<List<String>>();
+			JSTestAppendLog.Compactor compactor = new JSTestAppendLog.Compactor() {
+				public List<String> compact(final List<String> lines) {
+					compactedLines.add(lines);
+					return lines.subList(lines.size() - 1, lines.size());
+				}
+			};
+			log.append(Arrays.asList("a\n", "b\n"), 3, compactor);
+			otherLog.append(Arrays.asList("c\n"), 3, compactor);
+			log.append(Collections.<String> emptyList(), 3, compactor);
+			assertEquals(Arrays.asList("a", "b", "c"), read(otherLog));
+			assertEquals(0, compactedLines.size());
+
+			// Having read the file, appending would take it over.
+			otherLog.append(Arrays.asList("d\n"), 3, compactor);
+			assertEquals(Arrays.asList(Arrays.asList("a\n", "b\n", "c\n", "d\n")),
+					compactedLines);
+			assertEquals(Arrays.asList("d"), read(log));
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+
+import org.codehaus.jstestrunner.JSTestTimingStore.JSTestTiming;
+import org.junit.Test;
+
+public class JSTestBatcherTest {
+
+	/**
+	 * Describe batches by the paths of their urls.
+	 */
+	private static String describe(final List<List<URL>> batches) {
+		final StringBuilder description = new StringBuilder();
+		for (final List<URL> batch : batches) {
+			description.append('[');
+			for (final URL url : batch) {
+				description.append(url.getPath());
+			}
+			description.append(']');
+		}
+		return description.toString();
+	}
+
+	/**
+	 * Test that urls known to take long run by themselves while the others are
+	 * batched in order, spread across the execution servers.
+	 * 
+	 * @throws MalformedURLException
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testBatch() throws MalformedURLException {
+		final JSTestTimingStore timingStore = new JSTestTimingStore(new File(
+				"timings.log"));
+		timingStore.record(new JSTestTiming(0L, "b.html", 5000L, -1L, -1L,
+				-1L, 1, 0));
+		timingStore.record(new JSTestTiming(0L, "c.html", 100L, -1L, -1L,
+				-1L, 1, 0));
+		final URL a = new URL("http://localhost:9080/a.html");
+		final URL b = new URL("http://localhost:9080/b.html");
+		final URL c = new URL("http://localhost:9080/c.html");
+		final URL d = new URL("http://localhost:9080/d.html");
+		final URL e = new URL("http://localhost:9080/e.html");
+		final List<URL> urls = Arrays.asList(a, b, c, d, e);
+
+		final JSTestBatcher batcher = new JSTestBatcher(timingStore, 3, 1000L);
+		assertEquals("[/a.html/c.html/d.html][/b.html][/e.html]",
+				describe(batcher.batch(urls, 1)));
+		assertEquals("[/a.html/c.html][/b.html][/d.html/e.html]",
+				describe(batcher.batch(urls, 2)));
+
+		// There's no point batching when there are as many execution servers
+		// as urls to batch.
+		assertEquals("[/a.html][/b.html][/c.html][/d.html][/e.html]",
+				describe(batcher.batch(urls, 4)));
+	}
+
+	/**
+	 * Test that every url is batched when there are no timings.
+	 * 
+	 * @throws MalformedURLException
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testBatchWithoutTimings() throws MalformedURLException {
+		final URL a = new URL("http://localhost:9080/a.html");
+		final URL b = new URL("http://localhost:9080/b.html");
+		assertEquals("[/a.html/b.html]", describe(new JSTestBatcher(null, 10,
+				1000L).batch(Arrays.asList(a, b), 1)));
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class JSTestDependenciesTest {
+
+	/**
+	 * Test that the local references of a test document are resolved against
+	 * its folder, and that files are found in the first resource base having
+	 * them.
+	 */
+	@Test
+	public void testGetDependencies() throws IOException {
+		File folder = File.createTempFile("resources", "");
+		folder.delete();
+		File classes = new File(folder, "classes");
+		File testClasses = new File(folder, "test-classes");
+		File document = new File(testClasses, "a" + File.separator
+				+ "ATest.html");
+		document.getParentFile().mkdirs();
+		classes.mkdirs();
+		try {
+			OutputStream out = new FileOutputStream(document);
+			try {
+				out.write(("<script src=\"../js/a.js?v=1\"></script>\n"
+						+ "<SCRIPT type=\"text/javascript\" src='/js/b.js'></SCRIPT>\n"
+						+ "<link rel=\"stylesheet\" href=\"./a.css#x\">\n"
+						+ "<script src=\"http://example.com/c.js\"></script>\n"
+						+ "<script src=\"//example.com/d.js\"></script>\n"
+						+ "<script src=\"../../e.js\"></script>\n"
+						+ "<script src=\"/js/b.js\"></script>\n")
+						.getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+			File classesDocument = new File(classes, "a" + File.separator
+					+ "ATest.html");
+			classesDocument.getParentFile().mkdirs();
+			classesDocument.createNewFile();
+
+			JSTestDependencies dependencies = new JSTestDependencies(
+					new String[] { testClasses.getPath(), classes.getPath() });
+			assertEquals(Arrays.asList("a/ATest.html", "js/a.js", "js/b.js",
+					"a/a.css"), dependencies.getDependencies(new URL(
+					"http://localhost:9080/a/ATest.html")));
+			assertEquals(document, dependencies.findFile("a/ATest.html"));
+			assertNull(dependencies.findFile("js/a.js"));
+			assertNull(dependencies.getDependencies(new URL(
+					"http://localhost:9080/a/BTest.html")));
+		} finally {
+			new File(classes, "a" + File.separator + "ATest.html").delete();
+			new File(classes, "a").delete();
+			classes.delete();
+			document.delete();
+			document.getParentFile().delete();
+			testClasses.delete();
+			folder.delete();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URL;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class JSTestExecutionDaemonTest {
+
+	/**
+	 * A daemon that announces that it is idle once started and once for each
+	 * line it reads, exiting on "exit".
+	 */
+	private static final String[] COMMAND_ARGS = {
+			"sh",
+			"-c",
+			"echo " + JSTestExecutionDaemon.IDLE_MARKER
+					+ "; while read l; do [ \"$l\" = http://exit/ ] && exit; echo "
+					+ JSTestExecutionDaemon.IDLE_MARKER + "; done" };
+
+	@After
+	public void tearDown() {
+		JSTestExecutionDaemon.destroyAll();
+	}
+
+	/**
+	 * Test that a daemon that becomes idle is reused.
+	 * 
+	 * @throws IOException
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testReuse() throws IOException {
+		final JSTestExecutionDaemon daemon = JSTestExecutionDaemon
+				.acquire(COMMAND_ARGS);
+		daemon.submit(new URL("http://localhost:9080/nextTest?worker=0"));
+		assertTrue(daemon.awaitIdle(5000L));
+		JSTestExecutionDaemon.release(daemon);
+
+		assertSame(daemon, JSTestExecutionDaemon.acquire(COMMAND_ARGS));
+		assertTrue(daemon.isAvailable());
+	}
+
+	/**
+	 * Test that a daemon that exits is not reused.
+	 * 
+	 * @throws IOException
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testExited() throws IOException {
+		final JSTestExecutionDaemon daemon = JSTestExecutionDaemon
+				.acquire(COMMAND_ARGS);
+		daemon.submit(new URL("http://exit/"));
+		assertFalse(daemon.awaitIdle(5000L));
+		JSTestExecutionDaemon.release(daemon);
+
+		assertNotSame(daemon, JSTestExecutionDaemon.acquire(COMMAND_ARGS));
+	}
+}
@@ -23,7 +23,10 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
@@ -40,8 +43,8 @@ public class JSTestExecutionServerTest {
 	 *             if something goes wrong.
 	 */
 	private JSTestExecutionServer setupServer(final String args) throws IOException {
-        final JSTestExecutionServer server = new JSTestExecutionServer("target" + File.separator + "js-testrunner",
-                args, new ArrayList<URL>());
+        final JSTestExecutionServer server = new JSTestExecutionServer.Builder("target" + File.separator + "js-testrunner",
+                args, new ArrayList<URL>()).build();
 		server.copyTestRunnerFileIfNotExists();
         return server;
 	}
@@ -81,4 +84,68 @@ public class JSTestExecutionServerTest {
 		assertTrue(args[1].endsWith(server.getTestRunnerFilePath()
 				+ File.separator + "run-qunit.js\""));
 	}
+
+	/**
+	 * Test that command args refer to the work queue when one is used.
+	 * 
+	 * @throws IOException
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testGetCommandArgsWithQueue() throws IOException {
+		final JSTestExecutionServer server = new JSTestExecutionServer.Builder("target"
+				+ File.separator + "js-testrunner", "phantomjs '%1$s' %2$s",
+				new URL("http://localhost:9080/nextTest?worker=0")).build();
+		String[] args = server.getCommandArgs();
+		assertEquals(3, args.length);
+		assertEquals("--queue=http://localhost:9080/nextTest?worker=0", args[2]);
+	}
+
+	/**
+	 * Test that command args start a daemon when one is used.
+	 * 
+	 * @throws IOException
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testGetCommandArgsWithDaemon() throws IOException {
+		final JSTestExecutionServer server = new JSTestExecutionServer.Builder(
+				"target" + File.separator + "js-testrunner",
+				"phantomjs '%1$s' %2$s", new URL(
+						"http://localhost:9080/nextTest?worker=0")).daemon(true)
+				.build();
+		String[] args = server.getCommandArgs();
+		assertEquals(3, args.length);
+		assertEquals("--daemon", args[2]);
+	}
+
+	/**
+	 * Test that the resident set size is read from the status of a process.
+	 * 
+	 * @throws IOException
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testGetResidentSetSize() throws IOException {
+		final File statusFile = File.createTempFile("status", null);
+		statusFile.deleteOnExit();
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(
+				statusFile), "US-ASCII");
+		try {
+			writer.write("Name:\tphantomjs\nVmPeak:\t  900000 kB\nVmRSS:\t  204800 kB\n");
+		} finally {
+			writer.close();
+		}
+		assertEquals(204800L * 1024L,
+				JSTestExecutionServer.getResidentSetSize(statusFile));
+
+		final Writer emptyWriter = new OutputStreamWriter(new FileOutputStream(
+				statusFile), "US-ASCII");
+		try {
+			emptyWriter.write("Name:\tphantomjs\n");
+		} finally {
+			emptyWriter.close();
+		}
+		assertEquals(-1L, JSTestExecutionServer.getResidentSetSize(statusFile));
+	}
 }
@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the files that tests serve or depend on.
+ */
+public final class JSTestFiles {
+
+	private JSTestFiles() {
+	}
+
+	/**
+	 * Write a file, creating its folder if need be.
+	 * 
+	 * @param file
+	 *            the file.
+	 * @param content
+	 *            the content, encoded as UTF-8.
+	 * @return the file.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public static File write(final File file, final String content)
+			throws IOException {
+		file.getParentFile().mkdirs();
+		final OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner;
+
+import static org.codehaus.jstestrunner.JSTestFiles.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.codehaus.jstestrunner.JSTestTimingStore.JSTestTiming;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestCaseResult;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestResult;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JSTestModuleSplitterTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	/**
+	 * Test that module names are encoded so that QUnit decodes them as they
+	 * were.
+	 */
+	@Test
+	public void testGetModuleUrl() throws IOException {
+		assertEquals("http://localhost:9080/ATest.html?module=a%20b%26c",
+				JSTestModuleSplitter.getModuleUrl(
+						new URL("http://localhost:9080/ATest.html"), "a b&c")
+						.toString());
+		assertEquals("http://localhost:9080/ATest.html?x=1&module=a",
+				JSTestModuleSplitter.getModuleUrl(
+						new URL("http://localhost:9080/ATest.html?x=1"), "a")
+						.toString());
+	}
+
+	/**
+	 * Test that the modules of a url that ran as a whole are recorded, and that
+	 * the url is then split into them longest first so long as they take long
+	 * enough altogether and nothing the url depends on has been modified since.
+	 */
+	@Test
+	public void testRecordAndSplit() throws IOException {
+		File folder = temporaryFolder.getRoot();
+		File document = new File(folder, "ATest.html");
+		write(document, "<script src=\"a.js\"></script>");
+		File script = new File(folder, "a.js");
+		write(script, "module('a');");
+		long lastModified = System.currentTimeMillis() - 60000L;
+		document.setLastModified(lastModified);
+		script.setLastModified(lastModified);
+
+		JSTestTimingStore timingStore = new JSTestTimingStore(new File(
+				folder, "timings.log"));
+		JSTestModuleSplitter splitter = new JSTestModuleSplitter(
+				timingStore, new JSTestDependencies(new String[] { folder
+						.getPath() }), 1000L);
+		URL url = new URL("http://localhost:9080/ATest.html");
+		assertTrue(splitter.split(url).isEmpty());
+
+		long time = System.currentTimeMillis();
+		splitter.record(time, url, new JSTestResult.Builder(1, 4, "")
+				.testCaseResults(Arrays.asList(
+						new JSTestCaseResult("a", "1", 0, 1, 200L, ""),
+						new JSTestCaseResult("b c", "2", 1, 1, 700L, ""),
+						new JSTestCaseResult("a", "3", 0, 1, 300L, "")))
+				.loadMillis(10L).runMillis(1200L).postLatencyMillis(1L).build());
+		JSTestTiming timing = timingStore.getTimings("ATest.html?module=a")
+				.get(0);
+		assertEquals(time, timing.getTime());
+		assertEquals(500L, timing.getDurationMillis());
+		assertEquals(2, timing.getPasses());
+		assertEquals(0, timing.getFailures());
+		assertEquals(1, timingStore.getTimings("ATest.html?module=b%20c")
+				.get(0).getFailures());
+
+		// Only passing durations are estimated by.
+		timingStore.record(new JSTestTiming(time, "ATest.html?module=b%20c",
+				900L, -1L, -1L, -1L, 2, 0));
+		assertEquals(Arrays.asList(new URL(
+				"http://localhost:9080/ATest.html?module=b%20c"), new URL(
+				"http://localhost:9080/ATest.html?module=a")),
+				splitter.split(url));
+
+		assertTrue(new JSTestModuleSplitter(timingStore,
+				new JSTestDependencies(new String[] { folder.getPath() }),
+				1500L).split(url).isEmpty());
+
+		script.setLastModified(time);
+		assertTrue(splitter.split(url).isEmpty());
+	}
+
+	/**
+	 * Test that nothing is recorded for a url with tests outside of any module,
+	 * or whose tests did not run to completion.
+	 */
+	@Test
+	public void testRecordUnsplittable() throws IOException {
+		JSTestTimingStore timingStore = new JSTestTimingStore(new File(
+				"timings.log"));
+		JSTestModuleSplitter splitter = new JSTestModuleSplitter(timingStore,
+				new JSTestDependencies(new String[0]), 0L);
+		URL url = new URL("http://localhost:9080/ATest.html");
+		splitter.record(0L, url, new JSTestResult.Builder(0, 2, "")
+				.testCaseResults(Arrays.asList(
+						new JSTestCaseResult("a", "1", 0, 1, 200L, ""),
+						new JSTestCaseResult(null, "2", 0, 1, 700L, "")))
+				.loadMillis(10L).runMillis(900L).postLatencyMillis(1L).build());
+		splitter.record(0L, url, new JSTestResult.Builder(1, 0, "Timed out")
+				.testCaseResults(Collections.singletonList(
+						new JSTestCaseResult("a", "1", 0, 1, 200L, ""))).build());
+		assertTrue(timingStore.getPaths().isEmpty());
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner;
+
+import static org.codehaus.jstestrunner.JSTestFiles.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Arrays;
+
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestCaseResult;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestResult;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JSTestResultCacheTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	/**
+	 * Test that the hash of a url is the same whatever the host and port, and
+	 * changes with the content of the files that the url depends on, including
+	 * one that was missing appearing, and nothing else.
+	 */
+	@Test
+	public void testHash() throws IOException {
+		File folder = temporaryFolder.getRoot();
+		write(new File(folder, "ATest.html"), "<script src=\"a.js\"></script>\n"
+				+ "<link rel=\"stylesheet\" href=\"a.css\">\n");
+		write(new File(folder, "a.js"), "a");
+		write(new File(folder, "unrelated.js"), "u");
+
+		JSTestResultCache cache = new JSTestResultCache(new File(folder,
+				"results.cache"), new JSTestDependencies(
+				new String[] { folder.getPath() }));
+		URL url = new URL("http://localhost:9080/ATest.html");
+		String hash = cache.hash(url);
+		assertEquals(40, hash.length());
+		assertEquals(hash, cache.hash(new URL("http://localhost:9081/ATest.html")));
+
+		write(new File(folder, "unrelated.js"), "v");
+		assertEquals(hash, cache.hash(url));
+
+		write(new File(folder, "a.js"), "b");
+		String changedHash = cache.hash(url);
+		assertFalse(hash.equals(changedHash));
+
+		write(new File(folder, "a.css"), "body {}");
+		assertFalse(changedHash.equals(cache.hash(url)));
+
+		assertNull(cache.hash(new URL("http://localhost:9080/BTest.html")));
+	}
+
+	/**
+	 * Test that results recorded by several caches sharing a file load, and
+	 * that they are only reused for the same hash.
+	 */
+	@Test
+	public void testFlushAndLoad() throws IOException {
+		File file = File.createTempFile("results", ".cache");
+		try {
+			JSTestResultCache cache = JSTestResultCache.load(file,
+					new JSTestDependencies(new String[0]));
+			JSTestResultCache otherCache = JSTestResultCache.load(file,
+					new JSTestDependencies(new String[0]));
+			cache.record("a.html", "1", new JSTestResult.Builder(0, 2,
+					"a passed").testCaseResults(Arrays.asList(
+					new JSTestCaseResult(null, "a", 0, 2, 3L, "\n  ok")))
+					.loadMillis(4L).runMillis(5L).postLatencyMillis(6L).build());
+			otherCache.record("b.html", "2", new JSTestResult.Builder(1,
+					0, "b\tfailed\n").testCaseResults(Arrays.asList(
+					new JSTestCaseResult("m", "b", 1, 0, 7L, "\n  not ok")))
+					.loadMillis(8L).runMillis(9L).postLatencyMillis(10L).build());
+			cache.flush();
+			otherCache.flush();
+			cache.record("a.html", "3", new JSTestResult.Builder(0, 1,
+					"a changed").testCaseResults(Arrays.asList(
+					new JSTestCaseResult(null, "a", 0, 1, 3L, "\n  ok")))
+					.loadMillis(4L).runMillis(5L).postLatencyMillis(6L).build());
+			cache.flush();
+
+			OutputStream out = new FileOutputStream(file, true);
+			try {
+				out.write("{\"path\":\"c.html\"}\n{\"time\":1,\"pa".getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+
+			JSTestResultCache loadedCache = JSTestResultCache.load(file,
+					new JSTestDependencies(new String[0]));
+			assertNull(loadedCache.getJsTestResult("a.html", "1"));
+			JSTestResult a = loadedCache.getJsTestResult("a.html", "3");
+			assertEquals(1, a.getPasses());
+			assertTrue(a.isCached());
+			assertNull(loadedCache.getJsTestResult("b.html", "1"));
+			JSTestResult b = loadedCache.getJsTestResult("b.html", "2");
+			assertTrue(b.isCached());
+			assertEquals(1, b.getFailures());
+			assertEquals(0, b.getPasses());
+			assertEquals("b\tfailed\n", b.getMessage());
+			assertEquals(8L, b.getLoadMillis());
+			assertEquals(9L, b.getRunMillis());
+			assertEquals(1, b.getTestCaseResults().size());
+			JSTestCaseResult bTest = b.getTestCaseResults().get(0);
+			assertEquals("[m] b", bTest.getName());
+			assertEquals(1, bTest.getFailures());
+			assertEquals(7L, bTest.getDuration());
+			assertEquals("\n  not ok", bTest.getMessage());
+			assertNull(loadedCache.getJsTestResult("c.html", "3"));
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -20,12 +20,31 @@
 package org.codehaus.jstestrunner;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import org.codehaus.jstestrunner.JSTestTimingStore.JSTestTiming;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestProgress;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestResult;
+import org.codehaus.jstestrunner.jetty.JSTestResultServer;
+import org.codehaus.jstestrunner.jetty.JSTestWorkQueueHandler;
+import org.eclipse.jetty.server.Server;
 import org.junit.Test;
 
 public class JSTestSuiteRunnerServiceTest {
@@ -50,4 +69,365 @@ public class JSTestSuiteRunnerServiceTest {
 		assertEquals(1, urls.size());
 		assertEquals("/QUnitTest.html", urls.get(0).getPath());
 	}
+
+	/**
+	 * Test that urls are ordered by their median passing durations, with those
+	 * not known expected to take the median of the others.
+	 */
+	@Test
+	public void testOrderLongestFirst() throws MalformedURLException {
+		final JSTestTimingStore timingStore = new JSTestTimingStore(new File(
+				"timings.log"));
+		timingStore.record(new JSTestTiming(0L, "a.html", 100L, -1L, -1L, -1L,
+				1, 0));
+		timingStore.record(new JSTestTiming(0L, "b.html", 300L, -1L, -1L, -1L,
+				1, 0));
+		timingStore.record(new JSTestTiming(0L, "b.html", 5000L, -1L, -1L,
+				-1L, 0, 1));
+		timingStore.record(new JSTestTiming(0L, "c.html", 200L, -1L, -1L, -1L,
+				1, 0));
+		final URL a = new URL("http://localhost:9080/a.html");
+		final URL b = new URL("http://localhost:9080/b.html");
+		final URL c = new URL("http://localhost:9080/c.html");
+		final URL d = new URL("http://localhost:9080/d.html");
+
+		assertEquals(Arrays.asList(b, c, d, a),
+				JSTestSuiteRunnerService.orderLongestFirst(
+						Arrays.asList(a, b, c, d), timingStore));
+		assertEquals(Arrays.asList(d, a),
+				JSTestSuiteRunnerService.orderLongestFirst(Arrays.asList(d, a),
+						new JSTestTimingStore(new File("timings.log"))));
+	}
+
+	/**
+	 * Test that each url belongs to exactly one shard, and that shards are
+	 * balanced given timings.
+	 */
+	@Test
+	public void testSelectShard() throws MalformedURLException {
+		final List<URL> urls = new ArrayList<URL>();
+		for (int i = 0; i < 20; ++i) {
+			urls.add(new URL("http://localhost:9080/" + i + ".html"));
+		}
+		final List<URL> shardUrls = new ArrayList<URL>();
+		for (int i = 0; i < 3; ++i) {
+			shardUrls.addAll(JSTestSuiteRunnerService.selectShard(urls, i, 3,
+					null));
+		}
+		assertEquals(urls.size(), shardUrls.size());
+		assertTrue(shardUrls.containsAll(urls));
+
+		final JSTestTimingStore timingStore = new JSTestTimingStore(new File(
+				"timings.log"));
+		timingStore.record(new JSTestTiming(0L, "a.html", 100L, -1L, -1L, -1L,
+				1, 0));
+		timingStore.record(new JSTestTiming(0L, "b.html", 300L, -1L, -1L, -1L,
+				1, 0));
+		timingStore.record(new JSTestTiming(0L, "c.html", 200L, -1L, -1L, -1L,
+				1, 0));
+		final URL a = new URL("http://localhost:9080/a.html");
+		final URL b = new URL("http://localhost:9080/b.html");
+		final URL c = new URL("http://localhost:9080/c.html");
+		final URL d = new URL("http://localhost:9080/d.html");
+		assertEquals(Arrays.asList(a, b), JSTestSuiteRunnerService.selectShard(
+				Arrays.asList(a, b, c, d), 0, 2, timingStore));
+		assertEquals(Arrays.asList(c, d), JSTestSuiteRunnerService.selectShard(
+				Arrays.asList(a, b, c, d), 1, 2, timingStore));
+	}
+
+	/**
+	 * Test that the urls selected are those depending on changed files,
+	 * whether named by their source or by their copy within a resource base.
+	 */
+	@Test
+	public void testSelectAffected() throws MalformedURLException {
+		final JSTestDependencies dependencies = new JSTestDependencies(
+				new String[] { "target" + File.separator + "test-classes" });
+		final URL qunit = new URL("http://localhost:9080/QUnitTest.html");
+		final URL manual = new URL(
+				"http://localhost:9080/run-qunit-manual-test.html");
+		final URL missing = new URL("http://localhost:9080/MissingTest.html");
+		final List<URL> urls = Arrays.asList(qunit, manual, missing);
+
+		assertEquals(Arrays.asList(qunit, missing),
+				JSTestSuiteRunnerService.selectAffected(urls, dependencies,
+						Arrays.asList(new File("src/test/resources/js/AjaxUtils.js"))));
+		assertEquals(urls, JSTestSuiteRunnerService.selectAffected(urls,
+				dependencies, Arrays.asList(new File("target"
+						+ File.separator + "test-classes" + File.separator
+						+ "js" + File.separator + "qunit.js"))));
+		assertEquals(Arrays.asList(missing),
+				JSTestSuiteRunnerService.selectAffected(urls, dependencies,
+						Arrays.asList(new File("src/main/java/Other.java"))));
+	}
+
+	/**
+	 * Test that the urls selected are those that depend on files modified
+	 * since they last ran, last failed or have not run before.
+	 */
+	@Test
+	public void testSelectModified() throws MalformedURLException {
+		final JSTestDependencies dependencies = new JSTestDependencies(
+				new String[] { "target" + File.separator + "test-classes" });
+		final URL qunit = new URL("http://localhost:9080/QUnitTest.html");
+		final URL manual = new URL(
+				"http://localhost:9080/run-qunit-manual-test.html");
+		final List<URL> urls = Arrays.asList(qunit, manual);
+		final long future = System.currentTimeMillis() + 60000L;
+
+		final JSTestTimingStore timingStore = new JSTestTimingStore(new File(
+				"timings.log"));
+		timingStore.record(new JSTestTiming(future, "QUnitTest.html", 100L,
+				-1L, -1L, -1L, 1, 0));
+		assertEquals(Arrays.asList(manual),
+				JSTestSuiteRunnerService.selectModified(urls, dependencies,
+						timingStore));
+
+		timingStore.record(new JSTestTiming(future,
+				"run-qunit-manual-test.html", 100L, -1L, -1L, -1L, 1, 0));
+		assertEquals(Collections.<URL> emptyList(),
+				JSTestSuiteRunnerService.selectModified(urls, dependencies,
+						timingStore));
+
+		timingStore.record(new JSTestTiming(future,
+				"run-qunit-manual-test.html", 100L, -1L, -1L, -1L, 0, 1));
+		timingStore.record(new JSTestTiming(0L, "QUnitTest.html", 100L, -1L,
+				-1L, -1L, 1, 0));
+		assertEquals(urls, JSTestSuiteRunnerService.selectModified(urls,
+				dependencies, timingStore));
+	}
+
+	/**
+	 * Test that the urls outstanding when the last execution process exits
+	 * fail straight away.
+	 * 
+	 * @throws MalformedURLException
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testFailOutstandingUrls() throws MalformedURLException {
+		final JSTestResultServer jSTestResultServer = new JSTestResultServer(
+				new Server(), new JSTestResultHandler(), 9080, "/",
+				new String[0]);
+		final JSTestExecutionServer jSTestExecutionServer = new JSTestExecutionServer.Builder(
+				"target" + File.separator + "js-testrunner",
+				"phantomjs '%1$s' %2$s", jSTestResultServer.getNextTestUrl(
+						"localhost", "0")).build();
+		final JSTestSuiteRunnerService service = new JSTestSuiteRunnerService.Builder(
+				jSTestResultServer,
+				Collections.singletonList(jSTestExecutionServer)).build();
+
+		final URL a = new URL("http://localhost:9080/a.html");
+		final URL b = new URL("http://localhost:9080/b.html");
+		jSTestResultServer.getJsTestWorkQueueHandler().submit(
+				Arrays.asList(a, b));
+		jSTestResultServer.getJsTestWorkQueueHandler().takeNext("0");
+
+		service.failOutstandingUrls(jSTestExecutionServer, 3, "oops\n");
+
+		final JSTestResultHandler handler = jSTestResultServer
+				.getJsTestResultHandler();
+		final JSTestResult aResult = handler.getJsTestResult(a,
+				jSTestExecutionServer, 0L, TimeUnit.SECONDS);
+		assertEquals(1, aResult.getFailures());
+		assertEquals(
+				"The test execution process exited with 3, its last output being:\noops\n",
+				aResult.getMessage());
+		final JSTestResult bResult = handler.getJsTestResult(b,
+				jSTestExecutionServer, 0L, TimeUnit.SECONDS);
+		assertEquals(1, bResult.getFailures());
+		assertTrue(bResult.getMessage().startsWith(
+				"No test execution process remained"));
+	}
+
+	/**
+	 * Test that an execution process exiting is restarted to resume with the
+	 * urls remaining, up until the number of restarts allowed.
+	 * 
+	 * @throws Exception
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testRespawn() throws Exception {
+		final JSTestResultServer jSTestResultServer = new JSTestResultServer(
+				new Server(), new JSTestResultHandler(), 9080, "/",
+				new String[0]);
+		final JSTestExecutionServer jSTestExecutionServer = new JSTestExecutionServer.Builder(
+				"target" + File.separator + "js-testrunner",
+				"sh -c 'exit 3' %1$s %2$s", jSTestResultServer.getNextTestUrl(
+						"localhost", "0")).build();
+		final JSTestSuiteRunnerService service = new JSTestSuiteRunnerService.Builder(
+				jSTestResultServer,
+				Collections.singletonList(jSTestExecutionServer)).maxRespawns(1).build();
+
+		final URL a = new URL("http://localhost:9080/a.html");
+		final URL b = new URL("http://localhost:9080/b.html");
+		jSTestResultServer.getJsTestWorkQueueHandler().submit(
+				Arrays.asList(a, b));
+		jSTestResultServer.getJsTestWorkQueueHandler().takeNext("0");
+
+		final JSTestResultHandler handler = jSTestResultServer
+				.getJsTestResultHandler();
+		try {
+			// The first exit fails the url being worked on and restarts.
+			service.failOutstandingUrls(jSTestExecutionServer, 3, "");
+			assertTrue(handler.getJsTestResultFuture(a).isDone());
+			assertFalse(handler.getJsTestResultFuture(b).isDone());
+
+			// The second exit has no restarts left.
+			service.failOutstandingUrls(jSTestExecutionServer, 3, "");
+			assertTrue(handler.getJsTestResultFuture(b).isDone());
+		} finally {
+			jSTestExecutionServer.stop();
+		}
+	}
+
+	/**
+	 * Test that an execution process exiting having been told to recycle is
+	 * restarted without failing anything or counting as a restart.
+	 * 
+	 * @throws Exception
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testRecycle() throws Exception {
+		final JSTestResultServer jSTestResultServer = new JSTestResultServer(
+				new Server(), new JSTestResultHandler(), 9080, "/",
+				new String[0]);
+		final JSTestExecutionServer jSTestExecutionServer = new JSTestExecutionServer.Builder(
+				"target" + File.separator + "js-testrunner",
+				"sh -c 'exit 0' %1$s %2$s", jSTestResultServer.getNextTestUrl(
+						"localhost", "0")).build();
+		final JSTestSuiteRunnerService service = new JSTestSuiteRunnerService.Builder(
+				jSTestResultServer,
+				Collections.singletonList(jSTestExecutionServer)).build();
+
+		final URL a = new URL("http://localhost:9080/a.html");
+		final URL b = new URL("http://localhost:9080/b.html");
+		final JSTestWorkQueueHandler jsTestWorkQueueHandler = jSTestResultServer
+				.getJsTestWorkQueueHandler();
+		jsTestWorkQueueHandler.submit(Arrays.asList(a, b));
+		jsTestWorkQueueHandler.takeNext("0");
+		jsTestWorkQueueHandler.recycle("0");
+
+		final JSTestResultHandler handler = jSTestResultServer
+				.getJsTestResultHandler();
+		try {
+			// Recycling fails nothing and restarts.
+			service.failOutstandingUrls(jSTestExecutionServer, 0, "");
+			assertFalse(handler.getJsTestResultFuture(a).isDone());
+			assertFalse(handler.getJsTestResultFuture(b).isDone());
+			assertFalse(jsTestWorkQueueHandler.isRecycling("0"));
+
+			// Exiting otherwise has no restarts left.
+			service.failOutstandingUrls(jSTestExecutionServer, 3, "");
+			assertTrue(handler.getJsTestResultFuture(a).isDone());
+			assertTrue(handler.getJsTestResultFuture(b).isDone());
+		} finally {
+			jSTestExecutionServer.stop();
+		}
+	}
+
+	/**
+	 * Test that a url that stops making progress fails once the hang timeout
+	 * has passed.
+	 */
+	@Test
+	public void testDetectHangs() throws MalformedURLException {
+		final JSTestResultHandler handler = mock(JSTestResultHandler.class);
+		final JSTestResultServer jSTestResultServer = new JSTestResultServer(
+				new Server(), handler, 9080, "/", new String[0]);
+		final JSTestExecutionServer jSTestExecutionServer = new JSTestExecutionServer.Builder(
+				"target" + File.separator + "js-testrunner",
+				"phantomjs '%1$s' %2$s", jSTestResultServer.getNextTestUrl(
+						"localhost", "0")).build();
+		final JSTestSuiteRunnerService service = new JSTestSuiteRunnerService.Builder(
+				jSTestResultServer,
+				Collections.singletonList(jSTestExecutionServer)).hangTimeoutMillis(1000L).build();
+
+		final URL a = new URL("http://localhost:9080/a.html");
+		jSTestResultServer.getJsTestWorkQueueHandler().submit(
+				Collections.singletonList(a));
+		jSTestResultServer.getJsTestWorkQueueHandler().takeNext("0");
+		when(handler.getJsTestProgress(a.toString())).thenReturn(
+				new JSTestProgress("m", "t", 2, 5000L));
+
+		service.detectHangs(5999L);
+		verify(handler, never()).fail(a.toString(),
+				"Stalled with no heartbeat for 999ms in [m] t after 2 assertions");
+
+		service.detectHangs(6000L);
+		verify(handler).fail(a.toString(),
+				"Stalled with no heartbeat for 1000ms in [m] t after 2 assertions");
+	}
+
+	/**
+	 * Test that the urls running alongside one that hangs are submitted again
+	 * rather than being failed once its process is killed.
+	 */
+	@Test
+	public void testDetectHangsSubmitsOthersAgain() throws MalformedURLException {
+		final JSTestResultHandler handler = mock(JSTestResultHandler.class);
+		final JSTestResultServer jSTestResultServer = new JSTestResultServer(
+				new Server(), handler, 9080, "/", new String[0]);
+		final JSTestExecutionServer jSTestExecutionServer = new JSTestExecutionServer.Builder(
+				"target" + File.separator + "js-testrunner",
+				"phantomjs '%1$s' %2$s", jSTestResultServer.getNextTestUrl(
+						"localhost", "0")).build();
+		final JSTestSuiteRunnerService service = new JSTestSuiteRunnerService.Builder(
+				jSTestResultServer,
+				Collections.singletonList(jSTestExecutionServer)).hangTimeoutMillis(1000L).build();
+
+		final URL a = new URL("http://localhost:9080/a.html");
+		final URL b = new URL("http://localhost:9080/b.html");
+		final JSTestWorkQueueHandler jsTestWorkQueueHandler = jSTestResultServer
+				.getJsTestWorkQueueHandler();
+		jsTestWorkQueueHandler.submit(Arrays.asList(a, b));
+		jsTestWorkQueueHandler.takeNext("0/0");
+		jsTestWorkQueueHandler.takeNext("0/1");
+		when(handler.getJsTestProgress(a.toString())).thenReturn(
+				new JSTestProgress("m", "t", 2, 5000L));
+		when(handler.getJsTestProgress(b.toString())).thenReturn(
+				new JSTestProgress("m", "u", 1, 5500L));
+		when(handler.fail(a.toString(),
+				"Stalled with no heartbeat for 1000ms in [m] t after 2 assertions"))
+				.thenReturn(true);
+		when(handler.getJsTestResultFuture(b)).thenReturn(
+				new JSTestResultHandler.JSTestResultFuture());
+
+		service.detectHangs(6000L);
+		verify(handler, never()).fail(eq(b.toString()), anyString());
+		verify(handler).removeJsTestProgress(b);
+		assertTrue(jsTestWorkQueueHandler.isQueued(b));
+		assertFalse(jsTestWorkQueueHandler.isQueued(a));
+		assertTrue(jsTestWorkQueueHandler.getDispatchedUrls("0").isEmpty());
+		assertTrue(jsTestWorkQueueHandler.isRecycling("0"));
+	}
+
+	/**
+	 * Test that no more execution servers requesting urls are started than
+	 * there are urls to hand out.
+	 */
+	@Test
+	public void testBeforeTestsStartsOnlyThoseNeeded() throws Exception {
+		final JSTestResultServer jSTestResultServer = mock(JSTestResultServer.class);
+		when(jSTestResultServer.getJsTestResultHandler()).thenReturn(
+				new JSTestResultHandler());
+		when(jSTestResultServer.getJsTestWorkQueueHandler()).thenReturn(
+				new JSTestWorkQueueHandler());
+		final List<JSTestExecutionServer> jSTestExecutionServers = Arrays
+				.asList(mock(JSTestExecutionServer.class),
+						mock(JSTestExecutionServer.class),
+						mock(JSTestExecutionServer.class));
+		final JSTestSuiteRunnerService service = new JSTestSuiteRunnerService.Builder(
+				jSTestResultServer, jSTestExecutionServers).queuedUrls(
+				Arrays.asList(new URL("http://localhost:9080/a.html"), new URL(
+						"http://localhost:9080/b.html"))).build();
+
+		service.beforeTests();
+		verify(jSTestExecutionServers.get(0)).start();
+		verify(jSTestExecutionServers.get(1)).start();
+		verify(jSTestExecutionServers.get(2), never()).start();
+		service.afterTests();
+	}
 }
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.codehaus.jstestrunner.JSTestTimingStore.JSTestTiming;
+import org.junit.Test;
+
+public class JSTestTimeoutsTest {
+
+	/**
+	 * Test that patterns take precedence over the timings of passing urls,
+	 * which take precedence over the default.
+	 */
+	@Test
+	public void testGetTimeoutMillis() throws MalformedURLException {
+		Map<String, Long> patternTimeouts = new LinkedHashMap<String, Long>();
+		patternTimeouts.put("**/slow/*Test.html", 60000L);
+		JSTestTimingStore timingStore = new JSTestTimingStore(new File(
+				"timings.log"));
+		timingStore.record(new JSTestTiming(0L, "slow/ATest.html", 100L, -1L,
+				-1L, -1L, 1, 0));
+		timingStore.record(new JSTestTiming(0L, "BTest.html", 100L, -1L, -1L,
+				-1L, 1, 0));
+		timingStore.record(new JSTestTiming(0L, "CTest.html", 1000L, -1L, -1L,
+				-1L, 1, 0));
+		timingStore.record(new JSTestTiming(0L, "DTest.html", 100L, -1L, -1L,
+				-1L, 0, 1));
+		timingStore.record(new JSTestTiming(0L, "CTest.html?module=m", 2000L,
+				-1L, -1L, -1L, 1, 0));
+		JSTestTimeouts timeouts = new JSTestTimeouts(20000L, patternTimeouts,
+				timingStore, 3, 2000L);
+
+		assertEquals(60000L, timeouts.getTimeoutMillis(new URL(
+				"http://localhost:9080/slow/ATest.html")));
+		assertEquals(2000L, timeouts.getTimeoutMillis(new URL(
+				"http://localhost:9080/BTest.html")));
+		assertEquals(3000L, timeouts.getTimeoutMillis(new URL(
+				"http://localhost:9080/CTest.html")));
+		assertEquals(20000L, timeouts.getTimeoutMillis(new URL(
+				"http://localhost:9080/DTest.html")));
+		assertEquals(6000L, timeouts.getTimeoutMillis(new URL(
+				"http://localhost:9080/CTest.html?module=m")));
+		assertEquals(20000L, timeouts.getTimeoutMillis(new URL(
+				"http://localhost:9080/CTest.html?module=n")));
+		assertEquals(20000L, new JSTestTimeouts(20000L)
+				.getTimeoutMillis(new URL("http://localhost:9080/CTest.html")));
+	}
+}
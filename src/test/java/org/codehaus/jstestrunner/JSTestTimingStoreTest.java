@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.codehaus.jstestrunner.JSTestTimingStore.JSTestTiming;
+import org.junit.Test;
+
+public class JSTestTimingStoreTest {
+
+	private static JSTestTiming newTiming(final String path,
+			final long durationMillis, final int failures) {
+		return new JSTestTiming(1L, path, durationMillis, 2L, 3L, 4L, 5,
+				failures);
+	}
+
+	/**
+	 * Test that only the most recent durations of a url passing count.
+	 */
+	@Test
+	public void testGetPercentile() {
+		JSTestTimingStore store = new JSTestTimingStore(new File("timings.log"));
+		assertEquals(-1L, store.getPercentile("a.html", 99));
+
+		store.record(newTiming("a.html", 1000L, 0));
+		for (int i = 1; i <= JSTestTimingStore.MAX_TIMINGS; ++i) {
+			store.record(newTiming("a.html", i * 10L, 0));
+		}
+		assertEquals(JSTestTimingStore.MAX_TIMINGS * 10L,
+				store.getPercentile("a.html", 99));
+		assertEquals(JSTestTimingStore.MAX_TIMINGS * 5L,
+				store.getPercentile("a.html", 50));
+		assertEquals(10L, store.getPercentile("a.html", 0));
+
+		store.record(newTiming("b.html", 1000L, 1));
+		assertEquals(-1L, store.getPercentile("b.html", 99));
+	}
+
+	/**
+	 * Test that timings appended by several stores sharing a file all load,
+	 * skipping lines that cannot be understood.
+	 */
+	@Test
+	public void testFlushAndLoad() throws IOException {
+		File file = File.createTempFile("timings", ".log");
+		try {
+			JSTestTimingStore store = JSTestTimingStore.load(file);
+			JSTestTimingStore otherStore = JSTestTimingStore.load(file);
+			store.record(newTiming("a b.html", 20L, 0));
+			otherStore.record(newTiming("c.html", 30L, 1));
+			store.flush();
+			otherStore.flush();
+			store.record(newTiming("a b.html", 10L, 0));
+			store.flush();
+
+			OutputStream out = new FileOutputStream(file, true);
+			try {
+				out.write("1\tx\t2\tc.html\n1\t2\t3".getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+
+			JSTestTimingStore loadedStore = JSTestTimingStore.load(file);
+			assertEquals(20L, loadedStore.getPercentile("a b.html", 99));
+			assertEquals(10L, loadedStore.getPercentile("a b.html", 50));
+			List<JSTestTiming> timings = loadedStore.getTimings("c.html");
+			assertEquals(1, timings.size());
+			JSTestTiming timing = timings.get(0);
+			assertEquals(1L, timing.getTime());
+			assertEquals(30L, timing.getDurationMillis());
+			assertEquals(2L, timing.getLoadMillis());
+			assertEquals(3L, timing.getRunMillis());
+			assertEquals(4L, timing.getPostLatencyMillis());
+			assertEquals(5, timing.getPasses());
+			assertEquals(1, timing.getFailures());
+		} finally {
+			file.delete();
+		}
+
+		assertEquals(0, JSTestTimingStore.load(file).getTimings("c.html")
+				.size());
+	}
+
+	/**
+	 * Test that the file is compacted to the most recent timings of each url
+	 * once it has grown large.
+	 */
+	@Test
+	public void testCompaction() throws IOException {
+		File file = File.createTempFile("timings", ".log");
+		try {
+			long lengthBeforeCompaction = 0L;
+			for (int i = 0; i < JSTestTimingStore.MAX_TIMINGS * 5; ++i) {
+				JSTestTimingStore store = JSTestTimingStore.load(file);
+				store.record(newTiming("a.html", i, 0));
+				store.flush();
+				lengthBeforeCompaction = Math.max(lengthBeforeCompaction,
+						file.length());
+			}
+			assertTrue(file.length() < lengthBeforeCompaction);
+
+			List<JSTestTiming> timings = JSTestTimingStore.load(file)
+					.getTimings("a.html");
+			assertEquals(JSTestTimingStore.MAX_TIMINGS, timings.size());
+			assertEquals(JSTestTimingStore.MAX_TIMINGS * 5 - 1,
+					timings.get(timings.size() - 1).getDurationMillis());
+		} finally {
+			file.delete();
+		}
+	}
+}
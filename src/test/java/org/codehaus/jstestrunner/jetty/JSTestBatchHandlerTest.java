@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner.jetty;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.URL;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.junit.Test;
+
+public class JSTestBatchHandlerTest {
+
+	/**
+	 * Test that strings are quoted such that they cannot end the script
+	 * element that they appear within.
+	 */
+	@Test
+	public void testQuote() {
+		assertEquals("\"a\\\"b\\\\c\\u003c/script\\u003e\\u000a\"",
+				JSTestBatchHandler.quote("a\"b\\c</script>\n"));
+	}
+
+	/**
+	 * Test handling of a request for the composite document of a batch.
+	 * 
+	 * @throws ServletException
+	 *             if something goes wrong.
+	 * @throws IOException
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testHandleTestBatch() throws IOException, ServletException {
+
+		// Setup the test.
+		JSTestWorkQueueHandler queueHandler = new JSTestWorkQueueHandler();
+		queueHandler.setTimeoutMillis(new URL("http:/a.html"), 5000L);
+		JSTestBatchHandler handler = new JSTestBatchHandler(queueHandler);
+
+		Request baseRequest = mock(Request.class);
+
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getParameterValues("url")).thenReturn(
+				new String[] { "http:/a.html", "http:/b.html" });
+
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		StringWriter body = new StringWriter();
+		when(response.getWriter()).thenReturn(new PrintWriter(body));
+
+		// Test the handler.
+		handler.handle("/testBatch", baseRequest, request, response);
+
+		// Verify that things went to plan.
+		verify(response).setStatus(HttpServletResponse.SC_OK);
+		verify(response).setContentType("text/html");
+		verify(baseRequest).setHandled(true);
+		assertEquals("<!DOCTYPE html>\n<html>\n<head>\n<title>Test batch</title>\n</head>\n<body>\n"
+				+ "<script type=\"text/javascript\">\n"
+				+ "if (window.jstestrunnerRunBatch) {\n"
+				+ "window.jstestrunnerRunBatch([\n"
+				+ "\t{ testUrl : \"http:/a.html\", timeout : 5000 },\n"
+				+ "\t{ testUrl : \"http:/b.html\", timeout : 20000 }\n"
+				+ "]);\n}\n</script>\n</body>\n</html>\n", body.toString());
+	}
+
+	/**
+	 * Test handling of a request for a batch without any urls.
+	 * 
+	 * @throws ServletException
+	 *             if something goes wrong.
+	 * @throws IOException
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testHandleTestBatchEmpty() throws IOException, ServletException {
+
+		// Setup the test.
+		JSTestBatchHandler handler = new JSTestBatchHandler(
+				new JSTestWorkQueueHandler());
+
+		Request baseRequest = mock(Request.class);
+
+		HttpServletRequest request = mock(HttpServletRequest.class);
+
+		HttpServletResponse response = mock(HttpServletResponse.class);
+
+		// Test the handler.
+		handler.handle("/testBatch", baseRequest, request, response);
+
+		// Verify that things went to plan.
+		verify(response).sendError(HttpServletResponse.SC_BAD_REQUEST);
+		verify(response, never()).getWriter();
+		verify(baseRequest).setHandled(true);
+	}
+}
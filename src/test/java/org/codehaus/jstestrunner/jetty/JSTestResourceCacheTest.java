@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner.jetty;
+
+import static org.codehaus.jstestrunner.JSTestFiles.write;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.codehaus.jstestrunner.jetty.JSTestResourceCache.JSTestCachedResource;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JSTestResourceCacheTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private static byte[] gunzip(final byte[] content) throws IOException {
+		final InputStream in = new GZIPInputStream(new ByteArrayInputStream(
+				content));
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int c;
+		while ((c = in.read()) != -1) {
+			out.write(c);
+		}
+		return out.toByteArray();
+	}
+
+	private static String repeat(final String value, final int count) {
+		final StringBuilder repeated = new StringBuilder();
+		for (int i = 0; i < count; ++i) {
+			repeated.append(value);
+		}
+		return repeated.toString();
+	}
+
+	/**
+	 * Test that a file is held with its gzipped content and entity tag until it
+	 * is modified.
+	 */
+	@Test
+	public void testGet() throws IOException {
+		File file = new File(temporaryFolder.getRoot(), "lib.js");
+		String content = repeat("var a = 1;\n", 100);
+		write(file, content);
+		file.setLastModified(1000000L);
+		JSTestResourceCache cache = new JSTestResourceCache();
+
+		JSTestCachedResource resource = cache.get(file);
+		assertArrayEquals(content.getBytes("UTF-8"), resource.getContent());
+		assertNotNull(resource.getGzippedContent());
+		assertTrue(resource.getGzippedContent().length < content.length());
+		assertArrayEquals(resource.getContent(),
+				gunzip(resource.getGzippedContent()));
+		assertTrue(resource.getETag().matches("\"[0-9a-f]{32}\""));
+		assertEquals(resource.getETag().replace("\"", "") + "-gz",
+				resource.getGzippedETag().replace("\"", ""));
+		assertEquals(1000000L, resource.getLastModified());
+		assertSame(resource, cache.get(file));
+		assertEquals(resource.getContent().length
+				+ resource.getGzippedContent().length, cache.getBytes());
+
+		write(file, content + "var b = 2;\n");
+		file.setLastModified(2000000L);
+		JSTestCachedResource modifiedResource = cache.get(file);
+		assertEquals(content.length() + 11,
+				modifiedResource.getContent().length);
+		assertFalse(resource.getETag().equals(modifiedResource.getETag()));
+	}
+
+	/**
+	 * Test that files not made smaller by gzipping are held without a gzipped
+	 * variant, and that files too large are not held.
+	 */
+	@Test
+	public void testGetUncompressibleAndLarge() throws IOException {
+		File file = new File(temporaryFolder.getRoot(), "lib.js");
+		write(file, "a");
+		JSTestResourceCache cache = new JSTestResourceCache(1024L, 10L);
+		assertNull(cache.get(file).getGzippedContent());
+
+		write(file, "abcdefghijk");
+		assertNull(cache.get(file));
+	}
+
+	/**
+	 * Test that the files least recently served are evicted once the cache
+	 * holds too many bytes.
+	 */
+	@Test
+	public void testEviction() throws IOException {
+		File a = new File(temporaryFolder.getRoot(), "a.js");
+		File b = new File(temporaryFolder.getRoot(), "b.js");
+		File c = new File(temporaryFolder.getRoot(), "c.js");
+		write(a, "aaaa");
+		write(b, "bbbb");
+		write(c, "cccc");
+		JSTestResourceCache cache = new JSTestResourceCache(10L, 10L);
+
+		JSTestCachedResource aResource = cache.get(a);
+		JSTestCachedResource bResource = cache.get(b);
+		assertSame(aResource, cache.get(a));
+		cache.get(c);
+		assertEquals(8L, cache.getBytes());
+
+		// b was served least recently so was evicted.
+		assertSame(aResource, cache.get(a));
+		assertFalse(bResource == cache.get(b));
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner.jetty;
+
+import static org.codehaus.jstestrunner.JSTestFiles.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.codehaus.jstestrunner.jetty.JSTestResourceCache.JSTestCachedResource;
+import org.eclipse.jetty.server.Request;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JSTestResourceHandlerTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private static HttpServletRequest mockRequest(final String pathInfo) {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getMethod()).thenReturn("GET");
+		when(request.getServletPath()).thenReturn("");
+		when(request.getPathInfo()).thenReturn(pathInfo);
+		when(request.getDateHeader("If-Modified-Since")).thenReturn(-1L);
+		return request;
+	}
+
+	private static HttpServletResponse mockResponse(
+			final ByteArrayOutputStream body) throws IOException {
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+			@Override
+			public void write(final int b) {
+				body.write(b);
+			}
+		});
+		return response;
+	}
+
+	/**
+	 * Test that a file is served from the cache, gzipped when accepted, and
+	 * with no content when the browser holds it already.
+	 * 
+	 * @throws ServletException
+	 *             if something goes wrong.
+	 * @throws IOException
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testHandle() throws IOException, ServletException {
+
+		// Setup the test.
+		File folder = temporaryFolder.getRoot();
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 100; ++i) {
+			content.append("var a = 1;\n");
+		}
+		File file = write(new File(folder, "lib.js"), content.toString());
+		JSTestResourceCache cache = new JSTestResourceCache();
+		JSTestResourceHandler handler = new JSTestResourceHandler(cache,
+				new JSTestResourceIndex(new String[] { folder
+						.getAbsolutePath() }));
+		JSTestCachedResource resource = cache.get(file);
+
+		// Test the handler.
+		Request baseRequest = mock(Request.class);
+		HttpServletRequest request = mockRequest("/lib.js");
+		when(request.getHeader("Accept-Encoding")).thenReturn(
+				"gzip, deflate");
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		HttpServletResponse response = mockResponse(body);
+		handler.handle("/lib.js", baseRequest, request, response);
+
+		// Verify that things went to plan.
+		verify(baseRequest).setHandled(true);
+		verify(response).setStatus(HttpServletResponse.SC_OK);
+		verify(response).setContentType("application/x-javascript");
+		verify(response).setHeader("ETag", resource.getGzippedETag());
+		verify(response).setHeader("Cache-Control", "no-cache");
+		verify(response).setHeader("Content-Encoding", "gzip");
+		assertEquals(resource.getGzippedContent().length, body.size());
+
+		// The browser holds the gzipped file already.
+		request = mockRequest("/lib.js");
+		when(request.getHeader("Accept-Encoding")).thenReturn("gzip");
+		when(request.getHeader("If-None-Match")).thenReturn(
+				resource.getGzippedETag());
+		body = new ByteArrayOutputStream();
+		response = mockResponse(body);
+		handler.handle("/lib.js", mock(Request.class), request, response);
+		verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		verify(response, never()).getOutputStream();
+
+		// The browser does not accept gzip, so the gzipped file that it
+		// holds will not do.
+		request = mockRequest("/lib.js");
+		when(request.getHeader("If-None-Match")).thenReturn(
+				resource.getGzippedETag());
+		body = new ByteArrayOutputStream();
+		response = mockResponse(body);
+		handler.handle("/lib.js", mock(Request.class), request, response);
+		verify(response).setHeader("ETag", resource.getETag());
+		verify(response, never()).setHeader("Content-Encoding", "gzip");
+		assertEquals(content.toString(), body.toString("UTF-8"));
+
+		// Files that do not exist are left to others.
+		baseRequest = mock(Request.class);
+		handler.handle("/missing.js", baseRequest,
+				mockRequest("/missing.js"), mock(HttpServletResponse.class));
+		verify(baseRequest, never()).setHandled(true);
+	}
+
+	/**
+	 * Test that gzip is accepted unless it is given no quality.
+	 */
+	@Test
+	public void testAcceptsGzip() {
+		assertTrue(JSTestResourceHandler.acceptsGzip("gzip"));
+		assertTrue(JSTestResourceHandler.acceptsGzip("deflate, GZIP;q=0.5"));
+		assertFalse(JSTestResourceHandler.acceptsGzip("gzip;q=0"));
+		assertFalse(JSTestResourceHandler.acceptsGzip("deflate"));
+		assertFalse(JSTestResourceHandler.acceptsGzip(null));
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner.jetty;
+
+import static org.codehaus.jstestrunner.JSTestFiles.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JSTestResourceIndexTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	/**
+	 * Test that paths are found within the first resource base having them,
+	 * and that files added or removed since indexing are accounted for.
+	 */
+	@Test
+	public void testFind() throws IOException {
+		File folder = temporaryFolder.getRoot();
+		File classes = new File(folder, "classes");
+		File testClasses = new File(folder, "test-classes");
+		write(new File(classes, "js/a.js"), "a");
+		write(new File(testClasses, "js/a.js"), "shadowed");
+		write(new File(testClasses, "a/ATest.html"), "<html></html>");
+		JSTestResourceIndex index = new JSTestResourceIndex(new String[] {
+				classes.getPath(), testClasses.getPath() });
+
+		assertEquals(new File(classes, "js/a.js"), index.find("/js/a.js"));
+		assertEquals(new File(testClasses, "a/ATest.html"),
+				index.find("/a/ATest.html"));
+		assertEquals(2, index.size());
+		assertEquals(new File(classes, "js"), index.find("/js/"));
+		assertNull(index.findFile("/js/"));
+		assertNull(index.find("/js/b.js"));
+		assertNull(index.find("/../classes/js/a.js"));
+		assertNull(index.find("js/a.js"));
+
+		// A file served by a later resource base than a folder.
+		new File(classes, "b").mkdirs();
+		write(new File(testClasses, "b"), "b");
+		assertEquals(new File(testClasses, "b"), index.find("/b"));
+		assertEquals(new File(testClasses, "b"), index.findFile("/b"));
+
+		// Files added and removed since.
+		write(new File(testClasses, "js/b.js"), "b");
+		assertEquals(new File(testClasses, "js/b.js"), index.find("/js/b.js"));
+		new File(classes, "js/a.js").delete();
+		assertEquals(new File(testClasses, "js/a.js"), index.find("/js/a.js"));
+	}
+}
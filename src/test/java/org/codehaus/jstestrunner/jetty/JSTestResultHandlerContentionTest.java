@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner.jetty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.codehaus.jstestrunner.TestResultProducer;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestResult;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestResultFuture;
+import org.eclipse.jetty.server.Request;
+import org.junit.Test;
+
+/**
+ * Checks how results are delivered to many concurrent waiters.
+ */
+public class JSTestResultHandlerContentionTest {
+
+	private static final int WAITERS = 64;
+
+	private final TestResultProducer testResultProducer = new TestResultProducer() {
+		public boolean isAvailable() {
+			return true;
+		}
+	};
+
+	/**
+	 * Form a request posting a result for a url.
+	 */
+	private static HttpServletRequest mockPost(final String url)
+			throws IOException {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getMethod()).thenReturn("POST");
+		when(request.getContentType()).thenReturn("application/json");
+		String data = "{\"testUrl\":\"" + url
+				+ "\",\"failures\":0,\"passes\":1,\"message\":\"ok\"}";
+		when(request.getReader()).thenReturn(
+				new BufferedReader(new StringReader(data)));
+		return request;
+	}
+
+	/**
+	 * Post a result for a url.
+	 */
+	private static void post(final JSTestResultHandler handler,
+			final HttpServletRequest request) throws IOException,
+			ServletException {
+		handler.handle("/testResults", mock(Request.class), request,
+				mock(HttpServletResponse.class));
+	}
+
+	/**
+	 * Each posted result should complete just the handle of its own url, so
+	 * that only the one waiter for that url returns and the others are left
+	 * waiting.
+	 * 
+	 * @throws Exception
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testOneWaiterPerResult() throws Exception {
+		final JSTestResultHandler handler = new JSTestResultHandler();
+		final JSTestResult[] results = new JSTestResult[WAITERS];
+		final AtomicInteger returns = new AtomicInteger();
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < WAITERS; ++i) {
+			final URL url = new URL("http:/" + i + ".html");
+			final int waiter = i;
+			final Thread thread = new Thread(new Runnable() {
+				public void run() {
+					results[waiter] = handler.getJsTestResult(url,
+							testResultProducer, 30L, TimeUnit.SECONDS);
+					returns.incrementAndGet();
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+
+		// Deliver the results in reverse so that no waiter benefits from its
+		// position.
+		for (int i = WAITERS - 1; i >= 0; --i) {
+			post(handler, mockPost("http:/" + i + ".html"));
+			threads.get(i).join(30000L);
+			assertFalse(threads.get(i).isAlive());
+			assertEquals(1, results[i].getPasses());
+			assertEquals(WAITERS - i, returns.get());
+			for (int j = 0; j < i; ++j) {
+				assertFalse(handler.getJsTestResultFuture(
+						new URL("http:/" + j + ".html")).isDone());
+			}
+		}
+	}
+
+	/**
+	 * Listeners on a result's completion handle are run once the result
+	 * arrives, and straight away when added afterwards.
+	 * 
+	 * @throws Exception
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testCompletionListener() throws Exception {
+		final JSTestResultHandler handler = new JSTestResultHandler();
+		final JSTestResultFuture future = handler
+				.getJsTestResultFuture(new URL("http:/a.html"));
+		final AtomicInteger completions = new AtomicInteger();
+		final Runnable listener = new Runnable() {
+			public void run() {
+				completions.incrementAndGet();
+			}
+		};
+
+		future.addCompletionListener(listener);
+		assertEquals(0, completions.get());
+
+		post(handler, mockPost("http:/a.html"));
+		assertTrue(future.isDone());
+		assertEquals(1, future.get().getPasses());
+		assertEquals(1, completions.get());
+
+		future.addCompletionListener(listener);
+		assertEquals(2, completions.get());
+	}
+}
@@ -20,7 +20,11 @@
 package org.codehaus.jstestrunner.jetty;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -30,6 +34,9 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.StringReader;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
@@ -37,7 +44,11 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.codehaus.jstestrunner.TestResultProducer;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestCaseListener;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestCaseResult;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestProgress;
 import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestResult;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestResultListener;
 import org.eclipse.jetty.server.Request;
 import org.junit.Test;
 
@@ -189,4 +200,271 @@ public class JSTestResultHandlerTest {
 				testResultProducer, 1L, TimeUnit.SECONDS);
 		assertNull(result);
 	}
+
+	/**
+	 * Test that listeners hear of each result once as it arrives.
+	 * 
+	 * @throws ServletException
+	 *             if something goes wrong.
+	 * @throws IOException
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testHandleNotifiesListeners() throws IOException,
+			ServletException {
+
+		// Setup the test.
+		JSTestResultHandler handler = new JSTestResultHandler();
+		final List<String> receivedUrls = new ArrayList<String>();
+		handler.addJsTestResultListener(new JSTestResultListener() {
+			public void jsTestResultReceived(String testUrl,
+					JSTestResult jsTestResult) {
+				receivedUrls.add(testUrl);
+			}
+		});
+
+		String target = "/testResults";
+		String data = "{\"testUrl\":\"http:/a.html\",\"failures\":0,\"passes\":1,\"message\":\"some message\"}";
+
+		// Test the handler with the same result twice.
+		for (int i = 0; i < 2; ++i) {
+			HttpServletRequest request = mock(HttpServletRequest.class);
+			when(request.getMethod()).thenReturn("POST");
+			when(request.getContentType()).thenReturn("application/json");
+			when(request.getReader()).thenReturn(
+					new BufferedReader(new StringReader(data)));
+			handler.handle(target, mock(Request.class), request,
+					mock(HttpServletResponse.class));
+		}
+
+		// Verify that things went to plan.
+		assertEquals(1, receivedUrls.size());
+		assertEquals("http:/a.html", receivedUrls.get(0));
+	}
+
+	/**
+	 * Test handling of a message that carries the results of its tests.
+	 * 
+	 * @throws ServletException
+	 *             if something goes wrong.
+	 * @throws IOException
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testHandleTestCases() throws IOException, ServletException {
+
+		// Setup the test.
+		JSTestResultHandler handler = new JSTestResultHandler();
+
+		String target = "/testResults";
+
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getMethod()).thenReturn("POST");
+		when(request.getContentType()).thenReturn("application/json");
+		String data = "{\"testUrl\":\"http:/a.html\",\"failures\":1,\"passes\":2,\"message\":\"some message\","
+				+ "\"tests\":[{\"moduleName\":\"m\",\"testName\":\"t1\",\"failures\":0,\"passes\":2,\"duration\":5,\"message\":\"\"},"
+				+ "{\"moduleName\":null,\"testName\":\"t2\",\"failures\":1,\"passes\":0,\"duration\":7,\"message\":\"boom\",\"extra\":{\"a\":[1]}}],"
+				+ "\"other\":[1,2],\"loadTime\":3,\"runTime\":4,\"postTime\":"
+				+ System.currentTimeMillis() + "}";
+		when(request.getReader()).thenReturn(
+				new BufferedReader(new StringReader(data)));
+
+		HttpServletResponse response = mock(HttpServletResponse.class);
+
+		// Test the handler.
+		handler.handle(target, mock(Request.class), request, response);
+
+		// Verify that things went to plan.
+		verify(response).setStatus(HttpServletResponse.SC_NO_CONTENT);
+
+		JSTestResult result = handler.getJsTestResult(new URL("http:/a.html"),
+				testResultProducer, 30L, TimeUnit.SECONDS);
+		assertEquals(1, result.getFailures());
+		assertEquals(2, result.getTestCaseResults().size());
+		assertEquals(3L, result.getLoadMillis());
+		assertEquals(4L, result.getRunMillis());
+		assertTrue(result.getPostLatencyMillis() >= 0L);
+
+		JSTestCaseResult first = result.getTestCaseResults().get(0);
+		assertEquals("[m] t1", first.getName());
+		assertEquals(2, first.getPasses());
+		assertEquals(5L, first.getDuration());
+
+		JSTestCaseResult second = result.getTestCaseResults().get(1);
+		assertNull(second.getModuleName());
+		assertEquals("t2", second.getName());
+		assertEquals(1, second.getFailures());
+		assertEquals("boom", second.getMessage());
+	}
+
+	/**
+	 * Test that listeners hear of the progress of individual tests.
+	 * 
+	 * @throws ServletException
+	 *             if something goes wrong.
+	 * @throws IOException
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testHandleTestEvents() throws IOException, ServletException {
+
+		// Setup the test.
+		JSTestResultHandler handler = new JSTestResultHandler();
+		final List<String> events = new ArrayList<String>();
+		handler.addJsTestCaseListener(new JSTestCaseListener() {
+			public void jsTestCaseStarted(String testUrl, String moduleName,
+					String testName) {
+				events.add("started " + testUrl + " "
+						+ JSTestCaseResult.getName(moduleName, testName));
+			}
+
+			public void jsTestCaseFinished(String testUrl,
+					JSTestCaseResult jsTestCaseResult) {
+				events.add("finished " + testUrl + " "
+						+ jsTestCaseResult.getName() + " "
+						+ jsTestCaseResult.getDuration());
+			}
+		});
+
+		String target = "/testEvents";
+		String[] data = {
+				"{\"testUrl\":\"http:/a.html\",\"event\":\"testStart\",\"moduleName\":\"m\",\"testName\":\"t\"}",
+				"{\"testUrl\":\"http:/a.html\",\"event\":\"testDone\",\"moduleName\":\"m\",\"testName\":\"t\",\"failures\":0,\"passes\":1,\"duration\":12,\"message\":\"\"}",
+				"{\"testUrl\":\"http:/a.html\",\"event\":\"testDone\",\"testName\":\"t\"}" };
+		int[] statuses = { HttpServletResponse.SC_NO_CONTENT,
+				HttpServletResponse.SC_NO_CONTENT,
+				HttpServletResponse.SC_BAD_REQUEST };
+
+		for (int i = 0; i < data.length; ++i) {
+			Request baseRequest = mock(Request.class);
+			HttpServletRequest request = mock(HttpServletRequest.class);
+			when(request.getMethod()).thenReturn("POST");
+			when(request.getContentType()).thenReturn("application/json");
+			when(request.getReader()).thenReturn(
+					new BufferedReader(new StringReader(data[i])));
+			HttpServletResponse response = mock(HttpServletResponse.class);
+
+			handler.handle(target, baseRequest, request, response);
+
+			verify(response).setStatus(statuses[i]);
+			verify(baseRequest).setHandled(true);
+		}
+
+		// Verify that things went to plan.
+		assertEquals(2, events.size());
+		assertEquals("started http:/a.html [m] t", events.get(0));
+		assertEquals("finished http:/a.html [m] t 12", events.get(1));
+	}
+
+	/**
+	 * Test that every heartbeat is noted, even one telling of no new progress,
+	 * and that bad heartbeats are not.
+	 */
+	@Test
+	public void testHandleTestHeartbeats() throws IOException,
+			ServletException {
+
+		// Setup the test.
+		JSTestResultHandler handler = new JSTestResultHandler();
+
+		String target = "/testHeartbeats";
+		String[] data = {
+				"{\"testUrl\":\"http:/a.html\",\"moduleName\":\"m\",\"testName\":\"t\",\"assertions\":1}",
+				"{\"testUrl\":\"http:/a.html\",\"moduleName\":\"m\",\"testName\":\"t\",\"assertions\":1}",
+				"{\"testUrl\":\"http:/a.html\",\"moduleName\":\"m\",\"testName\":\"t\",\"assertions\":2}",
+				"{\"moduleName\":\"m\",\"testName\":\"t\",\"assertions\":3}" };
+		int[] statuses = { HttpServletResponse.SC_NO_CONTENT,
+				HttpServletResponse.SC_NO_CONTENT,
+				HttpServletResponse.SC_NO_CONTENT,
+				HttpServletResponse.SC_BAD_REQUEST };
+
+		JSTestProgress[] progresses = new JSTestProgress[data.length];
+		for (int i = 0; i < data.length; ++i) {
+			Request baseRequest = mock(Request.class);
+			HttpServletRequest request = mock(HttpServletRequest.class);
+			when(request.getMethod()).thenReturn("POST");
+			when(request.getContentType()).thenReturn("application/json");
+			when(request.getReader()).thenReturn(
+					new BufferedReader(new StringReader(data[i])));
+			HttpServletResponse response = mock(HttpServletResponse.class);
+
+			handler.handle(target, baseRequest, request, response);
+
+			verify(response).setStatus(statuses[i]);
+			verify(baseRequest).setHandled(true);
+			progresses[i] = handler.getJsTestProgress("http:/a.html");
+		}
+
+		// Verify that things went to plan.
+		assertNotSame(progresses[0], progresses[1]);
+		assertEquals(1, progresses[1].getAssertions());
+		assertNotSame(progresses[1], progresses[2]);
+		assertSame(progresses[2], progresses[3]);
+		assertEquals("t", progresses[2].getTestName());
+		assertEquals(2, progresses[2].getAssertions());
+
+		handler.removeJsTestResult(new URL("http:/a.html"));
+		assertNull(handler.getJsTestProgress("http:/a.html"));
+	}
+
+	/**
+	 * Test that the results of the parts of a split url are merged into the
+	 * url's once each part has one, and that the progress of the tests within
+	 * the parts is passed on as the url's.
+	 */
+	@Test
+	public void testSplit() throws IOException, ServletException {
+
+		// Setup the test.
+		JSTestResultHandler handler = new JSTestResultHandler();
+		final List<String> events = new ArrayList<String>();
+		handler.addJsTestCaseListener(new JSTestCaseListener() {
+			public void jsTestCaseStarted(String testUrl, String moduleName,
+					String testName) {
+				events.add("started " + testUrl + " "
+						+ JSTestCaseResult.getName(moduleName, testName));
+			}
+
+			public void jsTestCaseFinished(String testUrl,
+					JSTestCaseResult jsTestCaseResult) {
+			}
+		});
+		URL url = new URL("http:/a.html");
+		URL moduleA = new URL("http:/a.html?module=a");
+		URL moduleB = new URL("http:/a.html?module=b");
+		handler.split(url, Arrays.asList(moduleA, moduleB));
+		assertEquals(Arrays.asList(moduleA, moduleB), handler.getPartUrls(url));
+
+		Request baseRequest = mock(Request.class);
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getMethod()).thenReturn("POST");
+		when(request.getContentType()).thenReturn("application/json");
+		when(request.getReader()).thenReturn(
+				new BufferedReader(new StringReader(
+						"{\"testUrl\":\"http:/a.html?module=a\",\"event\":\"testStart\",\"moduleName\":\"a\",\"testName\":\"t\"}")));
+		handler.handle("/testEvents", baseRequest, request,
+				mock(HttpServletResponse.class));
+		assertEquals(Arrays.asList("started http:/a.html [a] t"), events);
+
+		// Test the merging of results.
+		assertTrue(handler.complete(moduleB.toString(), new JSTestResult.Builder(1, 2,
+				"[b] t: failed: 1 passed: 2\n").testCaseResults(
+				Arrays.asList(new JSTestCaseResult("b", "t", 1, 2, 5L, "")))
+				.loadMillis(10L).runMillis(20L).postLatencyMillis(3L).build()));
+		assertFalse(handler.getJsTestResultFuture(url).isDone());
+		assertTrue(handler.fail(moduleA.toString(), "Timed out"));
+
+		JSTestResult result = handler.getJsTestResult(url, testResultProducer,
+				0L, TimeUnit.MICROSECONDS);
+		assertEquals(2, result.getFailures());
+		assertEquals(2, result.getPasses());
+		assertEquals("module=a: Timed out\n[b] t: failed: 1 passed: 2\n",
+				result.getMessage());
+		assertEquals(1, result.getTestCaseResults().size());
+		assertEquals(-1L, result.getRunMillis());
+
+		handler.removeJsTestResult(url);
+		assertTrue(handler.getPartUrls(url).isEmpty());
+		assertFalse(handler.getJsTestResultFuture(moduleA).isDone());
+	}
 }
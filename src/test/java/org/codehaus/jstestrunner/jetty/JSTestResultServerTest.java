@@ -0,0 +1,248 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner.jetty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Arrays;
+
+import org.eclipse.jetty.server.Server;
+import org.junit.Test;
+
+public class JSTestResultServerTest {
+
+	private final String[] resourceBases = new String[] { "target"
+			+ File.separator + "test-classes" };
+
+	/**
+	 * Test that suites share the web server of those requiring the same
+	 * configuration, each with a queue and results of its own.
+	 */
+	@Test
+	public void testGetSharedInstance() {
+		final JSTestResultServer server = JSTestResultServer.getSharedInstance(
+				0, "/", resourceBases);
+		final JSTestResultServer otherSuiteServer = JSTestResultServer
+				.getSharedInstance(0, "/", resourceBases);
+		assertSame(server.getWebServer(), otherSuiteServer.getWebServer());
+		assertNotSame(server.getJsTestWorkQueueHandler(),
+				otherSuiteServer.getJsTestWorkQueueHandler());
+		assertNotSame(server.getJsTestResultHandler(),
+				otherSuiteServer.getJsTestResultHandler());
+		assertFalse(server.getSuite().equals(otherSuiteServer.getSuite()));
+		assertNotSame(server.getWebServer(), JSTestResultServer
+				.getSharedInstance(0, "/other", resourceBases).getWebServer());
+	}
+
+	/**
+	 * Test that suites sharing a web server neither take each other's urls nor
+	 * see each other's results, and that the web server is no longer shared
+	 * once the last of them has stopped it.
+	 * 
+	 * @throws Exception
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testSharedSuites() throws Exception {
+		final JSTestResultServer server = JSTestResultServer.getSharedInstance(
+				0, "/suites", resourceBases);
+		final JSTestResultServer otherSuiteServer = JSTestResultServer
+				.getSharedInstance(0, "/suites", resourceBases);
+		final int port = server.bind();
+		assertEquals(port, otherSuiteServer.bind());
+
+		final URL url = new URL("http", "localhost", port, "/suites/a.html");
+		server.getJsTestWorkQueueHandler().submit(Arrays.asList(url));
+		otherSuiteServer.getJsTestWorkQueueHandler().submit(
+				Arrays.asList(url));
+
+		server.start();
+		otherSuiteServer.start();
+		try {
+			final String nextTest = get(server.getNextTestUrl("localhost",
+					server.getJsTestWorkQueueHandler().newWorker()));
+			assertEquals(url + "?suite=" + server.getSuite(),
+					nextTest.substring(0, nextTest.indexOf('\n')));
+			assertTrue(otherSuiteServer.getJsTestWorkQueueHandler().isQueued(
+					url));
+
+			post(new URL("http", "localhost", port, "/suites/testResults"),
+					"{\"testUrl\":\"" + url + "?suite=" + server.getSuite()
+							+ "\",\"failures\":0,\"passes\":1,"
+							+ "\"message\":\"\"}");
+			assertTrue(server.getJsTestResultHandler()
+					.getJsTestResultFuture(url).isDone());
+			assertFalse(otherSuiteServer.getJsTestResultHandler()
+					.getJsTestResultFuture(url).isDone());
+
+			assertTrue(server.getJsTestWorkQueueHandler().takeAll().isEmpty());
+			assertEquals(Arrays.asList(url.toString()), otherSuiteServer
+					.getJsTestWorkQueueHandler().takeAll());
+		} finally {
+			server.stop();
+			otherSuiteServer.stop();
+		}
+		assertFalse(server.getWebServer().isRunning());
+		assertNotSame(server.getWebServer(), JSTestResultServer
+				.getSharedInstance(0, "/suites", resourceBases).getWebServer());
+	}
+
+	/**
+	 * Test that a web server is held by each suite that has got it rather than
+	 * by those that have started it, so that a suite getting it once another
+	 * suite has stopped shares the same web server.
+	 * 
+	 * @throws Exception
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testSharedUntilLastSuiteStops() throws Exception {
+		final JSTestResultServer server = JSTestResultServer.getSharedInstance(
+				0, "/holders", resourceBases);
+		final JSTestResultServer otherSuiteServer = JSTestResultServer
+				.getSharedInstance(0, "/holders", resourceBases);
+		final int port = server.bind();
+		server.start();
+		otherSuiteServer.start();
+		server.stop();
+		assertTrue(server.getWebServer().isRunning());
+
+		final JSTestResultServer laterSuiteServer = JSTestResultServer
+				.getSharedInstance(0, "/holders", resourceBases);
+		assertSame(server.getWebServer(), laterSuiteServer.getWebServer());
+		assertEquals(Integer.valueOf(port), laterSuiteServer.getPort());
+		laterSuiteServer.start();
+		otherSuiteServer.stop();
+		assertTrue(server.getWebServer().isRunning());
+		laterSuiteServer.stop();
+		assertFalse(server.getWebServer().isRunning());
+
+		assertNotSame(server.getWebServer(), JSTestResultServer
+				.getSharedInstance(0, "/holders", resourceBases).getWebServer());
+	}
+
+	/**
+	 * Test that a port bound by a suite that never starts its server is closed
+	 * once the suite stops it.
+	 * 
+	 * @throws Exception
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testStopClosesUnstartedPort() throws Exception {
+		final JSTestResultServer server = JSTestResultServer.getSharedInstance(
+				0, "/unstarted", resourceBases);
+		final int port = server.bind();
+		server.stop();
+
+		final ServerSocket serverSocket = new ServerSocket(port);
+		serverSocket.close();
+	}
+
+	private static String get(final URL url) throws IOException {
+		final HttpURLConnection connection = (HttpURLConnection) url
+				.openConnection();
+		try {
+			final InputStream in = connection.getInputStream();
+			final StringBuilder content = new StringBuilder();
+			int c;
+			while ((c = in.read()) != -1) {
+				content.append((char) c);
+			}
+			return content.toString();
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private static void post(final URL url, final String json)
+			throws IOException {
+		final HttpURLConnection connection = (HttpURLConnection) url
+				.openConnection();
+		try {
+			connection.setDoOutput(true);
+			connection.setRequestMethod("POST");
+			connection.setRequestProperty("Content-Type", "application/json");
+			final OutputStream out = connection.getOutputStream();
+			out.write(json.getBytes("UTF-8"));
+			out.close();
+			assertEquals(HttpURLConnection.HTTP_NO_CONTENT,
+					connection.getResponseCode());
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Test that a server bound to any free port keeps that port and runs until
+	 * each start has been matched by a stop.
+	 * 
+	 * @throws Exception
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testBindAndShare() throws Exception {
+		final JSTestResultServer server = new JSTestResultServer(
+				new Server(), new JSTestResultHandler(),
+				0, "/", resourceBases);
+		final int port = server.bind();
+		assertTrue(port > 0);
+		assertEquals(Integer.valueOf(port), server.getPort());
+		assertEquals(new URL("http", "localhost", port, "/nextTest?worker=0"),
+				server.getNextTestUrl("localhost", "0"));
+		assertEquals(new URL("http", "localhost", port,
+				"/nextTest?worker=0&pages=4"), server.getNextTestUrl(
+				"localhost", "0", 4));
+		assertEquals(
+				new URL("http://localhost:" + port
+						+ "/testBatch?url=http%3A%2F%2Flocalhost%3A" + port
+						+ "%2Fa.html&url=http%3A%2F%2Flocalhost%3A" + port
+						+ "%2Fb.html%3Fx%3D1"),
+				server.getBatchUrl(Arrays.asList(new URL("http", "localhost",
+						port, "/a.html"), new URL("http", "localhost", port,
+						"/b.html?x=1"))));
+
+		server.start();
+		server.start();
+		server.stop();
+		assertTrue(server.getWebServer().isRunning());
+		server.stop();
+		assertFalse(server.getWebServer().isRunning());
+
+		server.start();
+		try {
+			assertEquals(Integer.valueOf(port), server.getPort());
+			assertTrue(server.getWebServer().isRunning());
+		} finally {
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner.jetty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.junit.Test;
+
+public class JSTestWorkQueueHandlerTest {
+
+	/**
+	 * Test that urls are handed out in the order they were submitted.
+	 * 
+	 * @throws IOException
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testTakeNext() throws IOException {
+		JSTestWorkQueueHandler handler = new JSTestWorkQueueHandler();
+		List<URL> urls = new ArrayList<URL>();
+		urls.add(new URL("http:/a.html"));
+		urls.add(new URL("http:/b.html"));
+		handler.submit(urls);
+
+		assertTrue(handler.isQueued(new URL("http:/a.html")));
+		assertEquals(0L, handler.getDispatchTime(new URL("http:/a.html")));
+
+		assertEquals("http:/a.html", handler.takeNext("0"));
+		assertFalse(handler.isQueued(new URL("http:/a.html")));
+		assertTrue(handler.getDispatchTime(new URL("http:/a.html")) > 0L);
+		assertEquals("http:/a.html", handler.getDispatchedUrl("0"));
+
+		assertEquals("http:/b.html", handler.takeNext("1"));
+		assertNull(handler.takeNext("0"));
+	}
+
+	/**
+	 * Test that urls carry the suite of a shared queue as they are handed out,
+	 * and that the suite is found in and taken out of them again.
+	 */
+	@Test
+	public void testSuite() {
+		JSTestWorkQueueHandler handler = new JSTestWorkQueueHandler("2");
+		assertEquals("http:/a.html?suite=2", handler.addSuite("http:/a.html"));
+		assertEquals("http:/a.html?module=m&suite=2",
+				handler.addSuite("http:/a.html?module=m"));
+		assertEquals("http:/a.html",
+				new JSTestWorkQueueHandler().addSuite("http:/a.html"));
+
+		assertEquals("2",
+				JSTestWorkQueueHandler.getUrlSuite("http:/a.html?module=m&suite=2"));
+		assertEquals("http:/a.html?module=m", JSTestWorkQueueHandler
+				.removeUrlSuite("http:/a.html?module=m&suite=2"));
+		assertNull(JSTestWorkQueueHandler.getUrlSuite("http:/a.html"));
+		assertNull(JSTestWorkQueueHandler
+				.getUrlSuite("http:/a.html?suite=2&module=m"));
+		assertNull(JSTestWorkQueueHandler.getUrlSuite("http:/mysuite=2"));
+		assertEquals("http:/a.html?suite=2&module=m", JSTestWorkQueueHandler
+				.removeUrlSuite("http:/a.html?suite=2&module=m"));
+	}
+
+	/**
+	 * Test that a batch is handed out in place of its urls, and that a url
+	 * submitted again is taken out of its batch, either by itself or within
+	 * another batch.
+	 * 
+	 * @throws IOException
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testSubmitBatch() throws IOException {
+		JSTestWorkQueueHandler handler = new JSTestWorkQueueHandler();
+		URL a = new URL("http:/a.html");
+		URL b = new URL("http:/b.html");
+		URL batch = new URL("http:/testBatch?url=a&url=b");
+		handler.submitBatch(batch, Arrays.asList(a, b));
+
+		assertTrue(handler.isQueued(batch));
+		assertFalse(handler.isQueued(a));
+		assertEquals(batch, handler.getBatchUrl(a));
+		assertEquals(Arrays.asList(a, b), handler.getBatchedUrls(batch));
+
+		assertEquals(batch.toString(), handler.takeNext("0"));
+		assertNull(handler.takeNext("0"));
+
+		handler.submit(Collections.singletonList(a));
+		assertNull(handler.getBatchUrl(a));
+		assertEquals(Collections.singletonList(b), handler.getBatchedUrls(batch));
+		assertEquals("http:/a.html", handler.takeNext("0"));
+
+		URL otherBatch = new URL("http:/testBatch?url=b");
+		handler.submitBatch(otherBatch, Collections.singletonList(b));
+		assertEquals(otherBatch, handler.getBatchUrl(b));
+		assertTrue(handler.getBatchedUrls(batch).isEmpty());
+		assertEquals(Collections.singletonList(b),
+				handler.getBatchedUrls(otherBatch));
+	}
+
+	/**
+	 * Test handling of a request for the next test.
+	 * 
+	 * @throws ServletException
+	 *             if something goes wrong.
+	 * @throws IOException
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testHandleNextTest() throws IOException, ServletException {
+
+		// Setup the test.
+		JSTestWorkQueueHandler handler = new JSTestWorkQueueHandler();
+		List<URL> urls = new ArrayList<URL>();
+		urls.add(new URL("http:/a.html"));
+		urls.add(new URL("http:/b.html"));
+		handler.submit(urls);
+		handler.setTimeoutMillis(urls.get(0), 5000L);
+
+		Request baseRequest = mock(Request.class);
+
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getParameter("worker")).thenReturn("0");
+
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		StringWriter body = new StringWriter();
+		when(response.getWriter()).thenReturn(new PrintWriter(body));
+
+		// Test the handler.
+		handler.handle("/nextTest", baseRequest, request, response);
+
+		// Verify that things went to plan.
+		verify(response).setStatus(HttpServletResponse.SC_OK);
+		verify(response).setContentType("text/plain");
+		verify(baseRequest).setHandled(true);
+		assertEquals("http:/a.html\n5000", body.toString());
+		assertEquals("http:/a.html", handler.getDispatchedUrl("0"));
+		assertEquals(JSTestWorkQueueHandler.DEFAULT_TIMEOUT_MILLIS,
+				handler.getTimeoutMillis(urls.get(1)));
+	}
+
+	/**
+	 * Test that the url handed out to each page of a worker is kept.
+	 * 
+	 * @throws ServletException
+	 *             if something goes wrong.
+	 * @throws IOException
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testHandleNextTestPages() throws IOException, ServletException {
+
+		// Setup the test.
+		JSTestWorkQueueHandler handler = new JSTestWorkQueueHandler();
+		List<URL> urls = new ArrayList<URL>();
+		urls.add(new URL("http:/a.html"));
+		urls.add(new URL("http:/b.html"));
+		urls.add(new URL("http:/c.html"));
+		handler.submit(urls);
+
+		// Test the handler.
+		for (String page : new String[] { "0", "1" }) {
+			HttpServletRequest request = mock(HttpServletRequest.class);
+			when(request.getParameter("worker")).thenReturn("1");
+			when(request.getParameter("page")).thenReturn(page);
+			HttpServletResponse response = mock(HttpServletResponse.class);
+			when(response.getWriter()).thenReturn(
+					new PrintWriter(new StringWriter()));
+			handler.handle("/nextTest", mock(Request.class), request, response);
+		}
+		handler.takeNext("11");
+
+		// Verify that things went to plan.
+		assertEquals(Arrays.asList("http:/a.html", "http:/b.html"),
+				handler.getDispatchedUrls("1"));
+		assertEquals(Collections.singletonList("http:/c.html"),
+				handler.getDispatchedUrls("11"));
+		assertTrue(handler.getDispatchedUrls("0").isEmpty());
+	}
+
+	/**
+	 * Test that a worker is told to recycle once it has been handed as many
+	 * urls as it may be, or once told to, until it is reset.
+	 * 
+	 * @throws ServletException
+	 *             if something goes wrong.
+	 * @throws IOException
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testHandleNextTestRecycle() throws IOException,
+			ServletException {
+
+		// Setup the test.
+		JSTestWorkQueueHandler handler = new JSTestWorkQueueHandler();
+		List<URL> urls = new ArrayList<URL>();
+		urls.add(new URL("http:/a.html"));
+		urls.add(new URL("http:/b.html"));
+		urls.add(new URL("http:/c.html"));
+		handler.submit(urls);
+		handler.setMaxDispatches("0", 2);
+
+		// Test the handler.
+		List<String> bodies = new ArrayList<String>();
+		for (String page : new String[] { "0", "1", "0" }) {
+			HttpServletRequest request = mock(HttpServletRequest.class);
+			when(request.getParameter("worker")).thenReturn("0");
+			when(request.getParameter("page")).thenReturn(page);
+			HttpServletResponse response = mock(HttpServletResponse.class);
+			StringWriter body = new StringWriter();
+			when(response.getWriter()).thenReturn(new PrintWriter(body));
+			handler.handle("/nextTest", mock(Request.class), request, response);
+			bodies.add(body.toString());
+		}
+
+		// Verify that things went to plan.
+		assertEquals(Arrays.asList("http:/a.html\n20000",
+				"http:/b.html\n20000", JSTestWorkQueueHandler.RECYCLE), bodies);
+		assertTrue(handler.isRecycling("0"));
+		assertTrue(handler.isQueued(urls.get(2)));
+
+		handler.reset("0");
+		assertFalse(handler.isRecycling("0"));
+		handler.recycle("1");
+		assertTrue(handler.isRecycling("1"));
+		assertFalse(handler.isRecycling("0"));
+	}
+
+	/**
+	 * Test handling of a request for the next test when there are none left.
+	 * 
+	 * @throws ServletException
+	 *             if something goes wrong.
+	 * @throws IOException
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testHandleNextTestEmpty() throws IOException, ServletException {
+
+		// Setup the test.
+		JSTestWorkQueueHandler handler = new JSTestWorkQueueHandler();
+
+		Request baseRequest = mock(Request.class);
+
+		HttpServletRequest request = mock(HttpServletRequest.class);
+
+		HttpServletResponse response = mock(HttpServletResponse.class);
+
+		// Test the handler.
+		handler.handle("/nextTest", baseRequest, request, response);
+
+		// Verify that things went to plan.
+		verify(response).setStatus(HttpServletResponse.SC_NO_CONTENT);
+		verify(response, never()).getWriter();
+		verify(baseRequest).setHandled(true);
+	}
+
+	/**
+	 * Test handling of a request that should not be processed.
+	 * 
+	 * @throws ServletException
+	 *             if something goes wrong.
+	 * @throws IOException
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testHandleNothing() throws IOException, ServletException {
+
+		// Setup the test.
+		JSTestWorkQueueHandler handler = new JSTestWorkQueueHandler();
+
+		Request baseRequest = mock(Request.class);
+
+		HttpServletRequest request = mock(HttpServletRequest.class);
+
+		HttpServletResponse response = mock(HttpServletResponse.class);
+
+		// Test the handler.
+		handler.handle("/someotherurl", baseRequest, request, response);
+
+		// Verify that things went to plan.
+		verify(baseRequest, never()).setHandled(true);
+	}
+}
@@ -0,0 +1,479 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+package org.codehaus.jstestrunner.junit;
+
+import static org.codehaus.jstestrunner.JSTestFiles.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.StringReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.codehaus.jstestrunner.JSTestSuiteRunnerService;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestCaseResult;
+import org.codehaus.jstestrunner.jetty.JSTestResultHandler.JSTestResult;
+import org.codehaus.jstestrunner.jetty.JSTestResultServer;
+import org.codehaus.jstestrunner.junit.JSTestSuiteRunner.CompletionOrder;
+import org.codehaus.jstestrunner.junit.JSTestSuiteRunner.ReportTestCases;
+import org.codehaus.jstestrunner.junit.JSTestSuiteRunner.ResourceBase;
+import org.codehaus.jstestrunner.junit.JSTestSuiteRunner.TestRunnerFilePath;
+import org.codehaus.jstestrunner.junit.JSTestSuiteRunner.Threads;
+import org.codehaus.jstestrunner.junit.JSTestSuiteRunner.Workers;
+import org.eclipse.jetty.server.Request;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+import org.junit.runner.notification.RunNotifier;
+import org.junit.runner.notification.StoppedByUserException;
+
+public class JSTestSuiteRunnerTest {
+
+	@ResourceBase("target/jstestrunner-runner-test/resources")
+	@TestRunnerFilePath("target/jstestrunner-runner-test/stores")
+	@Workers(1)
+	@ReportTestCases
+	public static class ReportTestCasesSuite {
+	}
+
+	@ResourceBase("target/jstestrunner-runner-test/resources")
+	@TestRunnerFilePath("target/jstestrunner-runner-test/stores")
+	@Workers(1)
+	@Threads(3)
+	public static class ThreadsSuite {
+	}
+
+	@ResourceBase("target/jstestrunner-runner-test/resources")
+	@TestRunnerFilePath("target/jstestrunner-runner-test/stores")
+	@Workers(1)
+	@Threads(2)
+	public static class StoppedSuite {
+	}
+
+	@ResourceBase("target/jstestrunner-runner-test/resources")
+	@TestRunnerFilePath("target/jstestrunner-runner-test/stores")
+	@Workers(1)
+	@CompletionOrder
+	public static class CompletionOrderSuite {
+	}
+
+	/**
+	 * Stands in for the browser, taking each url from the queue of the suite
+	 * being run and then answering for the urls by way of the suite's result
+	 * handler.
+	 */
+	private abstract static class Browser extends Thread {
+		private final JSTestSuiteRunner runner;
+		private final int urlCount;
+		private volatile Throwable failure;
+
+		public Browser(final JSTestSuiteRunner runner, final int urlCount) {
+			this.runner = runner;
+			this.urlCount = urlCount;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				JSTestSuiteRunnerService service;
+				while ((service = runner.getjSTestSuiteRunnerService()) == null) {
+					Thread.sleep(10L);
+				}
+				final JSTestResultServer server = service
+						.getjSTestResultServer();
+				final Map<String, URL> urls = new TreeMap<String, URL>();
+				while (urls.size() < urlCount) {
+					final String url = server.getJsTestWorkQueueHandler()
+							.takeNext("browser");
+					if (url != null) {
+						urls.put(url.substring(url.lastIndexOf('/') + 1),
+								new URL(url));
+					} else {
+						Thread.sleep(10L);
+					}
+				}
+				answer(server.getJsTestResultHandler(), urls);
+			} catch (Throwable t) {
+				failure = t;
+			}
+		}
+
+		/**
+		 * Answer for the urls.
+		 * 
+		 * @param handler
+		 *            the result handler of the suite.
+		 * @param urls
+		 *            the urls keyed by file name.
+		 * @throws Exception
+		 *             if something goes wrong.
+		 */
+		protected abstract void answer(JSTestResultHandler handler,
+				Map<String, URL> urls) throws Exception;
+
+		public Throwable getFailure() throws InterruptedException {
+			join(10000L);
+			return failure;
+		}
+	}
+
+	/**
+	 * Records the notifications of a run.
+	 */
+	private static class RecordingListener extends RunListener {
+		private final List<String> events = new ArrayList<String>();
+
+		@Override
+		public void testStarted(final Description description) {
+			record("started " + description.getDisplayName());
+		}
+
+		@Override
+		public void testFailure(final Failure failure) {
+			record("failure " + failure.getDescription().getDisplayName());
+		}
+
+		@Override
+		public void testFinished(final Description description) {
+			record("finished " + description.getDisplayName());
+		}
+
+		private void record(final String event) {
+			synchronized (events) {
+				events.add(event);
+				events.notifyAll();
+			}
+		}
+
+		/**
+		 * Wait for an event to be recorded.
+		 * 
+		 * @param event
+		 *            the event type followed by the display name.
+		 * @throws InterruptedException
+		 *             if interrupted.
+		 */
+		public void awaitEvent(final String event) throws InterruptedException {
+			final long deadline = System.currentTimeMillis() + 10000L;
+			synchronized (events) {
+				while (!events.contains(event)) {
+					final long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0L) {
+						throw new AssertionError("Timed out waiting for "
+								+ event);
+					}
+					events.wait(remaining);
+				}
+			}
+		}
+
+		public List<String> getDisplayNames(final String eventType) {
+			final List<String> displayNames = new ArrayList<String>();
+			synchronized (events) {
+				for (final String event : events) {
+					if (event.startsWith(eventType + " ")) {
+						displayNames.add(event.substring(eventType.length() + 1));
+					}
+				}
+			}
+			return displayNames;
+		}
+
+		public List<String> getEvents(final String displayName) {
+			final List<String> events = new ArrayList<String>();
+			synchronized (this.events) {
+				for (final String event : this.events) {
+					if (event.endsWith(" " + displayName)) {
+						events.add(event.substring(0, event.indexOf(' ')));
+					}
+				}
+			}
+			return events;
+		}
+	}
+
+	@BeforeClass
+	public static void writeTestDocuments() throws Exception {
+		for (final String name : new String[] { "ATest.html", "BTest.html",
+				"CTest.html" }) {
+			write(new File("target/jstestrunner-runner-test/resources", name),
+					"<!DOCTYPE html><html><body></body></html>");
+		}
+	}
+
+	@Before
+	public void setUp() {
+		// Execution processes that stay up without asking for tests, so that
+		// the urls are answered for by the test.
+		System.setProperty("org.codehaus.jstestrunner.commandPattern",
+				"sh -c 'sleep 60' %1$s %2$s");
+		System.setProperty("org.codehaus.jstestrunner.port", "0");
+	}
+
+	@After
+	public void tearDown() {
+		System.clearProperty("org.codehaus.jstestrunner.commandPattern");
+		System.clearProperty("org.codehaus.jstestrunner.port");
+	}
+
+	/**
+	 * Describe the urls of a suite.
+	 * 
+	 * @return the descriptions keyed by file name.
+	 */
+	private static Map<String, Description> describeUrls(
+			final JSTestSuiteRunner runner) {
+		final Map<String, Description> urlDescriptions = new TreeMap<String, Description>();
+		for (final Description description : runner.getDescription()
+				.getChildren()) {
+			urlDescriptions.put(description.getMethodName(), description);
+		}
+		return urlDescriptions;
+	}
+
+	/**
+	 * Post the progress of an individual test.
+	 */
+	private static void postTestEvent(final JSTestResultHandler handler,
+			final String data) throws Exception {
+		final Request baseRequest = mock(Request.class);
+		final HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getMethod()).thenReturn("POST");
+		when(request.getContentType()).thenReturn("application/json");
+		when(request.getReader()).thenReturn(
+				new BufferedReader(new StringReader(data)));
+		handler.handle("/testEvents", baseRequest, request,
+				mock(HttpServletResponse.class));
+	}
+
+	/**
+	 * Test that the individual tests of a url are described within their
+	 * modules under the url, each reported as it starts and finishes, and that
+	 * a url without tests is reported as a whole.
+	 * 
+	 * @throws Exception
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testReportTestCases() throws Exception {
+		final JSTestSuiteRunner runner = new JSTestSuiteRunner(
+				ReportTestCasesSuite.class);
+		final Browser browser = new Browser(runner, 3) {
+			@Override
+			protected void answer(final JSTestResultHandler handler,
+					final Map<String, URL> urls) throws Exception {
+				final String testUrl = urls.get("ATest.html").toString();
+				final List<JSTestCaseResult> jsTestCaseResults = Arrays.asList(
+						new JSTestCaseResult("m", "t1", 0, 1, 5L, ""),
+						new JSTestCaseResult("m", "t2", 1, 0, 7L, "\n  boom"));
+				for (final JSTestCaseResult jsTestCaseResult : jsTestCaseResults) {
+					postTestEvent(handler, "{\"testUrl\":\"" + testUrl
+							+ "\",\"event\":\"testStart\",\"moduleName\":\"m\","
+							+ "\"testName\":\""
+							+ jsTestCaseResult.getTestName() + "\"}");
+					postTestEvent(handler, "{\"testUrl\":\"" + testUrl
+							+ "\",\"event\":\"testDone\",\"moduleName\":\"m\","
+							+ "\"testName\":\""
+							+ jsTestCaseResult.getTestName()
+							+ "\",\"failures\":"
+							+ jsTestCaseResult.getFailures() + ",\"passes\":"
+							+ jsTestCaseResult.getPasses()
+							+ ",\"duration\":5,\"message\":\"\"}");
+				}
+				handler.complete(testUrl, new JSTestResult.Builder(1, 1, "")
+						.testCaseResults(jsTestCaseResults).build());
+				handler.complete(urls.get("BTest.html").toString(),
+						new JSTestResult.Builder(0, 1, "").build());
+				handler.complete(urls.get("CTest.html").toString(),
+						new JSTestResult.Builder(0, 1, "").build());
+			}
+		};
+		browser.start();
+		final RunNotifier notifier = new RunNotifier();
+		final RecordingListener listener = new RecordingListener();
+		notifier.addListener(listener);
+		runner.run(notifier);
+		assertNull(browser.getFailure());
+
+		final Map<String, Description> urlDescriptions = describeUrls(runner);
+		assertEquals(Arrays.asList("ATest.html", "BTest.html", "CTest.html"),
+				new ArrayList<String>(urlDescriptions.keySet()));
+
+		final Description urlDescription = urlDescriptions.get("ATest.html");
+		assertEquals(1, urlDescription.getChildren().size());
+		final Description moduleDescription = urlDescription.getChildren()
+				.get(0);
+		assertEquals("m", moduleDescription.getDisplayName());
+		assertEquals(2, moduleDescription.getChildren().size());
+		final Description t1 = moduleDescription.getChildren().get(0);
+		final Description t2 = moduleDescription.getChildren().get(1);
+		assertEquals("[m] t1(ATest.html)", t1.getDisplayName());
+		assertEquals("[m] t2(ATest.html)", t2.getDisplayName());
+
+		assertEquals(Arrays.asList("started", "finished"),
+				listener.getEvents(t1.getDisplayName()));
+		assertEquals(Arrays.asList("started", "failure", "finished"),
+				listener.getEvents(t2.getDisplayName()));
+		assertEquals(Collections.emptyList(),
+				listener.getEvents(urlDescription.getDisplayName()));
+		assertEquals(Arrays.asList("started", "finished"), listener
+				.getEvents(urlDescriptions.get("BTest.html").getDisplayName()));
+		assertEquals(0, urlDescriptions.get("BTest.html").getChildren().size());
+	}
+
+	/**
+	 * Test that children wait upon their results concurrently, each url having
+	 * started before any of them is answered for.
+	 * 
+	 * @throws Exception
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testThreads() throws Exception {
+		final JSTestSuiteRunner runner = new JSTestSuiteRunner(
+				ThreadsSuite.class);
+		final Map<String, Description> urlDescriptions = describeUrls(runner);
+		final RecordingListener listener = new RecordingListener();
+		final Browser browser = new Browser(runner, 3) {
+			@Override
+			protected void answer(final JSTestResultHandler handler,
+					final Map<String, URL> urls) throws Exception {
+				try {
+					for (final Description description : urlDescriptions
+							.values()) {
+						listener.awaitEvent("started "
+								+ description.getDisplayName());
+					}
+				} finally {
+					for (final URL url : urls.values()) {
+						handler.complete(url.toString(),
+								new JSTestResult.Builder(0, 1, "").build());
+					}
+				}
+			}
+		};
+		browser.start();
+		final RunNotifier notifier = new RunNotifier();
+		notifier.addListener(listener);
+		runner.run(notifier);
+		assertNull(browser.getFailure());
+		assertEquals(3, listener.getDisplayNames("finished").size());
+		assertEquals(0, listener.getDisplayNames("failure").size());
+	}
+
+	/**
+	 * Test that stopping the run from within a concurrently run child stops the
+	 * run rather than being lost with the child.
+	 * 
+	 * @throws Exception
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testStoppedByUser() throws Exception {
+		final JSTestSuiteRunner runner = new JSTestSuiteRunner(
+				StoppedSuite.class);
+		final Browser browser = new Browser(runner, 3) {
+			@Override
+			protected void answer(final JSTestResultHandler handler,
+					final Map<String, URL> urls) throws Exception {
+				for (final URL url : urls.values()) {
+					handler.complete(url.toString(),
+							new JSTestResult.Builder(0, 1, "").build());
+				}
+			}
+		};
+		browser.start();
+		final RunNotifier notifier = new RunNotifier();
+		final RecordingListener listener = new RecordingListener();
+		notifier.addListener(listener);
+		notifier.addListener(new RunListener() {
+			@Override
+			public void testStarted(final Description description) {
+				notifier.pleaseStop();
+			}
+		});
+		try {
+			runner.run(notifier);
+			fail("Expected the run to be stopped");
+		} catch (StoppedByUserException e) {
+			// Expected.
+		}
+		assertNull(browser.getFailure());
+		assertEquals(1, listener.getDisplayNames("started").size());
+	}
+
+	/**
+	 * Test that urls are reported in the order that their results arrive when
+	 * asked to.
+	 * 
+	 * @throws Exception
+	 *             if something goes wrong.
+	 */
+	@Test
+	public void testCompletionOrder() throws Exception {
+		final JSTestSuiteRunner runner = new JSTestSuiteRunner(
+				CompletionOrderSuite.class);
+		final Map<String, Description> urlDescriptions = describeUrls(runner);
+		final RecordingListener listener = new RecordingListener();
+		final List<String> names = Arrays.asList("CTest.html", "ATest.html",
+				"BTest.html");
+		final Browser browser = new Browser(runner, 3) {
+			@Override
+			protected void answer(final JSTestResultHandler handler,
+					final Map<String, URL> urls) throws Exception {
+				for (final String name : names) {
+					handler.complete(urls.get(name).toString(),
+							new JSTestResult.Builder(0, 1, "").build());
+					listener.awaitEvent("finished "
+							+ urlDescriptions.get(name).getDisplayName());
+				}
+			}
+		};
+		browser.start();
+		final RunNotifier notifier = new RunNotifier();
+		notifier.addListener(listener);
+		runner.run(notifier);
+		assertNull(browser.getFailure());
+		final List<String> displayNames = new ArrayList<String>();
+		for (final String name : names) {
+			displayNames.add(urlDescriptions.get(name).getDisplayName());
+		}
+		assertEquals(displayNames, listener.getDisplayNames("finished"));
+	}
+}